@@ -14,32 +14,54 @@
 
 package com.rasa.workshop;
 
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.db.AsyncDB;
+import com.rasa.workshop.db.Change;
+import com.rasa.workshop.db.ChangeFeedDB;
 import com.rasa.workshop.db.DB;
-import com.rasa.workshop.routes.ResponsesRouter;
-import com.rasa.workshop.routes.RouterUtils;
+import com.rasa.workshop.service.ResponsesService;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
-import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.ext.auth.jwt.JWTAuth;
-import io.vertx.ext.web.Router;
 
+/**
+ * Main verticle. Opens the DB and the responses service once and deploys one
+ * {@link ResponsesHttpVerticle} per configured instance, all sharing them.
+ */
 public class RasaResponsesServer
   extends AbstractVerticle {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(RasaResponsesServer.class);
 
+  private DB mDB;
+  private AsyncDB mAsyncDB;
+
   @Override
   public void start(Future<Void> pStartFuture) {
     try {
-      JWTAuth jwtAuth = null;
-      Router mainRouter = Router.router(vertx);
-      DB db = DB.newDB(config());
-      RouterUtils.configureBody(mainRouter, config());
-      RouterUtils.configureCORS(mainRouter, config());
-      mainRouter.mountSubRouter("/api/v1", new ResponsesRouter(vertx, jwtAuth, db).getRouter());
-      serve(pStartFuture, mainRouter);
+      mDB = new ChangeFeedDB(DB.newDB(config()), vertx.eventBus());
+      mAsyncDB = AsyncDB.newAsyncDB(vertx, mDB, config());
+      ResponsesService service = new ResponsesService(mAsyncDB, config());
+      vertx.eventBus().<JsonObject>localConsumer(ChangeFeedDB.address(mDB.name()),
+        message -> service.onChange(Change.fromJson(message.body())));
+
+      int instances = config().getInteger(Constants.INSTANCES_KEY, Runtime.getRuntime().availableProcessors());
+      DeploymentOptions options = new DeploymentOptions()
+        .setConfig(config())
+        .setInstances(instances);
+
+      vertx.deployVerticle(() -> new ResponsesHttpVerticle(service, mAsyncDB), options, dh -> {
+        if (dh.succeeded()) {
+          LOGGER.info(String.format("Rasa responses server deployed with %d instances", instances));
+          pStartFuture.complete();
+
+        } else {
+          pStartFuture.fail(dh.cause());
+        }
+      });
 
     } catch (Exception ex) {
       LOGGER.error("Unable to start rasa responses server", ex);
@@ -47,19 +69,9 @@ public class RasaResponsesServer
     }
   }
 
-  private void serve(Future<Void> pStartFuture, Router pRouter) {
-    HttpServer httpServer = vertx.createHttpServer()
-      .requestHandler(pRouter::accept);
-
-    httpServer.listen(8080, lh -> {
-      if (lh.succeeded()) {
-        LOGGER.info(String.format("Rasa responses server now serving requests on %d", lh.result().actualPort()));
-
-        pStartFuture.complete();
-
-      } else {
-        pStartFuture.fail(lh.cause());
-      }
-    });
+  @Override
+  public void stop() {
+    if (mAsyncDB != null) mAsyncDB.close();
+    if (mDB != null) mDB.close();
   }
 }
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop;
+
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.db.AsyncDB;
+import com.rasa.workshop.routes.AdminRouter;
+import com.rasa.workshop.routes.ResponsesRouter;
+import com.rasa.workshop.routes.RouterUtils;
+import com.rasa.workshop.service.ResponsesService;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.auth.jwt.JWTAuth;
+import io.vertx.ext.web.Router;
+
+/**
+ * Serves the REST API on one event loop. Several instances listen on the same port and share the
+ * {@link ResponsesService} and {@link AsyncDB} handed over by {@link RasaResponsesServer}.
+ */
+class ResponsesHttpVerticle
+  extends AbstractVerticle {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResponsesHttpVerticle.class);
+
+  private final ResponsesService mService;
+  private final AsyncDB mDB;
+
+  ResponsesHttpVerticle(ResponsesService pService, AsyncDB pDB) {
+    this.mService = pService;
+    this.mDB = pDB;
+  }
+
+  @Override
+  public void start(Future<Void> pStartFuture) {
+    try {
+      JWTAuth jwtAuth = null;
+      Router mainRouter = Router.router(vertx);
+      RouterUtils.configureBody(mainRouter, config());
+      RouterUtils.configureCORS(mainRouter, config());
+      mainRouter.mountSubRouter("/api/v1", new ResponsesRouter(vertx, jwtAuth, mService).getRouter());
+      mainRouter.mountSubRouter("/api/v1", new AdminRouter(vertx, jwtAuth, mDB, config()).getRouter());
+      serve(pStartFuture, mainRouter);
+
+    } catch (Exception ex) {
+      LOGGER.error("Unable to start rasa responses server", ex);
+      pStartFuture.fail(ex);
+    }
+  }
+
+  private void serve(Future<Void> pStartFuture, Router pRouter) {
+    HttpServer httpServer = vertx.createHttpServer()
+      .requestHandler(pRouter::accept);
+
+    int port = config().getInteger(Constants.HTTP_PORT_KEY, Constants.DEFAULT_HTTP_PORT_VALUE);
+    httpServer.listen(port, lh -> {
+      if (lh.succeeded()) {
+        LOGGER.info(String.format("Rasa responses server now serving requests on %d", lh.result().actualPort()));
+
+        pStartFuture.complete();
+
+      } else {
+        pStartFuture.fail(lh.cause());
+      }
+    });
+  }
+}
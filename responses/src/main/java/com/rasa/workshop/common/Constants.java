@@ -16,12 +16,101 @@ package com.rasa.workshop.common;
 
 public interface Constants {
 
+  String HTTP_PORT_KEY = "http-port";
+  int DEFAULT_HTTP_PORT_VALUE = 8080;
+
+  String INSTANCES_KEY = "instances";
+
+  String DB_ENGINE_KEY = "db-engine";
+  String JSON_DB_ENGINE = "json";
+  String LOG_DB_ENGINE = "log";
+  String SHARDED_DB_ENGINE = "sharded";
+  String DEFAULT_DB_ENGINE_VALUE = JSON_DB_ENGINE;
+
   String DB_NAME_KEY = "db-name";
   String DEFAULT_DB_NAME_VALUE = "rasa";
 
+  String DB_INDEXES_KEY = "db-indexes";
+
+  String STORAGE_FORMAT_KEY = "storage-format";
+  String DEFAULT_STORAGE_FORMAT_VALUE = "json";
+
+  String STORAGE_COMPRESSION_KEY = "storage-compression";
+  String DEFAULT_STORAGE_COMPRESSION_VALUE = "none";
+
+  String STORAGE_MMAP_KEY = "storage-mmap";
+  boolean DEFAULT_STORAGE_MMAP_VALUE = true;
+
+  String STORAGE_MMAP_THRESHOLD_KEY = "storage-mmap-threshold";
+  long DEFAULT_STORAGE_MMAP_THRESHOLD_VALUE = 64 * 1024;
+
+  String STORAGE_MMAP_POOL_SIZE_KEY = "storage-mmap-pool-size";
+  int DEFAULT_STORAGE_MMAP_POOL_SIZE_VALUE = 64;
+
+  String FSYNC_POLICY_KEY = "fsync-policy";
+  String DEFAULT_FSYNC_POLICY_VALUE = "interval";
+
+  String FSYNC_BATCH_SIZE_KEY = "fsync-batch-size";
+  int DEFAULT_FSYNC_BATCH_SIZE_VALUE = 64;
+
+  String FSYNC_BATCH_DELAY_KEY = "fsync-batch-delay";
+  long DEFAULT_FSYNC_BATCH_DELAY_VALUE = 5;
+
+  String FSYNC_INTERVAL_KEY = "fsync-interval";
+  long DEFAULT_FSYNC_INTERVAL_VALUE = 1_000;
+
+  String WRITE_BEHIND_KEY = "write-behind";
+  boolean DEFAULT_WRITE_BEHIND_VALUE = false;
+
+  String WRITE_BEHIND_QUEUE_SIZE_KEY = "write-behind-queue-size";
+  int DEFAULT_WRITE_BEHIND_QUEUE_SIZE_VALUE = 10_000;
+
+  String WRITE_BEHIND_BATCH_SIZE_KEY = "write-behind-batch-size";
+  int DEFAULT_WRITE_BEHIND_BATCH_SIZE_VALUE = 256;
+
+  String WRITE_BEHIND_DELAY_KEY = "write-behind-delay";
+  long DEFAULT_WRITE_BEHIND_DELAY_VALUE = 50;
+
+  String WRITE_BEHIND_CLOSE_TIMEOUT_KEY = "write-behind-close-timeout";
+  long DEFAULT_WRITE_BEHIND_CLOSE_TIMEOUT_VALUE = 10_000;
+
+  String DB_BATCH_PARALLELISM_KEY = "db-batch-parallelism";
+  int DEFAULT_DB_BATCH_PARALLELISM_VALUE = 4;
+
+  String DB_CACHE_KEY = "db-cache";
+  boolean DEFAULT_DB_CACHE_VALUE = true;
+
+  String DB_CACHE_MAX_SIZE_KEY = "db-cache-max-size";
+  long DEFAULT_DB_CACHE_MAX_SIZE_VALUE = 10_000;
+
+  String DB_CACHE_TTL_KEY = "db-cache-ttl";
+  long DEFAULT_DB_CACHE_TTL_VALUE = 60_000;
+
+  String DB_WATCH_KEY = "db-watch";
+  boolean DEFAULT_DB_WATCH_VALUE = true;
+
+  String DB_WORKER_POOL_SIZE_KEY = "db-worker-pool-size";
+  int DEFAULT_DB_WORKER_POOL_SIZE_VALUE = 8;
+
+  String CATALOG_CACHE_MAX_WEIGHT_KEY = "catalog-cache-max-weight";
+  long DEFAULT_CATALOG_CACHE_MAX_WEIGHT_VALUE = 64L * 1024 * 1024;
+
+  String LOG_SEGMENT_SIZE_KEY = "log-segment-size";
+  long DEFAULT_LOG_SEGMENT_SIZE_VALUE = 64L * 1024 * 1024;
+
+  String LOG_COMPACTION_INTERVAL_KEY = "log-compaction-interval";
+  long DEFAULT_LOG_COMPACTION_INTERVAL_VALUE = 60_000;
+
+  String LOG_COMPACTION_THRESHOLD_KEY = "log-compaction-threshold";
+  double DEFAULT_LOG_COMPACTION_THRESHOLD_VALUE = 0.5;
+
+  String EXPORT_PARALLELISM_KEY = "export-parallelism";
+
   String STATE_FOLDER_KEY = "state-folder";
   String DEFAULT_STATE_FOLDER_VALUE = ".state";
 
+  String STATE_FOLDERS_KEY = "state-folders";
+
   String ZIPS_ROOT_KEY = "zip-root";
   String DEFAULT_ZIPS_ROOT_VALUE = "zips";
 
@@ -16,22 +16,45 @@ package com.rasa.workshop.common;
 
 import io.vertx.core.json.JsonObject;
 
+import java.io.IOException;
+
 public interface Document {
 
   String id();
 
   String collectionId();
 
+  /**
+   * @return the payload, which documents built with a {@link PayloadLoader} read on first call,
+   *     blocking and throwing {@link java.io.UncheckedIOException} if the read fails.
+   */
   JsonObject payload();
 
+  /**
+   * @return the version of this document, increasing with every update, or 0 if unknown.
+   */
+  long version();
+
   static Builder newBuilder() {
     return new Builder();
   }
 
+  /**
+   * Reads a document payload on demand.
+   */
+  @FunctionalInterface
+  interface PayloadLoader {
+
+    JsonObject load()
+        throws IOException;
+  }
+
   class Builder {
     String mId;
     String mCollectionId;
     JsonObject mPayload;
+    PayloadLoader mPayloadLoader;
+    long mVersion;
 
     private Builder() {}
 
@@ -50,6 +73,19 @@ public interface Document {
       return this;
     }
 
+    public Builder withVersion(long pVersion) {
+      mVersion = pVersion;
+      return this;
+    }
+
+    /**
+     * Defers reading the payload until {@link Document#payload()} is first called.
+     */
+    public Builder withPayloadLoader(PayloadLoader pPayloadLoader) {
+      mPayloadLoader = pPayloadLoader;
+      return this;
+    }
+
     public Document build() {
       return new JsonDocument(this);
     }
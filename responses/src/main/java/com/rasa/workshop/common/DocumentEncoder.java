@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.jackson.DatabindCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes documents as {"id": ..., <payload fields>} straight into a {@link Buffer}.
+ *
+ * The payload is only read, never copied or modified, so the same document can be encoded from
+ * any number of threads at once. An "id" field in the payload is left out in favour of the
+ * document id.
+ */
+public class DocumentEncoder {
+
+  private static final JsonFactory FACTORY = DatabindCodec.mapper().getFactory();
+
+  private static final String ID_FIELD = "id";
+
+  private DocumentEncoder() {}
+
+  public static Buffer encode(Document pDocument) {
+    return encode(pDocument, Buffer.buffer());
+  }
+
+  /**
+   * Appends the encoded document to the given buffer.
+   *
+   * @return the given buffer.
+   */
+  public static Buffer encode(Document pDocument, Buffer pBuffer) {
+    try (JsonGenerator generator = FACTORY.createGenerator(new BufferOutputStream(pBuffer))) {
+      generator.writeStartObject();
+      generator.writeStringField(ID_FIELD, pDocument.id());
+
+      JsonObject payload = pDocument.payload();
+      if (payload != null) {
+        for (Map.Entry<String, Object> field : payload.getMap().entrySet()) {
+          if (ID_FIELD.equals(field.getKey())) continue;
+
+          generator.writeFieldName(field.getKey());
+          writeValue(generator, field.getValue());
+        }
+      }
+
+      generator.writeEndObject();
+
+    } catch (IOException ex) {
+      throw new EncodeException("Failed to encode document " + pDocument.id() + ": " + ex.getMessage());
+    }
+
+    return pBuffer;
+  }
+
+  private static void writeValue(JsonGenerator pGenerator, Object pValue)
+      throws IOException {
+    if (pValue == null) {
+      pGenerator.writeNull();
+
+    } else if (pValue instanceof String) {
+      pGenerator.writeString((String) pValue);
+
+    } else if (pValue instanceof Boolean) {
+      pGenerator.writeBoolean((Boolean) pValue);
+
+    } else if (pValue instanceof Integer || pValue instanceof Short || pValue instanceof Byte) {
+      pGenerator.writeNumber(((Number) pValue).intValue());
+
+    } else if (pValue instanceof Long) {
+      pGenerator.writeNumber((Long) pValue);
+
+    } else if (pValue instanceof Double || pValue instanceof Float) {
+      pGenerator.writeNumber(((Number) pValue).doubleValue());
+
+    } else if (pValue instanceof BigInteger) {
+      pGenerator.writeNumber((BigInteger) pValue);
+
+    } else if (pValue instanceof BigDecimal) {
+      pGenerator.writeNumber((BigDecimal) pValue);
+
+    } else if (pValue instanceof JsonObject) {
+      writeObject(pGenerator, ((JsonObject) pValue).getMap());
+
+    } else if (pValue instanceof Map) {
+      writeObject(pGenerator, (Map<?, ?>) pValue);
+
+    } else if (pValue instanceof JsonArray) {
+      writeArray(pGenerator, ((JsonArray) pValue).getList());
+
+    } else if (pValue instanceof List) {
+      writeArray(pGenerator, (List<?>) pValue);
+
+    } else {
+      // Binary, instants and anything else Vert.x knows how to encode.
+      pGenerator.writeObject(pValue);
+    }
+  }
+
+  private static void writeObject(JsonGenerator pGenerator, Map<?, ?> pMap)
+      throws IOException {
+    pGenerator.writeStartObject();
+
+    for (Map.Entry<?, ?> field : pMap.entrySet()) {
+      pGenerator.writeFieldName(String.valueOf(field.getKey()));
+      writeValue(pGenerator, field.getValue());
+    }
+
+    pGenerator.writeEndObject();
+  }
+
+  private static void writeArray(JsonGenerator pGenerator, List<?> pList)
+      throws IOException {
+    pGenerator.writeStartArray();
+
+    for (Object value : pList) {
+      writeValue(pGenerator, value);
+    }
+
+    pGenerator.writeEndArray();
+  }
+
+  private static class BufferOutputStream
+      extends OutputStream {
+
+    private final Buffer mBuffer;
+
+    BufferOutputStream(Buffer pBuffer) {
+      mBuffer = pBuffer;
+    }
+
+    @Override
+    public void write(int pByte) {
+      mBuffer.appendByte((byte) pByte);
+    }
+
+    @Override
+    public void write(byte[] pBytes, int pOffset, int pLength) {
+      mBuffer.appendBytes(pBytes, pOffset, pLength);
+    }
+  }
+}
@@ -10,5 +10,17 @@ public class DocumentNotFoundException
   public DocumentNotFoundException(String pMsg, Throwable pCause) {
     super(pMsg, pCause);
   }
+
+  private DocumentNotFoundException(String pMsg, boolean pWritableStackTrace) {
+    super(pMsg, null, false, pWritableStackTrace);
+  }
+
+  /**
+   * Creates the exception without filling in its stack trace, for lookups that miss often enough,
+   * e.g. requests for unknown bots, that the trace would cost more than the lookup.
+   */
+  public static DocumentNotFoundException stackless(String pMsg) {
+    return new DocumentNotFoundException(pMsg, false);
+  }
 }
 
@@ -0,0 +1,14 @@
+package com.rasa.workshop.common;
+
+public class DocumentVersionConflictException
+    extends Exception {
+
+  public DocumentVersionConflictException(String pMsg) {
+    super(pMsg);
+  }
+
+  public DocumentVersionConflictException(String pMsg, Throwable pCause) {
+    super(pMsg, pCause);
+  }
+}
+
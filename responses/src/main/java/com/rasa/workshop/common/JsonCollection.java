@@ -33,6 +33,11 @@ public class JsonCollection
     return mPayload;
   }
 
+  @Override
+  public long version() {
+    return 0;
+  }
+
   @Override
   public List<Document> documents() {
     return mDocuments;
@@ -16,17 +16,24 @@ package com.rasa.workshop.common;
 
 import io.vertx.core.json.JsonObject;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 class JsonDocument
     implements Document {
 
   private final String mId;
   private final String mCollectionId;
-  private final JsonObject mPayload;
+  private final PayloadLoader mPayloadLoader;
+  private final long mVersion;
+  private volatile JsonObject mPayload;
 
   JsonDocument(Builder pBuilder) {
     mId = pBuilder.mId;
     mCollectionId = pBuilder.mCollectionId;
     mPayload = pBuilder.mPayload;
+    mPayloadLoader = mPayload == null ? pBuilder.mPayloadLoader : null;
+    mVersion = pBuilder.mVersion;
   }
 
   @Override
@@ -39,8 +46,27 @@ class JsonDocument
     return mCollectionId;
   }
 
+  @Override
+  public long version() {
+    return mVersion;
+  }
+
   @Override
   public JsonObject payload() {
-    return mPayload;
+    JsonObject payload = mPayload;
+    if (payload != null || mPayloadLoader == null) return payload;
+
+    synchronized (this) {
+      if (mPayload == null) {
+        try {
+          mPayload = mPayloadLoader.load();
+
+        } catch (IOException ex) {
+          throw new UncheckedIOException("Unable to load document: " + mId, ex);
+        }
+      }
+
+      return mPayload;
+    }
   }
 }
@@ -17,18 +17,25 @@ package com.rasa.workshop.common;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Utils {
 
@@ -45,12 +52,6 @@ public class Utils {
     "models"
   );
 
-  public static JsonObject documentToJson(Document pDocument) {
-    var json = new JsonObject(pDocument.payload().getMap());
-    json.put("id", pDocument.id());
-    return json;
-  }
-
   public static void jsonToFile(File pFile, JsonObject pJson)
     throws IOException {
     Files.writeString(pFile.toPath(), pJson.encodePrettily());
@@ -70,16 +71,55 @@ public class Utils {
         .forEach(path -> path.toFile().delete());
   }
 
+  /**
+   * Zips a folder into a file, compressing up to two blocks per core in parallel.
+   */
   public static void zip(File pSrc, File pZipFile)
     throws IOException {
-    try (FileOutputStream outputStream = new FileOutputStream(pZipFile);
-         ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
-      zip(pSrc, zipOutputStream, pSrc.getCanonicalPath().length() + 1);
+    List<File> files = new ArrayList<>();
+    collectFiles(pSrc, files);
+
+    Path root = pSrc.toPath();
+    List<ZipWriter.Block> blocks = new ArrayList<>();
+    for (File file : files) {
+      String name = root.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+      blocks.addAll(ZipWriter.split(name, file.toPath(), file.length(), file.lastModified()));
+    }
+
+    int window = 2 * Runtime.getRuntime().availableProcessors();
+    Deque<CompletableFuture<ZipWriter.Compressed>> pending = new ArrayDeque<>();
+    Iterator<ZipWriter.Block> next = blocks.iterator();
+    var zip = new ZipWriter();
+
+    try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(pZipFile))) {
+      while (next.hasNext() || !pending.isEmpty()) {
+        while (next.hasNext() && pending.size() < window) {
+          ZipWriter.Block block = next.next();
+          pending.add(CompletableFuture.supplyAsync(() -> {
+            try {
+              return ZipWriter.compress(block);
+
+            } catch (IOException ex) {
+              throw new UncheckedIOException(ex);
+            }
+          }));
+        }
+
+        try {
+          outputStream.write(zip.add(pending.poll().join()).getBytes());
+
+        } catch (CompletionException ex) {
+          throw ex.getCause() instanceof UncheckedIOException
+            ? ((UncheckedIOException) ex.getCause()).getCause()
+            : new IOException("Unable to zip " + pSrc, ex.getCause());
+        }
+      }
+
+      outputStream.write(zip.finish().getBytes());
     }
   }
 
-  private static void zip(File pSrc, ZipOutputStream pOutputStream, int pFilePathStartIndex)
-    throws IOException {
+  private static void collectFiles(File pSrc, List<File> pFiles) {
     if (pSrc.isDirectory()) {
       if (IGNORED_FOLDERS.contains(pSrc.getName())) return;
 
@@ -87,26 +127,10 @@ public class Utils {
       if (files == null) return;
 
       for (File file : files) {
-        zip(file, pOutputStream, pFilePathStartIndex);
+        collectFiles(file, pFiles);
       }
     } else if (pSrc.isFile()) {
-      zipEntry(pSrc, pOutputStream, pFilePathStartIndex);
-    }
-  }
-
-  private static void zipEntry(File pFile, ZipOutputStream pOutputStream, int pFilePathStartIndex)
-    throws IOException {
-    String zipEntryFilePath = pFile.getCanonicalPath().substring(pFilePathStartIndex);
-    ZipEntry zipEntry = new ZipEntry(zipEntryFilePath);
-
-    try (FileInputStream inputStream = new FileInputStream(pFile)) {
-      pOutputStream.putNextEntry(zipEntry);
-      var bytes = new byte[2048];
-      int length;
-      while ((length = inputStream.read(bytes)) >= 0) {
-        pOutputStream.write(bytes, 0, length);
-      }
-      pOutputStream.closeEntry();
+      pFiles.add(pSrc);
     }
   }
 }
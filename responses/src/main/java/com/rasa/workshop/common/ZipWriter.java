@@ -0,0 +1,392 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.common;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive as a sequence of buffers, from blocks of entries compressed beforehand and
+ * independently of each other with {@link #compress}, so that several blocks can be compressed in
+ * parallel while the archive is written in order. Entries are split into blocks of at most
+ * {@link #BLOCK_SIZE} bytes, which bounds the memory held by each block in flight whatever the size
+ * of the files. Switches to Zip64 records when the archive outgrows the classic format.
+ *
+ * Not thread safe: blocks are added from one thread at a time, in the order {@link #split} returns
+ * them.
+ */
+public class ZipWriter {
+
+  public static final int BLOCK_SIZE = 128 * 1024;
+
+  private static final int LOCAL_HEADER = 0x04034b50;
+  private static final int DATA_DESCRIPTOR = 0x08074b50;
+  private static final int CENTRAL_HEADER = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+  private static final int ZIP64_END_LOCATOR = 0x07064b50;
+
+  private static final short VERSION = 45;
+  private static final short UTF8_NAMES = 0x0800;
+  private static final short SIZES_AFTER_DATA = 0x0008;
+  private static final short STORED = 0;
+  private static final short DEFLATED = 8;
+  private static final long MAX_32 = 0xffffffffL;
+  private static final int MAX_16 = 0xffff;
+  // Keeps the sizes of an entry, even stored with the framing of deflate blocks, within the
+  // classic 32 bit fields of the local header and data descriptor.
+  private static final long MAX_ENTRY_SIZE = Integer.MAX_VALUE;
+
+  private final Buffer mCentralDirectory;
+  private long mOffset;
+  private long mEntries;
+
+  // State of the entry whose blocks are being added, when it spans several.
+  private long mEntryOffset;
+  private long mEntryCrc;
+  private long mEntryCompressedSize;
+
+  public ZipWriter() {
+    mCentralDirectory = Buffer.buffer();
+  }
+
+  /**
+   * @return the blocks of the first given number of bytes of a file, at least one even when empty.
+   */
+  public static List<Block> split(String pName, Path pPath, long pLength, long pModified)
+      throws IOException {
+    if (pLength > MAX_ENTRY_SIZE) {
+      throw new IOException("Zip entry too large: " + pName);
+    }
+
+    List<Block> blocks = new ArrayList<>((int) (pLength / BLOCK_SIZE) + 1);
+    long offset = 0;
+    do {
+      int length = (int) Math.min(BLOCK_SIZE, pLength - offset);
+      blocks.add(new Block(pName, pPath, pLength, pModified, offset, length));
+      offset += length;
+    } while (offset < pLength);
+
+    return blocks;
+  }
+
+  /**
+   * Reads and deflates a block. An entry held in a single block is stored instead when it does
+   * not compress; the blocks of larger entries are then emitted as stored deflate blocks, so that
+   * they still chain into one deflate stream. Safe to call from any thread.
+   */
+  public static Compressed compress(Block pBlock)
+      throws IOException {
+    byte[] data = new byte[pBlock.mLength];
+    try (FileChannel channel = FileChannel.open(pBlock.mPath, StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.wrap(data);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, pBlock.mOffset + buffer.position()) < 0) {
+          throw new EOFException("Zip entry truncated: " + pBlock.mName);
+        }
+      }
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(data);
+
+    byte[] deflated = deflate(data, Deflater.DEFAULT_COMPRESSION, pBlock.last(), data.length);
+    if (pBlock.first() && pBlock.last()) {
+      return deflated == null
+          ? new Compressed(pBlock, STORED, crc.getValue(), Buffer.buffer(data))
+          : new Compressed(pBlock, DEFLATED, crc.getValue(), Buffer.buffer(deflated));
+    }
+
+    if (deflated == null) {
+      deflated = deflate(data, Deflater.NO_COMPRESSION, pBlock.last(), Integer.MAX_VALUE - 8);
+    }
+
+    return new Compressed(pBlock, DEFLATED, crc.getValue(), Buffer.buffer(deflated));
+  }
+
+  /**
+   * @return what to write next for the block: the local header of its entry if it is the first,
+   * its data, and the data descriptor of its entry if it is the last of several.
+   */
+  public Buffer add(Compressed pCompressed) {
+    Block block = pCompressed.mBlock;
+    byte[] name = block.mName.getBytes(StandardCharsets.UTF_8);
+    long dosTime = dosTime(block.mModified);
+    boolean single = block.first() && block.last();
+    int flags = single ? UTF8_NAMES : UTF8_NAMES | SIZES_AFTER_DATA;
+    Buffer out = Buffer.buffer(30 + name.length + pCompressed.mData.length() + 16);
+
+    if (block.first()) {
+      mEntryOffset = mOffset;
+      mEntryCrc = pCompressed.mCrc;
+      mEntryCompressedSize = pCompressed.mData.length();
+
+      out
+          .appendIntLE(LOCAL_HEADER)
+          .appendShortLE(VERSION)
+          .appendUnsignedShortLE(flags)
+          .appendShortLE(pCompressed.mMethod)
+          .appendUnsignedIntLE(dosTime)
+          .appendUnsignedIntLE(single ? pCompressed.mCrc : 0)
+          .appendUnsignedIntLE(single ? mEntryCompressedSize : 0)
+          .appendUnsignedIntLE(single ? block.mEntryLength : 0)
+          .appendUnsignedShortLE(name.length)
+          .appendUnsignedShortLE(0)
+          .appendBytes(name);
+
+    } else {
+      mEntryCrc = crc32Combine(mEntryCrc, pCompressed.mCrc, block.mLength);
+      mEntryCompressedSize += pCompressed.mData.length();
+    }
+
+    out.appendBuffer(pCompressed.mData);
+
+    if (block.last()) {
+      if (!single) {
+        out
+            .appendIntLE(DATA_DESCRIPTOR)
+            .appendUnsignedIntLE(mEntryCrc)
+            .appendUnsignedIntLE(mEntryCompressedSize)
+            .appendUnsignedIntLE(block.mEntryLength);
+      }
+
+      addCentralHeader(name, dosTime, flags, pCompressed.mMethod, block.mEntryLength);
+      mEntries++;
+    }
+
+    mOffset += out.length();
+    return out;
+  }
+
+  private void addCentralHeader(byte[] pName, long pDosTime, int pFlags, short pMethod, long pSize) {
+    boolean zip64Offset = mEntryOffset >= MAX_32;
+    mCentralDirectory
+        .appendIntLE(CENTRAL_HEADER)
+        .appendShortLE(VERSION)
+        .appendShortLE(VERSION)
+        .appendUnsignedShortLE(pFlags)
+        .appendShortLE(pMethod)
+        .appendUnsignedIntLE(pDosTime)
+        .appendUnsignedIntLE(mEntryCrc)
+        .appendUnsignedIntLE(mEntryCompressedSize)
+        .appendUnsignedIntLE(pSize)
+        .appendUnsignedShortLE(pName.length)
+        .appendUnsignedShortLE(zip64Offset ? 12 : 0)
+        .appendUnsignedShortLE(0)
+        .appendUnsignedShortLE(0)
+        .appendUnsignedShortLE(0)
+        .appendUnsignedIntLE(0)
+        .appendUnsignedIntLE(zip64Offset ? MAX_32 : mEntryOffset)
+        .appendBytes(pName);
+
+    if (zip64Offset) {
+      mCentralDirectory
+          .appendUnsignedShortLE(1)
+          .appendUnsignedShortLE(8)
+          .appendLongLE(mEntryOffset);
+    }
+  }
+
+  /**
+   * @return the central directory and end records that close the archive.
+   */
+  public Buffer finish() {
+    long directoryOffset = mOffset;
+    long directorySize = mCentralDirectory.length();
+    Buffer end = mCentralDirectory;
+
+    if (mEntries >= MAX_16 || directoryOffset >= MAX_32 || directorySize >= MAX_32) {
+      long zip64EndOffset = directoryOffset + directorySize;
+      end
+          .appendIntLE(ZIP64_END_OF_CENTRAL_DIRECTORY)
+          .appendLongLE(44)
+          .appendShortLE(VERSION)
+          .appendShortLE(VERSION)
+          .appendIntLE(0)
+          .appendIntLE(0)
+          .appendLongLE(mEntries)
+          .appendLongLE(mEntries)
+          .appendLongLE(directorySize)
+          .appendLongLE(directoryOffset)
+          .appendIntLE(ZIP64_END_LOCATOR)
+          .appendIntLE(0)
+          .appendLongLE(zip64EndOffset)
+          .appendIntLE(1);
+    }
+
+    return end
+        .appendIntLE(END_OF_CENTRAL_DIRECTORY)
+        .appendUnsignedShortLE(0)
+        .appendUnsignedShortLE(0)
+        .appendUnsignedShortLE((int) Math.min(mEntries, MAX_16))
+        .appendUnsignedShortLE((int) Math.min(mEntries, MAX_16))
+        .appendUnsignedIntLE(Math.min(directorySize, MAX_32))
+        .appendUnsignedIntLE(Math.min(directoryOffset, MAX_32))
+        .appendUnsignedShortLE(0);
+  }
+
+  private static long dosTime(long pMillis) {
+    LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(pMillis), ZoneId.systemDefault());
+    if (time.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+
+    return (long) (time.getYear() - 1980) << 25
+        | time.getMonthValue() << 21
+        | time.getDayOfMonth() << 16
+        | time.getHour() << 11
+        | time.getMinute() << 5
+        | time.getSecond() >> 1;
+  }
+
+  /**
+   * Deflates the data into raw deflate blocks, ending the stream when it is the last of the entry and
+   * otherwise flushing to a byte boundary, so that the output of the next block can follow it.
+   *
+   * @return the deflated data, or null if it would exceed the limit.
+   */
+  private static byte[] deflate(byte[] pData, int pLevel, boolean pLast, int pLimit) {
+    Deflater deflater = new Deflater(pLevel, true);
+    try {
+      deflater.setInput(pData);
+      if (pLast) deflater.finish();
+
+      byte[] deflated = new byte[Math.min(pLimit, Math.max(64, pData.length / 2))];
+      int length = 0;
+      while (true) {
+        if (length == deflated.length) {
+          if (length >= pLimit) return null;
+          deflated = Arrays.copyOf(deflated, (int) Math.min(2L * deflated.length, pLimit));
+        }
+
+        length += deflater.deflate(deflated, length, deflated.length - length, pLast ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        if (pLast ? deflater.finished() : length < deflated.length) {
+          return length < pLimit ? Arrays.copyOf(deflated, length) : null;
+        }
+      }
+
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @return the CRC-32 of two byte sequences appended to each other, from their own CRCs and the
+   * length of the second, as zlib's crc32_combine computes it.
+   */
+  static long crc32Combine(long pCrc1, long pCrc2, long pLength2) {
+    if (pLength2 <= 0) return pCrc1;
+
+    long[] even = new long[32];
+    long[] odd = new long[32];
+
+    // Operator for one zero bit, then two and four zero bits.
+    odd[0] = 0xedb88320L;
+    long row = 1;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+    gf2MatrixSquare(even, odd);
+    gf2MatrixSquare(odd, even);
+
+    long crc1 = pCrc1;
+    long length = pLength2;
+    do {
+      gf2MatrixSquare(even, odd);
+      if ((length & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+      length >>= 1;
+      if (length == 0) break;
+
+      gf2MatrixSquare(odd, even);
+      if ((length & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+      length >>= 1;
+    } while (length != 0);
+
+    return crc1 ^ pCrc2;
+  }
+
+  private static long gf2MatrixTimes(long[] pMatrix, long pVector) {
+    long sum = 0;
+    for (int i = 0; pVector != 0; i++, pVector >>>= 1) {
+      if ((pVector & 1) != 0) sum ^= pMatrix[i];
+    }
+    return sum;
+  }
+
+  private static void gf2MatrixSquare(long[] pSquare, long[] pMatrix) {
+    for (int n = 0; n < 32; n++) {
+      pSquare[n] = gf2MatrixTimes(pMatrix, pMatrix[n]);
+    }
+  }
+
+  /**
+   * A range of at most {@link #BLOCK_SIZE} bytes of an entry to compress.
+   */
+  public static class Block {
+    final String mName;
+    final Path mPath;
+    final long mEntryLength;
+    final long mModified;
+    final long mOffset;
+    final int mLength;
+
+    private Block(String pName, Path pPath, long pEntryLength, long pModified, long pOffset, int pLength) {
+      this.mName = pName;
+      this.mPath = pPath;
+      this.mEntryLength = pEntryLength;
+      this.mModified = pModified;
+      this.mOffset = pOffset;
+      this.mLength = pLength;
+    }
+
+    boolean first() {
+      return mOffset == 0;
+    }
+
+    boolean last() {
+      return mOffset + mLength == mEntryLength;
+    }
+  }
+
+  public static class Compressed {
+    final Block mBlock;
+    final short mMethod;
+    final long mCrc;
+    final Buffer mData;
+
+    private Compressed(Block pBlock, short pMethod, long pCrc, Buffer pData) {
+      this.mBlock = pBlock;
+      this.mMethod = pMethod;
+      this.mCrc = pCrc;
+      this.mData = pData;
+    }
+  }
+}
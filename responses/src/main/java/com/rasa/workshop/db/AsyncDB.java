@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Document;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+
+/**
+ * Non-blocking counterpart of {@link DB}. Every operation is executed off the event loop and its
+ * outcome, including the {@link DB} exceptions, is delivered through the returned {@link Future}.
+ */
+public interface AsyncDB {
+
+  String name();
+
+  Future<Document> createDocument(Document pDoc);
+
+  Future<Document> getDocument(String pCollectionId, String pDocId);
+
+  Future<Document> updateDocument(Document pDoc);
+
+  Future<Document> updateDocument(Document pDoc, long pExpectedVersion);
+
+  Future<Document> deleteDocument(String pCollectionId, String pDocId);
+
+  Future<Boolean> hasDocument(String pCollectionId, String pDocId);
+
+  Future<Collection> createCollection(Collection pCol);
+
+  /**
+   * @return the collection with its documents sorted by id. Their payloads may be read from disk
+   *     on first access, which blocks, so event-loop callers must read contents through
+   *     {@link #getDocuments} instead.
+   */
+  Future<Collection> getCollection(String pId);
+
+  Future<Collection> updateCollection(Collection pCol);
+
+  Future<Collection> deleteCollection(String pId);
+
+  Future<Boolean> hasCollection(String pId);
+
+  Future<List<BatchResult>> getDocuments(String pCollectionId, List<String> pDocIds);
+
+  Future<List<BatchResult>> putDocuments(List<Document> pDocs);
+
+  Future<List<BatchResult>> deleteDocuments(String pCollectionId, List<String> pDocIds);
+
+  Future<Void> createIndex(String pCollectionId, String pPath);
+
+  Future<List<Document>> query(Query pQuery);
+
+  Future<Snapshot> snapshot();
+
+  /**
+   * @return the blocking {@link DB} backing this instance, for callers that already run off the event loop.
+   */
+  DB sync();
+
+  void close();
+
+  static AsyncDB newAsyncDB(Vertx pVertx, DB pDB, JsonObject pConfig) {
+    return new WorkerAsyncDB(pVertx, pDB, pConfig);
+  }
+}
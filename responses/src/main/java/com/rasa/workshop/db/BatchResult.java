@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Document;
+
+/**
+ * Outcome of one item of a batch operation: the resulting document, or the exception the single
+ * document operation would have thrown.
+ */
+public class BatchResult {
+
+  private final String mId;
+  private final Document mDocument;
+  private final Exception mError;
+
+  private BatchResult(String pId, Document pDocument, Exception pError) {
+    mId = pId;
+    mDocument = pDocument;
+    mError = pError;
+  }
+
+  public static BatchResult success(String pId, Document pDocument) {
+    return new BatchResult(pId, pDocument, null);
+  }
+
+  public static BatchResult failure(String pId, Exception pError) {
+    return new BatchResult(pId, null, pError);
+  }
+
+  public String id() {
+    return mId;
+  }
+
+  /**
+   * @return the document, or null if the item failed.
+   */
+  public Document document() {
+    return mDocument;
+  }
+
+  /**
+   * @return the reason the item failed, or null if it succeeded.
+   */
+  public Exception error() {
+    return mError;
+  }
+
+  public boolean succeeded() {
+    return mError == null;
+  }
+}
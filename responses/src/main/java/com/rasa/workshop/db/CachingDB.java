@@ -0,0 +1,379 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import com.rasa.workshop.common.DocumentExistsException;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import io.vertx.core.json.JsonObject;
+
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Read-through {@link DB} decorator caching documents by collection and id, with their payload
+ * already parsed. Concurrent misses for the same document share a single load from the wrapped DB,
+ * run by the first caller outside of any cache lock.
+ *
+ * Documents found missing are cached as well, so requests for unknown ids do not reach the
+ * wrapped DB either, until the document is created.
+ *
+ * The cache holds at most the configured number of documents, each for at most the configured
+ * time, and is kept up to date by the writes made through it and the external changes reported by
+ * the wrapped DB.
+ */
+public class CachingDB
+    implements DB {
+
+  // Cached in place of documents known not to exist. Deletions cache such an id-less document
+  // carrying the deleted version instead, so they are ordered against writes.
+  private static final Document MISSING = Document.newBuilder().build();
+
+  private final DB mDelegate;
+  private final AsyncCache<DocumentKey, Document> mCache;
+
+  public CachingDB(DB pDelegate, JsonObject pConfig) {
+    mDelegate = pDelegate;
+
+    var builder = Caffeine
+        .newBuilder()
+        .maximumSize(pConfig.getLong(Constants.DB_CACHE_MAX_SIZE_KEY, Constants.DEFAULT_DB_CACHE_MAX_SIZE_VALUE))
+        .recordStats();
+
+    long ttl = pConfig.getLong(Constants.DB_CACHE_TTL_KEY, Constants.DEFAULT_DB_CACHE_TTL_VALUE);
+    if (ttl > 0) {
+      builder.expireAfterWrite(Duration.ofMillis(ttl));
+    }
+
+    mCache = builder.buildAsync();
+    mDelegate.watchExternalChanges(this::invalidate);
+  }
+
+  @Override
+  public String name() {
+    return mDelegate.name();
+  }
+
+  @Override
+  public Document createDocument(Document pDoc)
+      throws DocumentExistsException, DocumentException {
+    return cache(mDelegate.createDocument(pDoc));
+  }
+
+  @Override
+  public Document getDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    var key = new DocumentKey(pCollectionId, pDocId);
+    var loading = new CompletableFuture<Document>();
+    CompletableFuture<Document> doc = mCache.get(key, (k, executor) -> loading);
+
+    if (doc == loading) {
+      load(key, loading);
+    }
+
+    try {
+      Document result = doc.join();
+      if (isMissing(result)) {
+        throw DocumentNotFoundException.stackless("Document not found: " + pDocId);
+      }
+
+      return result;
+
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof DocumentNotFoundException) throw (DocumentNotFoundException) ex.getCause();
+      if (ex.getCause() instanceof DocumentException) throw (DocumentException) ex.getCause();
+      throw ex;
+    }
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc)
+      throws DocumentNotFoundException, DocumentException {
+    return cache(mDelegate.updateDocument(pDoc));
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc, long pExpectedVersion)
+      throws DocumentNotFoundException, DocumentVersionConflictException, DocumentException {
+    return cache(mDelegate.updateDocument(pDoc, pExpectedVersion));
+  }
+
+  @Override
+  public Document deleteDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    Document doc = mDelegate.deleteDocument(pCollectionId, pDocId);
+    cacheMissing(new DocumentKey(pCollectionId, pDocId), doc.version());
+    return doc;
+  }
+
+  @Override
+  public boolean hasDocument(String pCollectionId, String pDocId) {
+    Document doc = cached(new DocumentKey(pCollectionId, pDocId));
+    if (doc != null) return !isMissing(doc);
+
+    return mDelegate.hasDocument(pCollectionId, pDocId);
+  }
+
+  @Override
+  public Collection createCollection(Collection pCol)
+      throws DocumentExistsException, DocumentException {
+    return mDelegate.createCollection(pCol);
+  }
+
+  @Override
+  public Collection getCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    return mDelegate.getCollection(pId);
+  }
+
+  @Override
+  public Collection updateCollection(Collection pCol)
+      throws DocumentNotFoundException, DocumentException {
+    try {
+      return mDelegate.updateCollection(pCol);
+
+    } finally {
+      invalidateCollection(pCol.id());
+    }
+  }
+
+  @Override
+  public Collection deleteCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    try {
+      return mDelegate.deleteCollection(pId);
+
+    } finally {
+      invalidateCollection(pId);
+    }
+  }
+
+  @Override
+  public boolean hasCollection(String pId) {
+    return mDelegate.hasCollection(pId);
+  }
+
+  /**
+   * Serves the cached documents and reads the others from the wrapped DB in one batch, without
+   * caching them.
+   */
+  @Override
+  public List<BatchResult> getDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    BatchResult[] results = new BatchResult[pDocIds.size()];
+    Map<String, List<Integer>> misses = new HashMap<>();
+
+    for (int i = 0; i < pDocIds.size(); i++) {
+      Document doc = cached(new DocumentKey(pCollectionId, pDocIds.get(i)));
+      if (isMissing(doc)) {
+        results[i] = BatchResult.failure(pDocIds.get(i), DocumentNotFoundException.stackless("Document not found: " + pDocIds.get(i)));
+
+      } else if (doc != null) {
+        results[i] = BatchResult.success(pDocIds.get(i), doc);
+
+      } else {
+        misses.computeIfAbsent(pDocIds.get(i), id -> new ArrayList<>()).add(i);
+      }
+    }
+
+    if (!misses.isEmpty()) {
+      List<String> missedIds = new ArrayList<>(misses.keySet());
+      List<BatchResult> loaded = mDelegate.getDocuments(pCollectionId, missedIds);
+
+      for (int i = 0; i < missedIds.size(); i++) {
+        for (int index : misses.get(missedIds.get(i))) {
+          results[index] = loaded.get(i);
+        }
+      }
+    }
+
+    return List.of(results);
+  }
+
+  @Override
+  public List<BatchResult> putDocuments(List<Document> pDocs)
+      throws DocumentException {
+    List<BatchResult> results = mDelegate.putDocuments(pDocs);
+
+    for (BatchResult result : results) {
+      if (result.succeeded()) cache(result.document());
+    }
+
+    return results;
+  }
+
+  @Override
+  public List<BatchResult> deleteDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    List<BatchResult> results = mDelegate.deleteDocuments(pCollectionId, pDocIds);
+
+    for (BatchResult result : results) {
+      if (result.succeeded()) cacheMissing(new DocumentKey(pCollectionId, result.id()), result.document().version());
+    }
+
+    return results;
+  }
+
+  @Override
+  public void createIndex(String pCollectionId, String pPath)
+      throws DocumentNotFoundException, DocumentException {
+    mDelegate.createIndex(pCollectionId, pPath);
+  }
+
+  @Override
+  public List<Document> query(Query pQuery)
+      throws DocumentNotFoundException, DocumentException {
+    return mDelegate.query(pQuery);
+  }
+
+  @Override
+  public Snapshot snapshot()
+      throws DocumentException {
+    return mDelegate.snapshot();
+  }
+
+  @Override
+  public void watchExternalChanges(Consumer<Change> pListener) {
+    mDelegate.watchExternalChanges(pListener);
+  }
+
+  @Override
+  public JsonObject stats() {
+    CacheStats stats = mCache.synchronous().stats();
+
+    return mDelegate.stats().put("cache", new JsonObject()
+        .put("size", mCache.synchronous().estimatedSize())
+        .put("hits", stats.hitCount())
+        .put("misses", stats.missCount())
+        .put("loads", stats.loadSuccessCount())
+        .put("loadFailures", stats.loadFailureCount())
+        .put("evictions", stats.evictionCount()));
+  }
+
+  @Override
+  public void close() {
+    mDelegate.close();
+  }
+
+  /**
+   * Reads the document on behalf of every caller waiting for it, parsing its payload once here
+   * rather than in each of them. Failures are not cached.
+   */
+  private void load(DocumentKey pKey, CompletableFuture<Document> pLoading) {
+    try {
+      Document doc = mDelegate.getDocument(pKey.mCollectionId, pKey.mDocId);
+      doc.payload();
+      pLoading.complete(doc);
+
+    } catch (DocumentNotFoundException ex) {
+      pLoading.complete(MISSING);
+
+    } catch (UncheckedIOException ex) {
+      pLoading.completeExceptionally(new DocumentException("Unable to load document: " + pKey.mDocId, ex.getCause()));
+
+    } catch (Exception ex) {
+      pLoading.completeExceptionally(ex);
+    }
+  }
+
+  /**
+   * @return the cached document, a missing one (see {@link #isMissing}) if it is known not to
+   * exist, or null if it is not cached or still loading.
+   */
+  private Document cached(DocumentKey pKey) {
+    CompletableFuture<Document> doc = mCache.getIfPresent(pKey);
+    return doc != null && doc.isDone() && !doc.isCompletedExceptionally() ? doc.join() : null;
+  }
+
+  /**
+   * Caches a copy of the written document, which the writer may still modify, unless a concurrent
+   * write already cached a later version. Documents of unknown version are invalidated instead,
+   * since they cannot be ordered.
+   */
+  private Document cache(Document pDoc) {
+    var key = new DocumentKey(pDoc.collectionId(), pDoc.id());
+    if (pDoc.version() <= 0) {
+      mCache.synchronous().invalidate(key);
+      return pDoc;
+    }
+
+    Document copy = Document
+        .newBuilder()
+        .underCollection(pDoc.collectionId())
+        .withId(pDoc.id())
+        .withVersion(pDoc.version())
+        .withPayload(pDoc.payload() != null ? pDoc.payload().copy() : null)
+        .build();
+
+    mCache.asMap().compute(key, (k, cached) -> later(cached, copy.version()) ? cached : CompletableFuture.completedFuture(copy));
+    return pDoc;
+  }
+
+  /**
+   * Caches the document as missing after a deletion of the given version, unless a concurrent
+   * write already cached a later one.
+   */
+  private void cacheMissing(DocumentKey pKey, long pDeletedVersion) {
+    if (pDeletedVersion <= 0) {
+      mCache.synchronous().invalidate(pKey);
+      return;
+    }
+
+    Document missing = Document.newBuilder().withVersion(pDeletedVersion).build();
+    mCache.asMap().compute(pKey, (k, cached) -> later(cached, missing.version()) ? cached : CompletableFuture.completedFuture(missing));
+  }
+
+  /**
+   * @return true if the cached entry is loaded and supersedes a write of the given version: it holds
+   * a later version, or the deletion of that very version.
+   */
+  private static boolean later(CompletableFuture<Document> pCached, long pVersion) {
+    if (pCached == null || !pCached.isDone() || pCached.isCompletedExceptionally()) return false;
+
+    Document cached = pCached.join();
+    return cached.version() > pVersion || cached.version() == pVersion && isMissing(cached);
+  }
+
+  private static boolean isMissing(Document pDoc) {
+    return pDoc.id() == null;
+  }
+
+  private void invalidate(Change pChange) {
+    if (pChange.docId() == null) {
+      invalidateCollection(pChange.collectionId());
+
+    } else {
+      mCache.synchronous().invalidate(new DocumentKey(pChange.collectionId(), pChange.docId()));
+    }
+  }
+
+  private void invalidateCollection(String pCollectionId) {
+    mCache.asMap().keySet().removeIf(key -> key.mCollectionId.equals(pCollectionId));
+  }
+}
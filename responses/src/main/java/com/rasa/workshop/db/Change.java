@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A successful mutation of a document, or of a whole collection when it has no document id.
+ */
+public class Change {
+
+  public enum Op {
+    CREATE,
+    // Also reported for documents created by a bulk put, which does not tell creates from updates.
+    UPDATE,
+    DELETE
+  }
+
+  private final String mCollectionId;
+  private final String mDocId;
+  private final long mVersion;
+  private final Op mOp;
+  private final boolean mExternal;
+
+  Change(String pCollectionId, String pDocId, long pVersion, Op pOp, boolean pExternal) {
+    mCollectionId = pCollectionId;
+    mDocId = pDocId;
+    mVersion = pVersion;
+    mOp = pOp;
+    mExternal = pExternal;
+  }
+
+  public static Change fromJson(JsonObject pJson) {
+    return new Change(
+        pJson.getString("collection"),
+        pJson.getString("id"),
+        pJson.getLong("version", 0L),
+        Op.valueOf(pJson.getString("op").toUpperCase()),
+        pJson.getBoolean("external", false));
+  }
+
+  public String collectionId() {
+    return mCollectionId;
+  }
+
+  /**
+   * @return the id of the changed document, or null if the whole collection changed.
+   */
+  public String docId() {
+    return mDocId;
+  }
+
+  /**
+   * @return the version of the document after the change, its last version when deleted, or 0
+   * when unknown.
+   */
+  public long version() {
+    return mVersion;
+  }
+
+  public Op op() {
+    return mOp;
+  }
+
+  /**
+   * @return true if the change was made to the files of the DB from outside of it.
+   */
+  public boolean external() {
+    return mExternal;
+  }
+
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject()
+        .put("collection", mCollectionId)
+        .put("version", mVersion)
+        .put("op", mOp.name().toLowerCase())
+        .put("external", mExternal);
+
+    if (mDocId != null) {
+      json.put("id", mDocId);
+    }
+
+    return json;
+  }
+
+  @Override
+  public String toString() {
+    return toJson().encode();
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import com.rasa.workshop.common.DocumentExistsException;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * {@link DB} decorator that publishes a {@link Change} on the event bus, at {@link #address}, for
+ * every successful mutation, as well as for the edits the wrapped DB detects from outside of it.
+ * Changes are published as JSON once the mutation is acknowledged, so caches can invalidate the
+ * affected documents instead of polling.
+ */
+public class ChangeFeedDB
+    implements DB {
+
+  private static final String ADDRESS_PREFIX = "db.changes.";
+
+  private final DB mDelegate;
+  private final EventBus mEventBus;
+  private final String mAddress;
+
+  public ChangeFeedDB(DB pDelegate, EventBus pEventBus) {
+    mDelegate = pDelegate;
+    mEventBus = pEventBus;
+    mAddress = address(pDelegate.name());
+
+    mDelegate.watchExternalChanges(this::publish);
+  }
+
+  /**
+   * @return the event bus address the changes of the given DB are published at.
+   */
+  public static String address(String pDBName) {
+    return ADDRESS_PREFIX + pDBName;
+  }
+
+  @Override
+  public String name() {
+    return mDelegate.name();
+  }
+
+  @Override
+  public Document createDocument(Document pDoc)
+      throws DocumentExistsException, DocumentException {
+    Document doc = mDelegate.createDocument(pDoc);
+    publish(doc, Change.Op.CREATE);
+    return doc;
+  }
+
+  @Override
+  public Document getDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    return mDelegate.getDocument(pCollectionId, pDocId);
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc)
+      throws DocumentNotFoundException, DocumentException {
+    Document doc = mDelegate.updateDocument(pDoc);
+    publish(doc, Change.Op.UPDATE);
+    return doc;
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc, long pExpectedVersion)
+      throws DocumentNotFoundException, DocumentVersionConflictException, DocumentException {
+    Document doc = mDelegate.updateDocument(pDoc, pExpectedVersion);
+    publish(doc, Change.Op.UPDATE);
+    return doc;
+  }
+
+  @Override
+  public Document deleteDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    Document doc = mDelegate.deleteDocument(pCollectionId, pDocId);
+    publish(doc, Change.Op.DELETE);
+    return doc;
+  }
+
+  @Override
+  public boolean hasDocument(String pCollectionId, String pDocId) {
+    return mDelegate.hasDocument(pCollectionId, pDocId);
+  }
+
+  @Override
+  public Collection createCollection(Collection pCol)
+      throws DocumentExistsException, DocumentException {
+    Collection col = mDelegate.createCollection(pCol);
+    publish(new Change(pCol.id(), null, 0, Change.Op.CREATE, false));
+    return col;
+  }
+
+  @Override
+  public Collection getCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    return mDelegate.getCollection(pId);
+  }
+
+  @Override
+  public Collection updateCollection(Collection pCol)
+      throws DocumentNotFoundException, DocumentException {
+    Collection col = mDelegate.updateCollection(pCol);
+    publish(new Change(pCol.id(), null, 0, Change.Op.UPDATE, false));
+    return col;
+  }
+
+  @Override
+  public Collection deleteCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    Collection col = mDelegate.deleteCollection(pId);
+    publish(new Change(pId, null, 0, Change.Op.DELETE, false));
+    return col;
+  }
+
+  @Override
+  public boolean hasCollection(String pId) {
+    return mDelegate.hasCollection(pId);
+  }
+
+  @Override
+  public List<BatchResult> getDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    return mDelegate.getDocuments(pCollectionId, pDocIds);
+  }
+
+  @Override
+  public List<BatchResult> putDocuments(List<Document> pDocs)
+      throws DocumentException {
+    List<BatchResult> results = mDelegate.putDocuments(pDocs);
+    publish(results, Change.Op.UPDATE);
+    return results;
+  }
+
+  @Override
+  public List<BatchResult> deleteDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    List<BatchResult> results = mDelegate.deleteDocuments(pCollectionId, pDocIds);
+    publish(results, Change.Op.DELETE);
+    return results;
+  }
+
+  @Override
+  public void createIndex(String pCollectionId, String pPath)
+      throws DocumentNotFoundException, DocumentException {
+    mDelegate.createIndex(pCollectionId, pPath);
+  }
+
+  @Override
+  public List<Document> query(Query pQuery)
+      throws DocumentNotFoundException, DocumentException {
+    return mDelegate.query(pQuery);
+  }
+
+  @Override
+  public Snapshot snapshot()
+      throws DocumentException {
+    return mDelegate.snapshot();
+  }
+
+  @Override
+  public void watchExternalChanges(Consumer<Change> pListener) {
+    mDelegate.watchExternalChanges(pListener);
+  }
+
+  @Override
+  public JsonObject stats() {
+    return mDelegate.stats();
+  }
+
+  @Override
+  public void close() {
+    mDelegate.close();
+  }
+
+  private void publish(List<BatchResult> pResults, Change.Op pOp) {
+    for (BatchResult result : pResults) {
+      if (result.succeeded()) {
+        publish(result.document(), pOp);
+      }
+    }
+  }
+
+  private void publish(Document pDoc, Change.Op pOp) {
+    publish(new Change(pDoc.collectionId(), pDoc.id(), pDoc.version(), pOp, false));
+  }
+
+  private void publish(Change pChange) {
+    mEventBus.publish(mAddress, pChange.toJson());
+  }
+}
@@ -15,12 +15,18 @@
 package com.rasa.workshop.db;
 
 import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Constants;
 import com.rasa.workshop.common.Document;
 import com.rasa.workshop.common.DocumentException;
 import com.rasa.workshop.common.DocumentExistsException;
 import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
 import io.vertx.core.json.JsonObject;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
 public interface DB {
 
   String name();
@@ -34,6 +40,15 @@ public interface DB {
   Document updateDocument(Document pDoc)
       throws DocumentNotFoundException, DocumentException;
 
+  /**
+   * Replaces the document only if it is still at the expected version, so concurrent editors
+   * cannot overwrite each other's changes.
+   *
+   * @throws DocumentVersionConflictException if the document changed since that version was read.
+   */
+  Document updateDocument(Document pDoc, long pExpectedVersion)
+      throws DocumentNotFoundException, DocumentVersionConflictException, DocumentException;
+
   Document deleteDocument(String pCollectionId, String pDocId)
       throws DocumentNotFoundException, DocumentException;
 
@@ -42,6 +57,11 @@ public interface DB {
   Collection createCollection(Collection pCol)
       throws DocumentExistsException, DocumentException;
 
+  /**
+   * @return the collection with its documents sorted by id. Their payloads may only be read from
+   *     disk on first access, so this listing is meant for ids and versions; use
+   *     {@link #getDocuments} for contents.
+   */
   Collection getCollection(String pId)
       throws DocumentNotFoundException, DocumentException;
 
@@ -53,7 +73,151 @@ public interface DB {
 
   boolean hasCollection(String pId);
 
+  /**
+   * Reads several documents of a collection at once.
+   *
+   * @return one result per requested id, in request order.
+   */
+  default List<BatchResult> getDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    List<BatchResult> results = new ArrayList<>(pDocIds.size());
+
+    for (String docId : pDocIds) {
+      try {
+        results.add(BatchResult.success(docId, getDocument(pCollectionId, docId)));
+
+      } catch (DocumentNotFoundException | DocumentException ex) {
+        results.add(BatchResult.failure(docId, ex));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Creates or replaces several documents at once. When a document appears more than once, the
+   * last occurrence wins and every occurrence reports its outcome.
+   *
+   * @return one result per document, in request order.
+   */
+  default List<BatchResult> putDocuments(List<Document> pDocs)
+      throws DocumentException {
+    List<BatchResult> results = new ArrayList<>(pDocs.size());
+
+    for (Document doc : pDocs) {
+      try {
+        results.add(BatchResult.success(doc.id(), hasDocument(doc.collectionId(), doc.id())
+            ? updateDocument(doc)
+            : createDocument(doc)));
+
+      } catch (DocumentNotFoundException | DocumentExistsException | DocumentException ex) {
+        results.add(BatchResult.failure(doc.id(), ex));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Deletes several documents of a collection at once.
+   *
+   * @return one result per requested id, in request order, holding the deleted documents.
+   */
+  default List<BatchResult> deleteDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    List<BatchResult> results = new ArrayList<>(pDocIds.size());
+
+    for (String docId : pDocIds) {
+      try {
+        results.add(BatchResult.success(docId, deleteDocument(pCollectionId, docId)));
+
+      } catch (DocumentNotFoundException | DocumentException ex) {
+        results.add(BatchResult.failure(docId, ex));
+      }
+    }
+
+    return results;
+  }
+
+  /**
+   * Declares a secondary index on a JSON path of the documents of a collection, speeding up
+   * {@link #query(Query)} on that path. Engines without index support ignore it.
+   */
+  default void createIndex(String pCollectionId, String pPath)
+      throws DocumentNotFoundException, DocumentException {}
+
+  /**
+   * @return the documents matching the query, in index order when the path is indexed, otherwise
+   * in id order.
+   */
+  default List<Document> query(Query pQuery)
+      throws DocumentNotFoundException, DocumentException {
+    List<Document> matches = new ArrayList<>();
+
+    for (Document doc : getCollection(pQuery.collectionId()).documents()) {
+      if (matches.size() >= pQuery.limit()) break;
+      if (pQuery.matches(doc.payload())) matches.add(doc);
+    }
+
+    return matches;
+  }
+
+  /**
+   * Takes a consistent point-in-time copy of the files of this DB, for exports and backups. The
+   * caller closes the snapshot once done with it.
+   */
+  default Snapshot snapshot()
+      throws DocumentException {
+    throw new DocumentException("Snapshots are not supported by DB " + name());
+  }
+
+  /**
+   * Reports edits made to the files of this DB from outside of it, e.g. by another process sharing
+   * the state folder. Engines that cannot detect such edits never call the listener.
+   */
+  default void watchExternalChanges(Consumer<Change> pListener) {}
+
+  /**
+   * @return counters of this DB, such as cache hits, for monitoring. Empty when it keeps none.
+   */
+  default JsonObject stats() {
+    return new JsonObject();
+  }
+
+  /**
+   * Releases files, threads and any other resources held by this DB.
+   */
+  default void close() {}
+
   static DB newDB(JsonObject pConfig) {
-    return new JsonDB(pConfig);
+    String engine = pConfig.getString(Constants.DB_ENGINE_KEY, Constants.DEFAULT_DB_ENGINE_VALUE);
+    DB db;
+
+    switch (engine) {
+      case Constants.JSON_DB_ENGINE:
+        db = new JsonDB(pConfig);
+        break;
+
+      case Constants.LOG_DB_ENGINE:
+        db = new LogDB(pConfig);
+        break;
+
+      case Constants.SHARDED_DB_ENGINE:
+        db = new ShardedDB(pConfig);
+        break;
+
+      default:
+        throw new IllegalArgumentException("Unknown DB engine: " + engine);
+    }
+
+    if (pConfig.getBoolean(Constants.WRITE_BEHIND_KEY, Constants.DEFAULT_WRITE_BEHIND_VALUE)) {
+      db = new WriteBehindDB(db, pConfig);
+    }
+
+    if (pConfig.getBoolean(Constants.DB_CACHE_KEY, Constants.DEFAULT_DB_CACHE_VALUE)) {
+      db = new CachingDB(db, pConfig);
+    }
+
+    return db;
   }
 }
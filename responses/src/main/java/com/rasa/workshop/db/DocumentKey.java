@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import java.util.Objects;
+
+/**
+ * Identifies a document across collections, for the maps kept by {@link DB} decorators.
+ */
+class DocumentKey {
+  final String mCollectionId;
+  final String mDocId;
+
+  DocumentKey(String pCollectionId, String pDocId) {
+    this.mCollectionId = pCollectionId;
+    this.mDocId = pDocId;
+  }
+
+  @Override
+  public boolean equals(Object pOther) {
+    if (!(pOther instanceof DocumentKey)) return false;
+    var other = (DocumentKey) pOther;
+    return mCollectionId.equals(other.mCollectionId) && mDocId.equals(other.mDocId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(mCollectionId, mDocId);
+  }
+
+  @Override
+  public String toString() {
+    return mCollectionId + "/" + mDocId;
+  }
+}
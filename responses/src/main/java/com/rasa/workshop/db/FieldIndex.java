@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+/**
+ * Sorted index of the documents of one collection by the scalar value found at a JSON path.
+ *
+ * Lookups run concurrently with updates and may miss or return documents being changed at that
+ * moment, so callers re-check the documents they load against the query. Updates are serialised.
+ */
+class FieldIndex {
+
+  private final Query mSelector;
+  private final ConcurrentSkipListMap<Object, Set<String>> mEntries;
+  private final Map<String, Object> mValues;
+
+  FieldIndex(String pCollectionId, String pPath) {
+    mSelector = Query
+        .newBuilder()
+        .underCollection(pCollectionId)
+        .withPath(pPath)
+        .build();
+    mEntries = new ConcurrentSkipListMap<>(Query.VALUE_ORDER);
+    mValues = new ConcurrentHashMap<>();
+  }
+
+  String path() {
+    return mSelector.path();
+  }
+
+  synchronized void put(String pDocId, JsonObject pPayload) {
+    remove(pDocId);
+
+    Object value = mSelector.valueAt(pPayload);
+    if (!Query.isScalar(value)) return;
+
+    mValues.put(pDocId, value);
+    mEntries.computeIfAbsent(value, v -> new ConcurrentSkipListSet<>()).add(pDocId);
+  }
+
+  synchronized void remove(String pDocId) {
+    Object value = mValues.remove(pDocId);
+    if (value == null) return;
+
+    Set<String> ids = mEntries.get(value);
+    ids.remove(pDocId);
+    if (ids.isEmpty()) {
+      mEntries.remove(value);
+    }
+  }
+
+  /**
+   * @return the ids of the documents within the query range, in value order.
+   */
+  Stream<String> lookup(Query pQuery) {
+    NavigableMap<Object, Set<String>> range = mEntries;
+    if (pQuery.lower() != null) {
+      range = range.tailMap(pQuery.lower(), pQuery.lowerInclusive());
+    }
+    if (pQuery.upper() != null) {
+      range = range.headMap(pQuery.upper(), pQuery.upperInclusive());
+    }
+
+    return range
+        .entrySet()
+        .stream()
+        .filter(entry -> pQuery.matchesValue(entry.getKey()))
+        .flatMap(entry -> entry.getValue().stream());
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a DB folder and the collection folders in it on a dedicated thread, reporting which
+ * collections and documents changed on disk. Hidden files, such as temporary files, are ignored.
+ *
+ * Events are only hints: bursts of them are collapsed, and the receiver compares the files with
+ * what it knows to tell its own writes from edits made from outside. A collection is reported as
+ * a whole when it appeared, disappeared, or lost events to an overflow.
+ */
+class FolderWatcher
+    implements AutoCloseable {
+
+  private static final Logger LOGGER = Logger.getLogger(FolderWatcher.class.getName());
+
+  private final Path mRootFolder;
+  private final WatchService mService;
+  private final Consumer<String> mCollectionListener;
+  private final BiConsumer<String, String> mDocumentListener;
+  private final Thread mThread;
+  // The collection id of each watched folder, null for the root folder. Only used by the thread.
+  private final Map<WatchKey, String> mKeys;
+
+  FolderWatcher(String pName, Path pRootFolder, Consumer<String> pCollectionListener, BiConsumer<String, String> pDocumentListener)
+      throws IOException {
+    mRootFolder = pRootFolder;
+    mService = pRootFolder.getFileSystem().newWatchService();
+    mCollectionListener = pCollectionListener;
+    mDocumentListener = pDocumentListener;
+    mKeys = new HashMap<>();
+
+    mKeys.put(register(pRootFolder), null);
+    try (DirectoryStream<Path> folders = Files.newDirectoryStream(pRootFolder, FolderWatcher::isWatched)) {
+      for (Path folder : folders) {
+        if (Files.isDirectory(folder)) {
+          mKeys.put(register(folder), folder.getFileName().toString());
+        }
+      }
+    }
+
+    mThread = new Thread(this::watchLoop, pName);
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  @Override
+  public void close() {
+    try {
+      mService.close();
+
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Unable to close watcher of " + mRootFolder, ex);
+    }
+  }
+
+  private void watchLoop() {
+    try {
+      while (true) {
+        Set<String> collections = new LinkedHashSet<>();
+        Map<String, Set<String>> documents = new LinkedHashMap<>();
+
+        // Drain every pending key, so a file touched several times is only reported once.
+        WatchKey key = mService.take();
+        while (key != null) {
+          poll(key, collections, documents);
+          key = mService.poll();
+        }
+
+        for (String collectionId : collections) {
+          documents.remove(collectionId);
+          dispatch(() -> mCollectionListener.accept(collectionId));
+        }
+
+        for (Map.Entry<String, Set<String>> entry : documents.entrySet()) {
+          for (String docId : entry.getValue()) {
+            dispatch(() -> mDocumentListener.accept(entry.getKey(), docId));
+          }
+        }
+      }
+
+    } catch (InterruptedException | ClosedWatchServiceException ex) {
+      // Closed.
+    }
+  }
+
+  private void poll(WatchKey pKey, Set<String> pCollections, Map<String, Set<String>> pDocuments) {
+    String collectionId = mKeys.get(pKey);
+
+    for (WatchEvent<?> event : pKey.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        if (collectionId == null) {
+          pCollections.addAll(mKeys.values());
+          pCollections.remove(null);
+          rescan(pCollections);
+
+        } else {
+          pCollections.add(collectionId);
+        }
+        continue;
+      }
+
+      Path name = (Path) event.context();
+      if (!isWatched(name)) continue;
+
+      if (collectionId == null) {
+        Path folder = mRootFolder.resolve(name);
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(folder)) {
+          watch(folder);
+        }
+        pCollections.add(name.toString());
+
+      } else {
+        pDocuments.computeIfAbsent(collectionId, id -> new LinkedHashSet<>()).add(name.toString());
+      }
+    }
+
+    if (!pKey.reset()) {
+      // The folder is gone.
+      mKeys.remove(pKey);
+      if (collectionId != null) {
+        pCollections.add(collectionId);
+      }
+    }
+  }
+
+  /**
+   * Watches the collection folders that appeared while root events were lost.
+   */
+  private void rescan(Set<String> pCollections) {
+    try (DirectoryStream<Path> folders = Files.newDirectoryStream(mRootFolder, FolderWatcher::isWatched)) {
+      for (Path folder : folders) {
+        if (Files.isDirectory(folder)) {
+          watch(folder);
+          pCollections.add(folder.getFileName().toString());
+        }
+      }
+
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Unable to list " + mRootFolder, ex);
+    }
+  }
+
+  private void watch(Path pFolder) {
+    try {
+      mKeys.put(register(pFolder), pFolder.getFileName().toString());
+
+    } catch (IOException ex) {
+      // Deleted again before it could be watched, its delete event follows.
+      LOGGER.log(Level.FINE, "Unable to watch " + pFolder, ex);
+    }
+  }
+
+  private WatchKey register(Path pFolder)
+      throws IOException {
+    return pFolder.register(mService,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_DELETE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  private static void dispatch(Runnable pListener) {
+    try {
+      pListener.run();
+
+    } catch (RuntimeException ex) {
+      LOGGER.log(Level.WARNING, "Change listener failed", ex);
+    }
+  }
+
+  private static boolean isWatched(Path pPath) {
+    return !pPath.getFileName().toString().startsWith(".");
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Constants;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes written files durable according to the configured fsync policy:
+ *
+ * <ul>
+ *   <li>always: every commit fsyncs its files before returning.</li>
+ *   <li>batch: commits and renames are collected until the batch is full or its delay expires, then
+ *   the whole batch is fsynced at once and all its callers are completed together.</li>
+ *   <li>interval: commits return immediately and dirty files are fsynced periodically.</li>
+ * </ul>
+ *
+ * Files and directories touched several times within a batch are only fsynced once.
+ */
+class GroupCommitter {
+
+  private static final Logger LOGGER = Logger.getLogger(GroupCommitter.class.getName());
+
+  enum Policy {
+    ALWAYS,
+    BATCH,
+    INTERVAL
+  }
+
+  private final Policy mPolicy;
+  private final int mBatchSize;
+  private final long mDelay;
+  private final Object mMonitor;
+  private final Thread mFlusher;
+
+  private Set<Path> mPending;
+  private List<Rename> mRenames;
+  private List<CompletableFuture<Void>> mWaiters;
+  private long mFirstPendingAt;
+  private boolean mClosed;
+
+  GroupCommitter(String pName, JsonObject pConfig) {
+    String policy = pConfig.getString(Constants.FSYNC_POLICY_KEY, Constants.DEFAULT_FSYNC_POLICY_VALUE);
+    mPolicy = Policy.valueOf(policy.toUpperCase());
+    mBatchSize = mPolicy == Policy.BATCH
+        ? pConfig.getInteger(Constants.FSYNC_BATCH_SIZE_KEY, Constants.DEFAULT_FSYNC_BATCH_SIZE_VALUE)
+        : Integer.MAX_VALUE;
+    mDelay = mPolicy == Policy.BATCH
+        ? pConfig.getLong(Constants.FSYNC_BATCH_DELAY_KEY, Constants.DEFAULT_FSYNC_BATCH_DELAY_VALUE)
+        : pConfig.getLong(Constants.FSYNC_INTERVAL_KEY, Constants.DEFAULT_FSYNC_INTERVAL_VALUE);
+    mMonitor = new Object();
+    mPending = new LinkedHashSet<>();
+    mRenames = new ArrayList<>();
+    mWaiters = new ArrayList<>();
+
+    if (mPolicy != Policy.ALWAYS) {
+      mFlusher = new Thread(this::flushLoop, "fsync-" + pName);
+      mFlusher.setDaemon(true);
+      mFlusher.start();
+
+    } else {
+      mFlusher = null;
+    }
+  }
+
+  /**
+   * Requests the given files or directories to be made durable.
+   *
+   * @return a future completed once they are durable, or right away under the interval policy.
+   */
+  CompletableFuture<Void> commit(Path... pPaths) {
+    if (mPolicy == Policy.ALWAYS) {
+      try {
+        for (Path path : pPaths) {
+          fsync(path);
+        }
+        return CompletableFuture.completedFuture(null);
+
+      } catch (IOException ex) {
+        return CompletableFuture.failedFuture(ex);
+      }
+    }
+
+    synchronized (mMonitor) {
+      if (mClosed) {
+        // The flusher is gone and would never complete the commit.
+        return CompletableFuture.failedFuture(new IOException("Committer is closed"));
+      }
+
+      if (isIdle()) {
+        mFirstPendingAt = System.currentTimeMillis();
+      }
+
+      mPending.addAll(List.of(pPaths));
+
+      CompletableFuture<Void> future;
+      if (mPolicy == Policy.BATCH) {
+        future = new CompletableFuture<>();
+        mWaiters.add(future);
+
+      } else {
+        future = CompletableFuture.completedFuture(null);
+      }
+
+      mMonitor.notifyAll();
+      return future;
+    }
+  }
+
+  /**
+   * Renames a file written aside over the real one. Under the policies that promise durability the
+   * file is fsynced before the rename, so that the rename can never expose a partially written
+   * file, and its directory after it. Under the batch policy the flusher does this for the whole
+   * batch: it fsyncs all the queued files, renames them, then fsyncs their directories once.
+   *
+   * @return a future completed once the file is in place, and durable unless under the interval
+   * policy.
+   */
+  CompletableFuture<Void> rename(Path pFile, Path pTarget) {
+    if (mPolicy != Policy.BATCH) {
+      try {
+        if (mPolicy == Policy.ALWAYS) {
+          fsync(pFile);
+          move(pFile, pTarget);
+          fsync(pTarget.getParent());
+          return CompletableFuture.completedFuture(null);
+        }
+
+        move(pFile, pTarget);
+        return commit(pTarget, pTarget.getParent());
+
+      } catch (IOException ex) {
+        return CompletableFuture.failedFuture(ex);
+      }
+    }
+
+    synchronized (mMonitor) {
+      if (mClosed) {
+        return CompletableFuture.failedFuture(new IOException("Committer is closed"));
+      }
+
+      if (isIdle()) {
+        mFirstPendingAt = System.currentTimeMillis();
+      }
+
+      Rename rename = new Rename(pFile, pTarget);
+      mRenames.add(rename);
+      mMonitor.notifyAll();
+      return rename.mFuture;
+    }
+  }
+
+  /**
+   * Flushes whatever is pending and stops the flusher. Commits requested afterwards fail.
+   */
+  void close() {
+    if (mFlusher == null) return;
+
+    synchronized (mMonitor) {
+      mClosed = true;
+      mMonitor.notifyAll();
+    }
+
+    try {
+      mFlusher.join();
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      Set<Path> batch;
+      List<Rename> renames;
+      List<CompletableFuture<Void>> waiters;
+
+      synchronized (mMonitor) {
+        try {
+          while (!mClosed && isIdle()) {
+            mMonitor.wait();
+          }
+
+          long remaining;
+          while (!mClosed && mPending.size() + mRenames.size() < mBatchSize
+              && (remaining = mFirstPendingAt + mDelay - System.currentTimeMillis()) > 0) {
+            mMonitor.wait(remaining);
+          }
+
+        } catch (InterruptedException ex) {
+          mClosed = true;
+        }
+
+        if (isIdle() && mClosed) return;
+
+        batch = mPending;
+        renames = mRenames;
+        waiters = mWaiters;
+        mPending = new LinkedHashSet<>();
+        mRenames = new ArrayList<>();
+        mWaiters = new ArrayList<>();
+      }
+
+      for (Rename rename : renames) {
+        try {
+          fsync(rename.mFile);
+          move(rename.mFile, rename.mTarget);
+          batch.add(rename.mTarget.getParent());
+
+        } catch (IOException ex) {
+          LOGGER.log(Level.SEVERE, "Unable to rename " + rename.mFile, ex);
+          rename.mFuture.completeExceptionally(ex);
+        }
+      }
+
+      IOException failure = null;
+      for (Path path : batch) {
+        try {
+          fsync(path);
+
+        } catch (IOException ex) {
+          LOGGER.log(Level.SEVERE, "Unable to fsync " + path, ex);
+          failure = ex;
+        }
+      }
+
+      for (Rename rename : renames) {
+        waiters.add(rename.mFuture);
+      }
+
+      for (CompletableFuture<Void> waiter : waiters) {
+        if (failure == null) {
+          waiter.complete(null);
+
+        } else {
+          waiter.completeExceptionally(failure);
+        }
+      }
+    }
+  }
+
+  private boolean isIdle() {
+    return mPending.isEmpty() && mRenames.isEmpty();
+  }
+
+  /**
+   * Left overridable so that tests can count the fsyncs a batch shares.
+   */
+  void fsync(Path pPath)
+      throws IOException {
+    if (!Files.exists(pPath)) return;
+
+    boolean isDirectory = Files.isDirectory(pPath);
+    try (FileChannel channel = FileChannel.open(pPath, isDirectory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+      channel.force(true);
+
+    } catch (IOException ex) {
+      // Not every platform lets directories be opened for fsync.
+      if (!isDirectory) throw ex;
+    }
+  }
+
+  private static void move(Path pFile, Path pTarget)
+      throws IOException {
+    Files.move(pFile, pTarget, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static class Rename {
+
+    private final Path mFile;
+    private final Path mTarget;
+    private final CompletableFuture<Void> mFuture;
+
+    Rename(Path pFile, Path pTarget) {
+      mFile = pFile;
+      mTarget = pTarget;
+      mFuture = new CompletableFuture<>();
+    }
+  }
+}
@@ -20,14 +20,42 @@ import com.rasa.workshop.common.Document;
 import com.rasa.workshop.common.DocumentException;
 import com.rasa.workshop.common.DocumentExistsException;
 import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
 import com.rasa.workshop.common.Utils;
 import io.vertx.core.json.JsonObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,19 +64,72 @@ public class JsonDB
 
   private static final Logger LOGGER = Logger.getLogger(JsonDB.class.getName());
 
+  private static final int LOCK_STRIPES = 64;
+
+  private static final long ANY_VERSION = -1;
+
+  private static final int READ_ATTEMPTS = 3;
+
   private final String mName;
   private final File mRootFolder;
-  private final ReentrantReadWriteLock mReadWriteLock;
+  // Document operations hold their collection stripe shared and their document stripe as needed,
+  // so only collection-level writes exclude a whole collection.
+  private final ReentrantReadWriteLock[] mCollectionLocks;
+  private final ReentrantReadWriteLock[] mDocumentLocks;
+  private final Map<String, Manifest> mManifests;
+  private final Map<String, Map<String, FieldIndex>> mIndexes;
+  private final StorageCodec mCodec;
+  private final GroupCommitter mCommitter;
+  // Batch reads wait for document locks held by batch writes, so they cannot share a pool.
+  private final ExecutorService mBatchReadExecutor;
+  private final ExecutorService mBatchWriteExecutor;
+  private final List<Consumer<Change>> mListeners;
+  private final FolderWatcher mWatcher;
 
   public JsonDB(JsonObject pConfig) {
     mName = pConfig.getString(Constants.DB_NAME_KEY, Constants.DEFAULT_DB_NAME_VALUE);
     String stateFolder = pConfig.getString(Constants.STATE_FOLDER_KEY, Constants.DEFAULT_STATE_FOLDER_VALUE);
     mRootFolder = new File(stateFolder, mName);
-    mReadWriteLock = new ReentrantReadWriteLock();
+    mCollectionLocks = newStripes();
+    mDocumentLocks = newStripes();
 
     if (!mRootFolder.exists() && !mRootFolder.mkdirs()) {
       throw new RuntimeException("Unable to initialize DB. Failed to create root folder.");
     }
+    Snapshot.deleteStale(mRootFolder);
+
+    mManifests = new ConcurrentHashMap<>();
+    mCodec = new StorageCodec(pConfig);
+    mCommitter = new GroupCommitter("json-db-" + mName, pConfig);
+    int parallelism = pConfig.getInteger(Constants.DB_BATCH_PARALLELISM_KEY, Constants.DEFAULT_DB_BATCH_PARALLELISM_VALUE);
+    mBatchReadExecutor = newBatchExecutor("json-db-batch-read-" + mName, parallelism);
+    mBatchWriteExecutor = newBatchExecutor("json-db-batch-write-" + mName, parallelism);
+    mIndexes = new ConcurrentHashMap<>();
+    mListeners = new CopyOnWriteArrayList<>();
+
+    JsonObject indexes = pConfig.getJsonObject(Constants.DB_INDEXES_KEY, new JsonObject());
+    for (String collectionId : indexes.fieldNames()) {
+      for (Object path : indexes.getJsonArray(collectionId)) {
+        try {
+          createIndex(collectionId, (String) path);
+
+        } catch (DocumentException ex) {
+          throw new RuntimeException("Unable to initialize DB. Failed to build index " + collectionId + "/" + path, ex);
+        }
+      }
+    }
+
+    if (pConfig.getBoolean(Constants.DB_WATCH_KEY, Constants.DEFAULT_DB_WATCH_VALUE)) {
+      try {
+        mWatcher = new FolderWatcher("json-db-watcher-" + mName, mRootFolder.toPath(), this::refreshCollection, this::refreshDocument);
+
+      } catch (IOException ex) {
+        throw new RuntimeException("Unable to initialize DB. Failed to watch root folder.", ex);
+      }
+
+    } else {
+      mWatcher = null;
+    }
   }
 
   @Override
@@ -59,140 +140,278 @@ public class JsonDB
   @Override
   public Document createDocument(Document pDoc)
       throws DocumentExistsException, DocumentException {
-    Lock lock = mReadWriteLock.writeLock();
+    ManifestEntry entry;
+    Lock collectionLock = collectionLock(pDoc.collectionId()).readLock();
+    Lock lock = documentLock(pDoc.collectionId(), pDoc.id()).writeLock();
+    collectionLock.lock();
     lock.lock();
 
     try {
-      File file = new File(new File(mRootFolder, pDoc.collectionId()), pDoc.id());
-      if (file.exists()) {
+      Manifest manifest = manifest(pDoc.collectionId());
+      if (manifest.get(pDoc.id()) != null) {
         throw new DocumentExistsException("There's an existing document: " + pDoc.id());
       }
 
-      Utils.jsonToFile(file, pDoc.payload());
-
-      return Document
-          .newBuilder()
-          .underCollection(pDoc.collectionId())
-          .withId(pDoc.id())
-          .withPayload(pDoc.payload())
-          .build();
+      File file = documentFile(pDoc.collectionId(), pDoc.id());
+      entry = putDocument(manifest, file, pDoc, 0);
 
     } catch (IOException ex) {
       throw new DocumentException("Unable to create document: " + pDoc.id(), ex);
 
     } finally {
       lock.unlock();
+      collectionLock.unlock();
     }
+
+    return entry.toDocument(pDoc.collectionId(), pDoc.id(), pDoc.payload());
   }
 
+  /**
+   * Reads the document from disk without locking, see {@link #readEntry}. Payloads are not kept in
+   * memory: {@link CachingDB} caches them, within bounds.
+   */
   @Override
   public Document getDocument(String pCollectionId, String pDocId)
       throws DocumentNotFoundException, DocumentException {
-    Lock lock = mReadWriteLock.readLock();
-    lock.lock();
-
     try {
-      File file = new File(new File(mRootFolder, pCollectionId), pDocId);
-
-      if (!file.exists()) {
-        throw new DocumentNotFoundException("Document not found: " + pDocId);
+      Document doc = readEntry(pCollectionId, pDocId);
+      if (doc == null) {
+        throw DocumentNotFoundException.stackless("Document not found: " + pDocId);
       }
 
-      return Document
-          .newBuilder()
-          .underCollection(pCollectionId)
-          .withId(pDocId)
-          .withPayload(Utils.fileToJson(file))
-          .build();
+      return doc;
+
+    } catch (NoSuchFileException ex) {
+      throw DocumentNotFoundException.stackless("Document not found: " + pDocId);
 
     } catch (IOException ex) {
       throw new DocumentException("Unable to get document: " + pDocId, ex);
-
-    } finally {
-      lock.unlock();
     }
   }
 
   @Override
   public Document updateDocument(Document pDoc)
       throws DocumentNotFoundException, DocumentException {
-    Lock lock = mReadWriteLock.writeLock();
+    try {
+      return updateDocument(pDoc, ANY_VERSION);
+
+    } catch (DocumentVersionConflictException ex) {
+      // Never thrown without an expected version.
+      throw new DocumentException("Unable to update document: " + pDoc.id(), ex);
+    }
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc, long pExpectedVersion)
+      throws DocumentNotFoundException, DocumentVersionConflictException, DocumentException {
+    ManifestEntry entry;
+    Lock collectionLock = collectionLock(pDoc.collectionId()).readLock();
+    Lock lock = documentLock(pDoc.collectionId(), pDoc.id()).writeLock();
+    collectionLock.lock();
     lock.lock();
 
     try {
-      File file = new File(new File(mRootFolder, pDoc.collectionId()), pDoc.id());
-
-      if (!file.exists()) {
+      Manifest manifest = manifest(pDoc.collectionId());
+      ManifestEntry current = manifest.get(pDoc.id());
+      if (current == null) {
         throw new DocumentNotFoundException("Document not found: " + pDoc.id());
       }
 
-      Utils.jsonToFile(file, pDoc.payload());
+      if (pExpectedVersion != ANY_VERSION && current.mVersion != pExpectedVersion) {
+        throw new DocumentVersionConflictException("Document " + pDoc.id() + " is at version "
+            + current.mVersion + ", not " + pExpectedVersion);
+      }
+
+      File file = documentFile(pDoc.collectionId(), pDoc.id());
+      entry = putDocument(manifest, file, pDoc, current.mVersion);
+
+    } catch (NoSuchFileException ex) {
+      throw new DocumentNotFoundException("Document not found: " + pDoc.id());
 
-      return Document
-          .newBuilder()
-          .underCollection(pDoc.collectionId())
-          .withId(pDoc.id())
-          .withPayload(pDoc.payload())
-          .build();
     } catch (IOException ex) {
       throw new DocumentException("Unable to update document: " + pDoc.id(), ex);
 
     } finally {
       lock.unlock();
+      collectionLock.unlock();
     }
+
+    return entry.toDocument(pDoc.collectionId(), pDoc.id(), pDoc.payload());
   }
 
   @Override
   public Document deleteDocument(String pCollectionId, String pDocId)
       throws DocumentNotFoundException, DocumentException {
-    Lock lock = mReadWriteLock.writeLock();
+    ManifestEntry entry;
+    JsonObject json;
+    CompletableFuture<Void> commit;
+    Lock collectionLock = collectionLock(pCollectionId).readLock();
+    Lock lock = documentLock(pCollectionId, pDocId).writeLock();
+    collectionLock.lock();
     lock.lock();
 
     try {
-      File file = new File(new File(mRootFolder, pCollectionId), pDocId);
-
-      if (!file.exists()) {
+      Manifest manifest = manifest(pCollectionId);
+      entry = manifest.get(pDocId);
+      if (entry == null) {
         throw new DocumentNotFoundException("Document not found: " + pDocId);
       }
 
-      var json = Utils.fileToJson(file);
+      File file = documentFile(pCollectionId, pDocId);
+      json = readDocument(file);
 
       if (!file.delete()) {
         throw new DocumentException("Unable to delete document: " + pDocId);
       }
 
-      return Document
-          .newBuilder()
-          .underCollection(pCollectionId)
-          .withId(pDocId)
-          .withPayload(json)
-          .build();
+      manifest.remove(pDocId);
+      unindexDocument(pCollectionId, pDocId);
+      commit = mCommitter.commit(file.getParentFile().toPath());
+
+    } catch (NoSuchFileException ex) {
+      throw new DocumentNotFoundException("Document not found: " + pDocId);
 
     } catch (IOException ex) {
       throw new DocumentException("Unable to delete document: " + pDocId, ex);
 
     } finally {
       lock.unlock();
+      collectionLock.unlock();
     }
+
+    awaitCommit(commit, "Unable to delete document: " + pDocId);
+
+    return Document
+        .newBuilder()
+        .underCollection(pCollectionId)
+        .withId(pDocId)
+        .withVersion(entry.mVersion)
+        .withPayload(json)
+        .build();
   }
 
   @Override
   public boolean hasDocument(String pCollectionId, String pDocId) {
-    Lock lock = mReadWriteLock.readLock();
-    lock.lock();
+    try {
+      return manifest(pCollectionId).get(pDocId) != null;
+
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Reads without locking like {@link #getDocument}, loading the payloads in parallel.
+   */
+  @Override
+  public List<BatchResult> getDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    List<Callable<BatchResult>> tasks = new ArrayList<>(pDocIds.size());
+    for (String docId : pDocIds) {
+      tasks.add(() -> {
+        try {
+          return BatchResult.success(docId, getDocument(pCollectionId, docId));
+
+        } catch (DocumentNotFoundException | DocumentException ex) {
+          return BatchResult.failure(docId, ex);
+        }
+      });
+    }
+
+    return runBatch(mBatchReadExecutor, tasks);
+  }
+
+  /**
+   * Takes the locks of each collection once, writes its files in parallel, publishes them to the
+   * manifest in one swap and fsyncs them as one commit.
+   */
+  @Override
+  public List<BatchResult> putDocuments(List<Document> pDocs)
+      throws DocumentException {
+    var results = new BatchResult[pDocs.size()];
+    Map<String, Map<String, Integer>> lastIndexes = new LinkedHashMap<>();
+    for (int d = 0; d < pDocs.size(); d++) {
+      Document doc = pDocs.get(d);
+      lastIndexes.computeIfAbsent(doc.collectionId(), id -> new LinkedHashMap<>()).put(doc.id(), d);
+    }
+
+    for (Map.Entry<String, Map<String, Integer>> collection : lastIndexes.entrySet()) {
+      putDocuments(collection.getKey(), collection.getValue(), pDocs, results);
+    }
+
+    for (int d = 0; d < pDocs.size(); d++) {
+      Document doc = pDocs.get(d);
+      results[d] = results[lastIndexes.get(doc.collectionId()).get(doc.id())];
+    }
+
+    return List.of(results);
+  }
+
+  @Override
+  public List<BatchResult> deleteDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    Map<String, BatchResult> results = new LinkedHashMap<>();
+    for (String docId : pDocIds) {
+      results.put(docId, null);
+    }
+
+    CompletableFuture<Void> commit = null;
+    List<Lock> locks = lockDocuments(pCollectionId, results.keySet());
 
     try {
-      return new File(new File(mRootFolder, pCollectionId), pDocId).exists();
+      Manifest manifest = manifest(pCollectionId);
+      List<Callable<BatchResult>> tasks = new ArrayList<>(results.size());
+      for (String docId : results.keySet()) {
+        tasks.add(() -> removeDocument(manifest, pCollectionId, docId));
+      }
+
+      List<String> deleted = new ArrayList<>();
+      for (BatchResult result : runBatch(mBatchWriteExecutor, tasks)) {
+        results.put(result.id(), result);
+        if (result.succeeded()) deleted.add(result.id());
+      }
+
+      if (!deleted.isEmpty()) {
+        manifest.removeAll(deleted);
+        for (String docId : deleted) {
+          unindexDocument(pCollectionId, docId);
+        }
+        commit = mCommitter.commit(new File(mRootFolder, pCollectionId).toPath());
+      }
+
+    } catch (NoSuchFileException ex) {
+      for (String docId : results.keySet()) {
+        results.put(docId, BatchResult.failure(docId, new DocumentNotFoundException("Document not found: " + docId)));
+      }
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to delete documents of " + pCollectionId, ex);
 
     } finally {
-      lock.unlock();
+      unlock(locks);
+    }
+
+    if (commit != null) {
+      awaitCommit(commit, "Unable to delete documents of " + pCollectionId);
+    }
+
+    // Repeated ids answer like deleting them one after the other would.
+    List<BatchResult> ordered = new ArrayList<>(pDocIds.size());
+    Set<String> seen = new HashSet<>();
+    for (String docId : pDocIds) {
+      BatchResult result = results.get(docId);
+      ordered.add(seen.add(docId) || !result.succeeded()
+          ? result
+          : BatchResult.failure(docId, new DocumentNotFoundException("Document not found: " + docId)));
     }
+    return ordered;
   }
 
   @Override
   public Collection createCollection(Collection pCol)
       throws DocumentExistsException, DocumentException {
-    Lock lock = mReadWriteLock.writeLock();
+    CompletableFuture<Void> commit;
+    Lock lock = collectionLock(pCol.id()).writeLock();
     lock.lock();
 
     try {
@@ -205,21 +424,27 @@ public class JsonDB
         throw new DocumentException("Unable to create collection: " + pCol.id());
       }
 
-      return Collection
-          .newBuilder()
-          .withId(pCol.id())
-          .withPayload(new JsonObject())
-          .build();
+      mManifests.put(pCol.id(), new Manifest(new TreeMap<>()));
+
+      commit = mCommitter.commit(mRootFolder.toPath());
 
     } finally {
       lock.unlock();
     }
+
+    awaitCommit(commit, "Unable to create collection: " + pCol.id());
+
+    return Collection
+        .newBuilder()
+        .withId(pCol.id())
+        .withPayload(new JsonObject())
+        .build();
   }
 
   @Override
   public Collection getCollection(String pId)
       throws DocumentNotFoundException, DocumentException {
-    Lock lock = mReadWriteLock.readLock();
+    Lock lock = collectionLock(pId).readLock();
     lock.lock();
 
     try {
@@ -230,27 +455,22 @@ public class JsonDB
 
       var builder = Collection
           .newBuilder()
-          .withId(pId)
-          .withPayload(new JsonObject());
+          .withId(pId);
 
-      Files.walk(file.toPath()).skip(1).forEach(path -> {
-        File docFile = path.toFile();
-        try {
-          var json = Utils.fileToJson(docFile);
-          var doc = Document
-              .newBuilder()
-              .underCollection(pId)
-              .withId(docFile.getName())
-              .withPayload(json)
-              .build();
-          builder.addDocument(doc);
-
-        } catch (IOException ex) {
-          LOGGER.log(Level.SEVERE, "Unable to read JSON from " + docFile, ex);
-        }
-      });
+      int count = 0;
+      long size = 0;
+      long modified = 0;
+      for (Map.Entry<String, ManifestEntry> entry : manifest(pId).entries().entrySet()) {
+        builder.addDocument(entry.getValue().toListedDocument(pId, entry.getKey()));
 
-      return builder.build();
+        count++;
+        size += entry.getValue().mSize;
+        modified = Math.max(modified, entry.getValue().mVersion);
+      }
+
+      return builder
+          .withPayload(new JsonObject().put("count", count).put("size", size).put("modified", modified))
+          .build();
 
     } catch (IOException ex) {
       throw new DocumentException("Unable to get collection: " + pId, ex);
@@ -263,7 +483,7 @@ public class JsonDB
   @Override
   public Collection updateCollection(Collection pCol)
       throws DocumentNotFoundException, DocumentException {
-    Lock lock = mReadWriteLock.writeLock();
+    Lock lock = collectionLock(pCol.id()).writeLock();
     lock.lock();
 
     try {
@@ -285,7 +505,8 @@ public class JsonDB
   @Override
   public Collection deleteCollection(String pId)
       throws DocumentNotFoundException, DocumentException {
-    Lock lock = mReadWriteLock.writeLock();
+    CompletableFuture<Void> commit;
+    Lock lock = collectionLock(pId).writeLock();
     lock.lock();
 
     try {
@@ -295,11 +516,9 @@ public class JsonDB
       }
 
       Utils.deleteFolder(file);
-
-      return Collection
-          .newBuilder()
-          .withId(pId)
-          .build();
+      mManifests.remove(pId);
+      clearIndexes(pId);
+      commit = mCommitter.commit(mRootFolder.toPath());
 
     } catch (IOException ex) {
       throw new DocumentException("Unable to delete collection: " + pId, ex);
@@ -307,11 +526,18 @@ public class JsonDB
     } finally {
       lock.unlock();
     }
+
+    awaitCommit(commit, "Unable to delete collection: " + pId);
+
+    return Collection
+        .newBuilder()
+        .withId(pId)
+        .build();
   }
 
   @Override
   public boolean hasCollection(String pId) {
-    Lock lock = mReadWriteLock.readLock();
+    Lock lock = collectionLock(pId).readLock();
     lock.lock();
 
     try {
@@ -321,4 +547,772 @@ public class JsonDB
       lock.unlock();
     }
   }
+
+  /**
+   * Builds the index from the current documents of the collection, if it exists. Indexes may be
+   * declared before their collection is created.
+   */
+  @Override
+  public void createIndex(String pCollectionId, String pPath)
+      throws DocumentException {
+    Lock lock = collectionLock(pCollectionId).writeLock();
+    lock.lock();
+
+    try {
+      var indexes = mIndexes.computeIfAbsent(pCollectionId, id -> new ConcurrentHashMap<>());
+      if (indexes.containsKey(pPath)) return;
+
+      var index = new FieldIndex(pCollectionId, pPath);
+      File folder = new File(mRootFolder, pCollectionId);
+      if (folder.exists()) {
+        for (Map.Entry<String, ManifestEntry> entry : manifest(pCollectionId).entries().entrySet()) {
+          index.put(entry.getKey(), readDocument(new File(folder, entry.getKey())));
+        }
+      }
+
+      indexes.put(pPath, index);
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to create index: " + pCollectionId + "/" + pPath, ex);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Answers from the index on the query path when there is one, loading only the documents it
+   * points to, and falls back to scanning the collection otherwise.
+   */
+  @Override
+  public List<Document> query(Query pQuery)
+      throws DocumentNotFoundException, DocumentException {
+    var indexes = mIndexes.get(pQuery.collectionId());
+    FieldIndex index = indexes != null ? indexes.get(pQuery.path()) : null;
+    if (index == null) return DB.super.query(pQuery);
+
+    if (!hasCollection(pQuery.collectionId())) {
+      throw new DocumentNotFoundException("Collection not found: " + pQuery.collectionId());
+    }
+
+    List<Document> matches = new ArrayList<>();
+    Iterator<String> docIds = index.lookup(pQuery).iterator();
+
+    while (matches.size() < pQuery.limit() && docIds.hasNext()) {
+      try {
+        Document doc = getDocument(pQuery.collectionId(), docIds.next());
+        // The index may lag behind a concurrent update.
+        if (pQuery.matches(doc.payload())) {
+          matches.add(doc);
+        }
+
+      } catch (DocumentNotFoundException ex) {
+        // Deleted since the lookup.
+      }
+    }
+
+    return matches;
+  }
+
+  /**
+   * Links every document file into the snapshot while holding all collection locks exclusively,
+   * which only lasts as long as creating the links takes.
+   */
+  @Override
+  public Snapshot snapshot()
+      throws DocumentException {
+    List<Snapshot.Copy> copies = new ArrayList<>();
+    Snapshot snapshot;
+    List<Lock> locks = lockAll();
+
+    try {
+      snapshot = linkSnapshot(copies);
+
+    } finally {
+      unlock(locks);
+    }
+
+    copySnapshot(snapshot, copies);
+    return snapshot;
+  }
+
+  /**
+   * Locks every collection exclusively, which blocks all writes to the DB.
+   *
+   * @return the acquired locks, to release with {@link #unlock(List)}.
+   */
+  List<Lock> lockAll() {
+    List<Lock> locks = new ArrayList<>(mCollectionLocks.length);
+    for (ReentrantReadWriteLock stripe : mCollectionLocks) {
+      Lock lock = stripe.writeLock();
+      lock.lock();
+      locks.add(lock);
+    }
+    return locks;
+  }
+
+  /**
+   * Links every document file into a new snapshot, adding those that could not be linked to the
+   * copies to make with {@link #copySnapshot} once the locks are released. Callers hold all the
+   * locks returned by {@link #lockAll()}, from any thread.
+   */
+  Snapshot linkSnapshot(List<Snapshot.Copy> pCopies)
+      throws DocumentException {
+    File folder;
+    try {
+      folder = Snapshot.newFolder(mRootFolder);
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to snapshot DB " + mName, ex);
+    }
+
+    List<Snapshot.Entry> entries = new ArrayList<>();
+    List<Snapshot.Copy> copies = new ArrayList<>();
+    try {
+      File[] collections = mRootFolder.listFiles(file -> file.isDirectory() && isDocumentFile(file.toPath()));
+      if (collections != null) {
+        for (File collection : collections) {
+          Path target = Files.createDirectory(folder.toPath().resolve(collection.getName()));
+
+          for (Map.Entry<String, ManifestEntry> entry : manifest(collection.getName()).entries().entrySet()) {
+            Path link = target.resolve(entry.getKey());
+            Snapshot.link(new File(collection, entry.getKey()).toPath(), link, entry.getValue().mSize, copies);
+            entries.add(new Snapshot.Entry(collection.getName() + "/" + entry.getKey(), link,
+                entry.getValue().mSize, entry.getValue().mVersion));
+          }
+        }
+      }
+
+    } catch (IOException ex) {
+      Snapshot.close(copies);
+      new Snapshot(folder, entries).close();
+      throw new DocumentException("Unable to snapshot DB " + mName, ex);
+    }
+
+    pCopies.addAll(copies);
+    return new Snapshot(folder, entries);
+  }
+
+  /**
+   * Copies the files of the snapshot that could not be linked, closing the snapshot if that fails.
+   */
+  void copySnapshot(Snapshot pSnapshot, List<Snapshot.Copy> pCopies)
+      throws DocumentException {
+    try {
+      Snapshot.copy(pCopies);
+
+    } catch (IOException ex) {
+      pSnapshot.close();
+      throw new DocumentException("Unable to snapshot DB " + mName, ex);
+    }
+  }
+
+  /**
+   * Edits are only detected while the {@link Constants#DB_WATCH_KEY} watcher runs. Documents edited
+   * from outside are re-read on next access.
+   */
+  @Override
+  public void watchExternalChanges(Consumer<Change> pListener) {
+    mListeners.add(pListener);
+  }
+
+  @Override
+  public void close() {
+    if (mWatcher != null) mWatcher.close();
+    mCommitter.close();
+    mBatchReadExecutor.shutdown();
+    mBatchWriteExecutor.shutdown();
+  }
+
+  /**
+   * Writes the given documents of one collection, the last occurrence of each id given by its index.
+   */
+  private void putDocuments(String pCollectionId, Map<String, Integer> pIndexes, List<Document> pDocs, BatchResult[] pResults)
+      throws DocumentException {
+    List<Lock> locks = lockDocuments(pCollectionId, pIndexes.keySet());
+
+    try {
+      Manifest manifest;
+      try {
+        manifest = manifest(pCollectionId);
+
+      } catch (IOException ex) {
+        for (Map.Entry<String, Integer> doc : pIndexes.entrySet()) {
+          pResults[doc.getValue()] = BatchResult.failure(doc.getKey(),
+              new DocumentException("Unable to put document: " + doc.getKey(), ex));
+        }
+        return;
+      }
+
+      Map<String, CompletableFuture<ManifestEntry>> writes = new ConcurrentHashMap<>();
+      List<Callable<BatchResult>> tasks = new ArrayList<>(pIndexes.size());
+      for (int index : pIndexes.values()) {
+        Document doc = pDocs.get(index);
+        tasks.add(() -> {
+          try {
+            ManifestEntry current = manifest.get(doc.id());
+            File file = documentFile(pCollectionId, doc.id());
+            writes.put(doc.id(), writeEntry(file, doc, current != null ? current.mVersion : 0));
+            return BatchResult.success(doc.id(), doc);
+
+          } catch (IOException ex) {
+            return BatchResult.failure(doc.id(), new DocumentException("Unable to put document: " + doc.id(), ex));
+          }
+        });
+      }
+
+      // The committer renames the files into place, all in the same batch when it groups them, so
+      // the outcome of an item is only known once its write was awaited.
+      Map<String, ManifestEntry> written = new HashMap<>();
+      for (BatchResult result : runBatch(mBatchWriteExecutor, tasks)) {
+        if (result.succeeded()) {
+          Document doc = result.document();
+          try {
+            ManifestEntry entry = awaitWrite(writes.get(doc.id()));
+            written.put(doc.id(), entry);
+            indexDocument(pCollectionId, doc.id(), doc.payload());
+            result = BatchResult.success(doc.id(), entry.toDocument(pCollectionId, doc.id(), doc.payload()));
+
+          } catch (IOException ex) {
+            result = BatchResult.failure(doc.id(), new DocumentException("Unable to put document: " + doc.id(), ex));
+          }
+        }
+
+        pResults[pIndexes.get(result.id())] = result;
+      }
+
+      manifest.putAll(written);
+
+    } finally {
+      unlock(locks);
+    }
+  }
+
+  private BatchResult removeDocument(Manifest pManifest, String pCollectionId, String pDocId) {
+    try {
+      ManifestEntry entry = pManifest.get(pDocId);
+      if (entry == null) {
+        return BatchResult.failure(pDocId, new DocumentNotFoundException("Document not found: " + pDocId));
+      }
+
+      File file = documentFile(pCollectionId, pDocId);
+      JsonObject json = readDocument(file);
+      if (!file.delete()) {
+        return BatchResult.failure(pDocId, new DocumentException("Unable to delete document: " + pDocId));
+      }
+
+      return BatchResult.success(pDocId, Document
+          .newBuilder()
+          .underCollection(pCollectionId)
+          .withId(pDocId)
+          .withVersion(entry.mVersion)
+          .withPayload(json)
+          .build());
+
+    } catch (IOException ex) {
+      return BatchResult.failure(pDocId, new DocumentException("Unable to delete document: " + pDocId, ex));
+    }
+  }
+
+  /**
+   * Runs the items of a batch on the batch pool and waits for all of them. Items report their own
+   * failures, so the returned list has one result per task, in task order.
+   */
+  private static List<BatchResult> runBatch(ExecutorService pExecutor, List<Callable<BatchResult>> pTasks)
+      throws DocumentException {
+    try {
+      if (pTasks.size() == 1) {
+        return List.of(pTasks.get(0).call());
+      }
+
+      List<BatchResult> results = new ArrayList<>(pTasks.size());
+      for (Future<BatchResult> result : pExecutor.invokeAll(pTasks)) {
+        results.add(result.get());
+      }
+      return results;
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new DocumentException("Interrupted while running batch", ex);
+
+    } catch (Exception ex) {
+      throw new DocumentException("Unable to run batch", ex);
+    }
+  }
+
+  /**
+   * Locks the collection shared and the stripes of the given documents exclusively, stripes in
+   * ascending order so that concurrent batches cannot deadlock.
+   *
+   * @return the acquired locks, to release with {@link #unlock(List)}.
+   */
+  private List<Lock> lockDocuments(String pCollectionId, Iterable<String> pDocIds) {
+    var stripes = new TreeSet<Integer>();
+    for (String docId : pDocIds) {
+      stripes.add(documentStripe(pCollectionId, docId));
+    }
+
+    List<Lock> locks = new ArrayList<>(stripes.size() + 1);
+    locks.add(collectionLock(pCollectionId).readLock());
+    for (int stripe : stripes) {
+      locks.add(mDocumentLocks[stripe].writeLock());
+    }
+
+    for (Lock lock : locks) {
+      lock.lock();
+    }
+    return locks;
+  }
+
+  static void unlock(List<Lock> pLocks) {
+    for (int l = pLocks.size() - 1; l >= 0; l--) {
+      pLocks.get(l).unlock();
+    }
+  }
+
+  /**
+   * Drops a collection deleted from outside, then reconciles its documents with the folder.
+   */
+  private void refreshCollection(String pCollectionId) {
+    Change change = null;
+    Lock lock = collectionLock(pCollectionId).writeLock();
+    lock.lock();
+
+    try {
+      if (!new File(mRootFolder, pCollectionId).isDirectory()) {
+        if (mManifests.remove(pCollectionId) != null) {
+          clearIndexes(pCollectionId);
+          change = new Change(pCollectionId, null, 0, Change.Op.DELETE, true);
+        }
+      }
+
+    } finally {
+      lock.unlock();
+    }
+
+    if (change != null) {
+      publish(change);
+      return;
+    }
+
+    Set<String> docIds = new TreeSet<>();
+    Manifest manifest = mManifests.get(pCollectionId);
+    if (manifest != null) {
+      docIds.addAll(manifest.entries().keySet());
+    }
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(new File(mRootFolder, pCollectionId).toPath())) {
+      for (Path path : paths) {
+        if (isDocumentFile(path)) docIds.add(path.getFileName().toString());
+      }
+
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Unable to list collection " + pCollectionId, ex);
+    }
+
+    for (String docId : docIds) {
+      refreshDocument(pCollectionId, docId);
+    }
+  }
+
+  /**
+   * Brings the manifest entry and indexes of a document in line with its file. A file at the
+   * version and size of its entry was written by this DB and is left alone; anything else was
+   * edited from outside and is published as an external change.
+   */
+  private void refreshDocument(String pCollectionId, String pDocId) {
+    Change change = null;
+    Lock collectionLock = collectionLock(pCollectionId).readLock();
+    Lock lock = documentLock(pCollectionId, pDocId).writeLock();
+    collectionLock.lock();
+    lock.lock();
+
+    try {
+      File file = documentFile(pCollectionId, pDocId);
+      if (!file.getParentFile().isDirectory()) return;
+
+      // Nothing of a collection is cached until it is first accessed, so every event is external.
+      Manifest manifest = mManifests.get(pCollectionId);
+      ManifestEntry entry = manifest != null ? manifest.get(pDocId) : null;
+
+      BasicFileAttributes attributes = null;
+      try {
+        attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+      } catch (NoSuchFileException ex) {
+        // Deleted.
+      }
+
+      if (attributes == null || !attributes.isRegularFile()) {
+        if (manifest == null) {
+          change = new Change(pCollectionId, pDocId, 0, Change.Op.DELETE, true);
+
+        } else if (entry != null) {
+          manifest.remove(pDocId);
+          unindexDocument(pCollectionId, pDocId);
+          change = new Change(pCollectionId, pDocId, entry.mVersion, Change.Op.DELETE, true);
+        }
+        return;
+      }
+
+      long version = attributes.lastModifiedTime().toMillis();
+      if (manifest == null) {
+        change = new Change(pCollectionId, pDocId, version, Change.Op.UPDATE, true);
+        return;
+      }
+
+      if (entry != null && entry.mVersion == version && entry.mSize == attributes.size()) return;
+
+      var indexes = mIndexes.get(pCollectionId);
+      if (indexes != null && !indexes.isEmpty()) {
+        try {
+          indexDocument(pCollectionId, pDocId, readDocument(file));
+
+        } catch (IOException | RuntimeException ex) {
+          // Likely still being written, the next event of the file fixes it.
+          LOGGER.log(Level.FINE, "Unable to index document " + pCollectionId + "/" + pDocId, ex);
+          unindexDocument(pCollectionId, pDocId);
+        }
+      }
+
+      manifest.put(pDocId, new ManifestEntry(attributes.size(), version));
+      change = new Change(pCollectionId, pDocId, version, entry == null ? Change.Op.CREATE : Change.Op.UPDATE, true);
+
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Unable to refresh document " + pCollectionId + "/" + pDocId, ex);
+
+    } finally {
+      lock.unlock();
+      collectionLock.unlock();
+
+      if (change != null) publish(change);
+    }
+  }
+
+  private void publish(Change pChange) {
+    for (Consumer<Change> listener : mListeners) {
+      listener.accept(pChange);
+    }
+  }
+
+  private static ExecutorService newBatchExecutor(String pName, int pThreads) {
+    return Executors.newFixedThreadPool(pThreads, runnable -> {
+      Thread thread = new Thread(runnable, pName);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static ReentrantReadWriteLock[] newStripes() {
+    var stripes = new ReentrantReadWriteLock[LOCK_STRIPES];
+    for (int s = 0; s < stripes.length; s++) {
+      stripes[s] = new ReentrantReadWriteLock();
+    }
+    return stripes;
+  }
+
+  private ReentrantReadWriteLock collectionLock(String pCollectionId) {
+    return mCollectionLocks[stripe(pCollectionId.hashCode())];
+  }
+
+  private ReentrantReadWriteLock documentLock(String pCollectionId, String pDocId) {
+    return mDocumentLocks[documentStripe(pCollectionId, pDocId)];
+  }
+
+  private static int documentStripe(String pCollectionId, String pDocId) {
+    return stripe(31 * pCollectionId.hashCode() + pDocId.hashCode());
+  }
+
+  private static int stripe(int pHash) {
+    return (pHash ^ (pHash >>> 16)) & (LOCK_STRIPES - 1);
+  }
+
+  /**
+   * @return the ids, sizes and versions of the documents of a collection, listed from its folder
+   * the first time the collection is accessed and kept up to date by every mutation after that.
+   */
+  private Manifest manifest(String pCollectionId)
+      throws IOException {
+    Manifest manifest = mManifests.get(pCollectionId);
+    if (manifest != null) return manifest;
+
+    try {
+      return mManifests.computeIfAbsent(pCollectionId, this::loadManifest);
+
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  private Manifest loadManifest(String pCollectionId) {
+    var entries = new TreeMap<String, ManifestEntry>();
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(new File(mRootFolder, pCollectionId).toPath())) {
+      for (Path path : paths) {
+        if (!isDocumentFile(path)) continue;
+
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.isRegularFile()) {
+          entries.put(path.getFileName().toString(),
+              new ManifestEntry(attributes.size(), attributes.lastModifiedTime().toMillis()));
+        }
+      }
+
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+
+    return new Manifest(entries);
+  }
+
+  /**
+   * Writes the document at the version following the given one and publishes it in the manifest
+   * and indexes. Callers hold the document write lock, until the file is in place.
+   */
+  private ManifestEntry putDocument(Manifest pManifest, File pFile, Document pDoc, long pPreviousVersion)
+      throws IOException {
+    ManifestEntry entry = awaitWrite(writeEntry(pFile, pDoc, pPreviousVersion));
+    pManifest.put(pDoc.id(), entry);
+    indexDocument(pDoc.collectionId(), pDoc.id(), pDoc.payload());
+    return entry;
+  }
+
+  /**
+   * Writes the document at the version following the given one, without publishing it.
+   *
+   * @return a future completed once the file is in place.
+   */
+  private CompletableFuture<ManifestEntry> writeEntry(File pFile, Document pDoc, long pPreviousVersion)
+      throws IOException {
+    long version = Versions.next(pPreviousVersion);
+    return writeDocument(pFile, pDoc.payload(), version)
+        .thenApply(size -> new ManifestEntry(size, version));
+  }
+
+  private void indexDocument(String pCollectionId, String pDocId, JsonObject pPayload) {
+    var indexes = mIndexes.get(pCollectionId);
+    if (indexes == null) return;
+
+    for (FieldIndex index : indexes.values()) {
+      index.put(pDocId, pPayload);
+    }
+  }
+
+  private void unindexDocument(String pCollectionId, String pDocId) {
+    var indexes = mIndexes.get(pCollectionId);
+    if (indexes == null) return;
+
+    for (FieldIndex index : indexes.values()) {
+      index.remove(pDocId);
+    }
+  }
+
+  /**
+   * Empties the indexes of a deleted collection, keeping them declared for when it is created again.
+   */
+  private void clearIndexes(String pCollectionId) {
+    var indexes = mIndexes.get(pCollectionId);
+    if (indexes == null) return;
+
+    indexes.replaceAll((path, index) -> new FieldIndex(pCollectionId, path));
+  }
+
+  /**
+   * Documents are read into the heap rather than mapped: they are parsed whole right away, and a
+   * mapping would keep Windows from replacing or deleting the file.
+   */
+  private JsonObject readDocument(File pFile)
+      throws IOException {
+    return mCodec.decode(Files.readAllBytes(pFile.toPath()));
+  }
+
+  private File documentFile(String pCollectionId, String pDocId) {
+    return new File(new File(mRootFolder, pCollectionId), pDocId);
+  }
+
+  /**
+   * Writes the document to a hidden temporary file next to it and has the committer rename it into
+   * place. Under the always and batch fsync policies the temporary file is made durable before the
+   * rename, so a crash never leaves a half written document behind; under the interval policy it
+   * may. The version is kept as the file modification time.
+   *
+   * @return a future of the size of the file, completed once it is in place.
+   */
+  private CompletableFuture<Integer> writeDocument(File pFile, JsonObject pPayload, long pVersion)
+      throws IOException {
+    Path tmp = pFile.toPath().resolveSibling("." + pFile.getName() + ".tmp");
+    byte[] bytes = mCodec.encode(pPayload);
+    Files.write(tmp, bytes);
+    Files.setLastModifiedTime(tmp, FileTime.fromMillis(pVersion));
+    return mCommitter.rename(tmp, pFile.toPath()).thenApply(none -> bytes.length);
+  }
+
+  private static boolean isDocumentFile(Path pPath) {
+    return !pPath.getFileName().toString().startsWith(".");
+  }
+
+  /**
+   * Waits, under the document locks, until the committer renamed a written file into place.
+   */
+  private static <T> T awaitWrite(CompletableFuture<T> pWrite)
+      throws IOException {
+    try {
+      return pWrite.join();
+
+    } catch (CompletionException ex) {
+      if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+      throw new IOException(ex.getCause());
+    }
+  }
+
+  /**
+   * Waits, outside of the DB lock so concurrent writers can share the same fsync, until the
+   * committer made the mutation durable.
+   */
+  private static void awaitCommit(CompletableFuture<Void> pCommit, String pMessage)
+      throws DocumentException {
+    try {
+      pCommit.join();
+
+    } catch (CompletionException ex) {
+      throw new DocumentException(pMessage, ex.getCause());
+    }
+  }
+
+  /**
+   * The documents of a collection as an immutable sorted map, replaced as a whole on every
+   * mutation so readers always see a consistent snapshot without locking.
+   */
+  private static class Manifest {
+
+    private volatile NavigableMap<String, ManifestEntry> mEntries;
+
+    Manifest(NavigableMap<String, ManifestEntry> pEntries) {
+      mEntries = Collections.unmodifiableNavigableMap(pEntries);
+    }
+
+    NavigableMap<String, ManifestEntry> entries() {
+      return mEntries;
+    }
+
+    ManifestEntry get(String pDocId) {
+      return mEntries.get(pDocId);
+    }
+
+    void put(String pDocId, ManifestEntry pEntry) {
+      putAll(Map.of(pDocId, pEntry));
+    }
+
+    synchronized void putAll(Map<String, ManifestEntry> pEntries) {
+      var entries = new TreeMap<>(mEntries);
+      entries.putAll(pEntries);
+      mEntries = Collections.unmodifiableNavigableMap(entries);
+    }
+
+    void remove(String pDocId) {
+      removeAll(List.of(pDocId));
+    }
+
+    synchronized void removeAll(List<String> pDocIds) {
+      var entries = new TreeMap<>(mEntries);
+      if (!entries.keySet().removeAll(pDocIds)) return;
+
+      mEntries = Collections.unmodifiableNavigableMap(entries);
+    }
+  }
+
+  /**
+   * What the manifest knows of a document: its size and version, never its payload, which is read
+   * from disk on every access.
+   */
+  private class ManifestEntry {
+
+    final long mSize;
+    final long mVersion;
+
+    ManifestEntry(long pSize, long pVersion) {
+      mSize = pSize;
+      mVersion = pVersion;
+    }
+
+    Document toDocument(String pCollectionId, String pDocId, JsonObject pPayload) {
+      return Document
+          .newBuilder()
+          .underCollection(pCollectionId)
+          .withId(pDocId)
+          .withVersion(mVersion)
+          .withPayload(pPayload)
+          .build();
+    }
+
+    /**
+     * @return the document with its payload read on first access, which blocks.
+     */
+    Document toListedDocument(String pCollectionId, String pDocId) {
+      return Document
+          .newBuilder()
+          .underCollection(pCollectionId)
+          .withId(pDocId)
+          .withVersion(mVersion)
+          .withPayloadLoader(() -> load(pCollectionId, pDocId))
+          .build();
+    }
+  }
+
+  /**
+   * Reads the current payload of a listed document, see {@link #readEntry}.
+   */
+  private JsonObject load(String pCollectionId, String pDocId)
+      throws IOException {
+    Document doc = readEntry(pCollectionId, pDocId);
+    if (doc == null) {
+      throw new NoSuchFileException(documentFile(pCollectionId, pDocId).toString());
+    }
+
+    return doc.payload();
+  }
+
+  /**
+   * Reads a document without waiting for its writers, which hold the document lock until their
+   * fsync. They rename the file into place before publishing its entry, so a read is kept only if
+   * the entry did not change meanwhile and the file has the size it records, and is retried
+   * otherwise. Reads that keep failing the check, e.g. of a file edited from outside, are made
+   * under the document read lock.
+   *
+   * @return the document, or null if there is none.
+   */
+  private Document readEntry(String pCollectionId, String pDocId)
+      throws IOException {
+    File file = documentFile(pCollectionId, pDocId);
+
+    for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+      Manifest manifest = manifest(pCollectionId);
+      ManifestEntry entry = manifest.get(pDocId);
+      if (entry == null) return null;
+
+      byte[] bytes;
+      try {
+        bytes = Files.readAllBytes(file.toPath());
+
+      } catch (NoSuchFileException ex) {
+        // Deleted meanwhile, which the entry tells once removed.
+        bytes = null;
+      }
+
+      if (bytes != null && bytes.length == entry.mSize && manifest.get(pDocId) == entry) {
+        return entry.toDocument(pCollectionId, pDocId, mCodec.decode(bytes));
+      }
+    }
+
+    Lock lock = documentLock(pCollectionId, pDocId).readLock();
+    lock.lock();
+
+    try {
+      ManifestEntry entry = manifest(pCollectionId).get(pDocId);
+      return entry != null ? entry.toDocument(pCollectionId, pDocId, readDocument(file)) : null;
+
+    } finally {
+      lock.unlock();
+    }
+  }
 }
@@ -0,0 +1,1130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import com.rasa.workshop.common.DocumentExistsException;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import io.vertx.core.json.JsonObject;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured {@link DB}. Every mutation is appended as a record to the active segment file
+ * under the DB folder, and an in-memory index maps each document to the offset of its latest
+ * record. The index is rebuilt by replaying the segments on startup.
+ *
+ * Segments are rolled once they grow past the configured size. A background task merges the
+ * sealed segments into one, keeping only the records the index still points to, whenever enough
+ * of them is garbage.
+ */
+public class LogDB
+    implements DB {
+
+  private static final Logger LOGGER = Logger.getLogger(LogDB.class.getName());
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String COMPACT_SUFFIX = ".compact";
+  private static final String MERGE_MANIFEST = "MERGE";
+
+  private static final byte PUT_DOCUMENT = 1;
+  private static final byte DELETE_DOCUMENT = 2;
+  private static final byte CREATE_COLLECTION = 3;
+  private static final byte DELETE_COLLECTION = 4;
+  // Same as PUT_DOCUMENT with the document version after the ids. Older logs read as version 0.
+  private static final byte PUT_VERSIONED_DOCUMENT = 5;
+
+  private static final long ANY_VERSION = -1;
+
+  // How long close waits for a running compaction to finish.
+  private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+  // crc + body length
+  private static final int HEADER_SIZE = 8;
+
+  private final String mName;
+  private final File mRootFolder;
+  private final long mSegmentSize;
+  private final double mCompactionThreshold;
+  private final ReentrantReadWriteLock mReadWriteLock;
+  private final ScheduledExecutorService mCompactor;
+
+  // Documents of each collection are kept sorted by id, the order collections are listed in.
+  private final Map<String, Map<String, Location>> mIndex;
+  private final Map<String, Location> mCollections;
+  private final TreeMap<Long, Segment> mSegments;
+  private final MappedFiles mMappedFiles;
+  private Segment mActive;
+
+  public LogDB(JsonObject pConfig) {
+    mName = pConfig.getString(Constants.DB_NAME_KEY, Constants.DEFAULT_DB_NAME_VALUE);
+    String stateFolder = pConfig.getString(Constants.STATE_FOLDER_KEY, Constants.DEFAULT_STATE_FOLDER_VALUE);
+    mRootFolder = new File(stateFolder, mName);
+    mSegmentSize = pConfig.getLong(Constants.LOG_SEGMENT_SIZE_KEY, Constants.DEFAULT_LOG_SEGMENT_SIZE_VALUE);
+    mCompactionThreshold = pConfig.getDouble(Constants.LOG_COMPACTION_THRESHOLD_KEY, Constants.DEFAULT_LOG_COMPACTION_THRESHOLD_VALUE);
+    mReadWriteLock = new ReentrantReadWriteLock();
+    mIndex = new ConcurrentHashMap<>();
+    mCollections = new ConcurrentHashMap<>();
+    mSegments = new TreeMap<>();
+    mMappedFiles = new MappedFiles(pConfig);
+
+    if (!mRootFolder.exists() && !mRootFolder.mkdirs()) {
+      throw new RuntimeException("Unable to initialize DB. Failed to create root folder.");
+    }
+    Snapshot.deleteStale(mRootFolder);
+
+    try {
+      recover();
+
+    } catch (IOException ex) {
+      throw new RuntimeException("Unable to initialize DB. Failed to replay segments.", ex);
+    }
+
+    long interval = pConfig.getLong(Constants.LOG_COMPACTION_INTERVAL_KEY, Constants.DEFAULT_LOG_COMPACTION_INTERVAL_VALUE);
+    mCompactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "log-db-compactor-" + mName);
+      thread.setDaemon(true);
+      return thread;
+    });
+    mCompactor.scheduleWithFixedDelay(this::compactIfNeeded, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public String name() {
+    return mName;
+  }
+
+  @Override
+  public Document createDocument(Document pDoc)
+      throws DocumentExistsException, DocumentException {
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      var docs = mIndex.get(pDoc.collectionId());
+      if (docs == null) {
+        throw new DocumentException("Unable to create document: " + pDoc.id());
+      }
+
+      if (docs.containsKey(pDoc.id())) {
+        throw new DocumentExistsException("There's an existing document: " + pDoc.id());
+      }
+
+      return putDocument(docs, pDoc, Versions.next(0));
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to create document: " + pDoc.id(), ex);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Document getDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    Lock lock = mReadWriteLock.readLock();
+    lock.lock();
+
+    try {
+      var location = location(pCollectionId, pDocId);
+      if (location == null) {
+        throw DocumentNotFoundException.stackless("Document not found: " + pDocId);
+      }
+
+      return Document
+          .newBuilder()
+          .underCollection(pCollectionId)
+          .withId(pDocId)
+          .withVersion(location.mVersion)
+          .withPayload(read(location))
+          .build();
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to get document: " + pDocId, ex);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc)
+      throws DocumentNotFoundException, DocumentException {
+    try {
+      return updateDocument(pDoc, ANY_VERSION);
+
+    } catch (DocumentVersionConflictException ex) {
+      // Never thrown without an expected version.
+      throw new DocumentException("Unable to update document: " + pDoc.id(), ex);
+    }
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc, long pExpectedVersion)
+      throws DocumentNotFoundException, DocumentVersionConflictException, DocumentException {
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      var docs = mIndex.get(pDoc.collectionId());
+      var location = docs != null ? docs.get(pDoc.id()) : null;
+      if (location == null) {
+        throw new DocumentNotFoundException("Document not found: " + pDoc.id());
+      }
+
+      if (pExpectedVersion != ANY_VERSION && location.mVersion != pExpectedVersion) {
+        throw new DocumentVersionConflictException("Document " + pDoc.id() + " is at version "
+            + location.mVersion + ", not " + pExpectedVersion);
+      }
+
+      return putDocument(docs, pDoc, Versions.next(location.mVersion));
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to update document: " + pDoc.id(), ex);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Document deleteDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      var docs = mIndex.get(pCollectionId);
+      var location = docs != null ? docs.get(pDocId) : null;
+      if (location == null) {
+        throw new DocumentNotFoundException("Document not found: " + pDocId);
+      }
+
+      var json = read(location);
+      append(DELETE_DOCUMENT, pCollectionId, pDocId, null);
+      removeLocation(docs, pDocId);
+
+      return Document
+          .newBuilder()
+          .underCollection(pCollectionId)
+          .withId(pDocId)
+          .withVersion(location.mVersion)
+          .withPayload(json)
+          .build();
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to delete document: " + pDocId, ex);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean hasDocument(String pCollectionId, String pDocId) {
+    return location(pCollectionId, pDocId) != null;
+  }
+
+  @Override
+  public List<BatchResult> getDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    List<BatchResult> results = new ArrayList<>(pDocIds.size());
+    Lock lock = mReadWriteLock.readLock();
+    lock.lock();
+
+    try {
+      for (String docId : pDocIds) {
+        var location = location(pCollectionId, docId);
+        if (location == null) {
+          results.add(BatchResult.failure(docId, DocumentNotFoundException.stackless("Document not found: " + docId)));
+          continue;
+        }
+
+        try {
+          results.add(BatchResult.success(docId, Document
+              .newBuilder()
+              .underCollection(pCollectionId)
+              .withId(docId)
+              .withVersion(location.mVersion)
+              .withPayload(read(location))
+              .build()));
+
+        } catch (IOException ex) {
+          results.add(BatchResult.failure(docId, new DocumentException("Unable to get document: " + docId, ex)));
+        }
+      }
+
+    } finally {
+      lock.unlock();
+    }
+
+    return results;
+  }
+
+  /**
+   * Appends all the documents under a single acquisition of the write lock.
+   */
+  @Override
+  public List<BatchResult> putDocuments(List<Document> pDocs)
+      throws DocumentException {
+    List<BatchResult> results = new ArrayList<>(pDocs.size());
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      for (Document doc : pDocs) {
+        var docs = mIndex.get(doc.collectionId());
+        if (docs == null) {
+          results.add(BatchResult.failure(doc.id(), new DocumentException("Unable to put document: " + doc.id())));
+          continue;
+        }
+
+        try {
+          var location = docs.get(doc.id());
+          results.add(BatchResult.success(doc.id(), putDocument(docs, doc, Versions.next(location != null ? location.mVersion : 0))));
+
+        } catch (IOException ex) {
+          results.add(BatchResult.failure(doc.id(), new DocumentException("Unable to put document: " + doc.id(), ex)));
+
+        } catch (DocumentException ex) {
+          results.add(BatchResult.failure(doc.id(), ex));
+        }
+      }
+
+    } finally {
+      lock.unlock();
+    }
+
+    return results;
+  }
+
+  @Override
+  public List<BatchResult> deleteDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    List<BatchResult> results = new ArrayList<>(pDocIds.size());
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      var docs = mIndex.get(pCollectionId);
+
+      for (String docId : pDocIds) {
+        var location = docs != null ? docs.get(docId) : null;
+        if (location == null) {
+          results.add(BatchResult.failure(docId, new DocumentNotFoundException("Document not found: " + docId)));
+          continue;
+        }
+
+        try {
+          var json = read(location);
+          append(DELETE_DOCUMENT, pCollectionId, docId, null);
+          removeLocation(docs, docId);
+
+          results.add(BatchResult.success(docId, Document
+              .newBuilder()
+              .underCollection(pCollectionId)
+              .withId(docId)
+              .withVersion(location.mVersion)
+              .withPayload(json)
+              .build()));
+
+        } catch (IOException ex) {
+          results.add(BatchResult.failure(docId, new DocumentException("Unable to delete document: " + docId, ex)));
+        }
+      }
+
+    } finally {
+      lock.unlock();
+    }
+
+    return results;
+  }
+
+  @Override
+  public Collection createCollection(Collection pCol)
+      throws DocumentExistsException, DocumentException {
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      if (mIndex.containsKey(pCol.id())) {
+        throw new DocumentExistsException("There's an existing collection: " + pCol.id());
+      }
+
+      mCollections.put(pCol.id(), addLive(append(CREATE_COLLECTION, pCol.id(), "", null)));
+      mIndex.put(pCol.id(), new ConcurrentSkipListMap<>());
+
+      return Collection
+          .newBuilder()
+          .withId(pCol.id())
+          .withPayload(new JsonObject())
+          .build();
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to create collection: " + pCol.id(), ex);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Collection getCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    Lock lock = mReadWriteLock.readLock();
+    lock.lock();
+
+    try {
+      var docs = mIndex.get(pId);
+      if (docs == null) {
+        throw new DocumentNotFoundException("Collection not found: " + pId);
+      }
+
+      var builder = Collection
+          .newBuilder()
+          .withId(pId)
+          .withPayload(new JsonObject());
+
+      for (Map.Entry<String, Location> entry : docs.entrySet()) {
+        try {
+          builder.addDocument(Document
+              .newBuilder()
+              .underCollection(pId)
+              .withId(entry.getKey())
+              .withVersion(entry.getValue().mVersion)
+              .withPayload(read(entry.getValue()))
+              .build());
+
+        } catch (IOException ex) {
+          LOGGER.log(Level.SEVERE, "Unable to read JSON of " + pId + "/" + entry.getKey(), ex);
+        }
+      }
+
+      return builder.build();
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Collection updateCollection(Collection pCol)
+      throws DocumentNotFoundException, DocumentException {
+    if (!mIndex.containsKey(pCol.id())) {
+      throw new DocumentNotFoundException("Collection not found: " + pCol.id());
+    }
+
+    return Collection
+        .newBuilder()
+        .withId(pCol.id())
+        .build();
+  }
+
+  @Override
+  public Collection deleteCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      var docs = mIndex.get(pId);
+      if (docs == null) {
+        throw new DocumentNotFoundException("Collection not found: " + pId);
+      }
+
+      append(DELETE_COLLECTION, pId, "", null);
+      for (String docId : List.copyOf(docs.keySet())) {
+        removeLocation(docs, docId);
+      }
+      mIndex.remove(pId);
+      removeLive(mCollections.remove(pId));
+
+      return Collection
+          .newBuilder()
+          .withId(pId)
+          .build();
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to delete collection: " + pId, ex);
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean hasCollection(String pId) {
+    return mIndex.containsKey(pId);
+  }
+
+  /**
+   * Links the segments into the snapshot under the read lock, which keeps appends and merges out
+   * meanwhile. Segments only grow, so the active one is cut at its current size.
+   */
+  @Override
+  public Snapshot snapshot()
+      throws DocumentException {
+    File folder;
+    try {
+      folder = Snapshot.newFolder(mRootFolder);
+
+    } catch (IOException ex) {
+      throw new DocumentException("Unable to snapshot DB " + mName, ex);
+    }
+
+    List<Snapshot.Entry> entries = new ArrayList<>();
+    List<Snapshot.Copy> copies = new ArrayList<>();
+    Lock lock = mReadWriteLock.readLock();
+    lock.lock();
+
+    try {
+      long now = System.currentTimeMillis();
+      for (Segment segment : mSegments.values()) {
+        var link = folder.toPath().resolve(segment.mFile.getName());
+        Snapshot.link(segment.mFile.toPath(), link, segment.mSize, copies);
+        entries.add(new Snapshot.Entry(segment.mFile.getName(), link, segment.mSize, now));
+      }
+
+    } catch (IOException ex) {
+      Snapshot.close(copies);
+      new Snapshot(folder, entries).close();
+      throw new DocumentException("Unable to snapshot DB " + mName, ex);
+
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      Snapshot.copy(copies);
+
+    } catch (IOException ex) {
+      new Snapshot(folder, entries).close();
+      throw new DocumentException("Unable to snapshot DB " + mName, ex);
+    }
+
+    return new Snapshot(folder, entries);
+  }
+
+  @Override
+  public void close() {
+    mCompactor.shutdown();
+
+    try {
+      if (!mCompactor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        // An interrupted merge is finished or discarded on the next startup.
+        LOGGER.warning("Interrupting the compaction of DB " + mName + " on close");
+        mCompactor.shutdownNow();
+      }
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      for (Segment segment : mSegments.values()) {
+        segment.close();
+      }
+      mSegments.clear();
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Appends the document at the given version and points the index at it. Callers hold the write lock.
+   */
+  private Document putDocument(Map<String, Location> pDocs, Document pDoc, long pVersion)
+      throws IOException, DocumentException {
+    putLocation(pDocs, pDoc.id(), append(PUT_VERSIONED_DOCUMENT, pDoc.collectionId(), pDoc.id(), pVersion, pDoc.payload()));
+
+    return Document
+        .newBuilder()
+        .underCollection(pDoc.collectionId())
+        .withId(pDoc.id())
+        .withVersion(pVersion)
+        .withPayload(pDoc.payload())
+        .build();
+  }
+
+  private Location location(String pCollectionId, String pDocId) {
+    var docs = mIndex.get(pCollectionId);
+    return docs != null ? docs.get(pDocId) : null;
+  }
+
+  private void putLocation(Map<String, Location> pDocs, String pDocId, Location pLocation) {
+    removeLive(pDocs.put(pDocId, addLive(pLocation)));
+  }
+
+  private void removeLocation(Map<String, Location> pDocs, String pDocId) {
+    removeLive(pDocs.remove(pDocId));
+  }
+
+  private Location addLive(Location pLocation) {
+    var segment = mSegments.get(pLocation.mSegmentId);
+    if (segment != null) segment.mLiveBytes += pLocation.mLength;
+    return pLocation;
+  }
+
+  private void removeLive(Location pLocation) {
+    if (pLocation == null) return;
+
+    var segment = mSegments.get(pLocation.mSegmentId);
+    if (segment != null) segment.mLiveBytes -= pLocation.mLength;
+  }
+
+  // Writes -------------------------------------------------------------------
+
+  /**
+   * Appends a record to the active segment, rolling it first if it is full. Callers hold the write lock.
+   */
+  private Location append(byte pOp, String pCollectionId, String pDocId, JsonObject pPayload)
+      throws IOException, DocumentException {
+    return append(pOp, pCollectionId, pDocId, 0, pPayload);
+  }
+
+  private Location append(byte pOp, String pCollectionId, String pDocId, long pVersion, JsonObject pPayload)
+      throws IOException, DocumentException {
+    if (mActive.mSize >= mSegmentSize) {
+      mActive = openSegment(mActive.mId + 1);
+    }
+
+    ByteBuffer record = encode(pOp, pCollectionId, pDocId, pVersion, pPayload);
+    return mActive.append(record, pVersion);
+  }
+
+  /**
+   * @throws DocumentException if an id does not fit the signed short its length is recorded as.
+   */
+  private static ByteBuffer encode(byte pOp, String pCollectionId, String pDocId, long pVersion, JsonObject pPayload)
+      throws DocumentException {
+    byte[] collectionId = pCollectionId.getBytes(StandardCharsets.UTF_8);
+    byte[] docId = pDocId.getBytes(StandardCharsets.UTF_8);
+    if (collectionId.length > Short.MAX_VALUE || docId.length > Short.MAX_VALUE) {
+      throw new DocumentException("Ids are limited to " + Short.MAX_VALUE + " UTF-8 bytes: "
+          + (collectionId.length > Short.MAX_VALUE ? pCollectionId : pDocId).substring(0, 32) + "...");
+    }
+
+    byte[] payload = pPayload != null ? pPayload.toBuffer().getBytes() : new byte[0];
+    int versionLength = pOp == PUT_VERSIONED_DOCUMENT ? 8 : 0;
+
+    int bodyLength = 1 + 2 + collectionId.length + 2 + docId.length + versionLength + payload.length;
+    ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bodyLength);
+    record.position(HEADER_SIZE);
+    record.put(pOp);
+    record.putShort((short) collectionId.length).put(collectionId);
+    record.putShort((short) docId.length).put(docId);
+    if (versionLength > 0) record.putLong(pVersion);
+    record.put(payload);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), HEADER_SIZE, bodyLength);
+    record.putInt(0, (int) crc.getValue());
+    record.putInt(4, bodyLength);
+    record.flip();
+    return record;
+  }
+
+  // Reads --------------------------------------------------------------------
+
+  /**
+   * Reads records of sealed segments, which never change, from a shared mapping of the segment,
+   * and records of the active segment, which still grows, with a positional read. Callers hold
+   * the lock.
+   */
+  private JsonObject read(Location pLocation)
+      throws IOException {
+    var segment = mSegments.get(pLocation.mSegmentId);
+    if (segment == null) {
+      throw new IOException("Missing segment " + pLocation.mSegmentId);
+    }
+
+    ByteBuffer raw;
+    if (segment != mActive && mMappedFiles.shouldMap(segment.mSize)) {
+      if (pLocation.mOffset + pLocation.mLength > segment.mSize) {
+        throw new EOFException("Record past the end of " + segment.mFile);
+      }
+
+      raw = mMappedFiles.map(segment.mFile.toPath(), segment.mSize, segment.mId)
+          .position((int) pLocation.mOffset)
+          .limit((int) pLocation.mOffset + pLocation.mLength)
+          .slice();
+
+    } else {
+      raw = segment.read(pLocation.mOffset, pLocation.mLength);
+    }
+
+    Record record = Record.decode(raw, false);
+    return record.payload();
+  }
+
+  // Recovery -----------------------------------------------------------------
+
+  private void recover()
+      throws IOException {
+    finishMerge();
+
+    var ids = new ArrayList<Long>();
+    File[] files = mRootFolder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(COMPACT_SUFFIX)) {
+          Files.delete(file.toPath());
+
+        } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+      }
+    }
+    ids.sort(Long::compare);
+
+    for (int i = 0; i < ids.size(); i++) {
+      Segment segment = openSegment(ids.get(i));
+      replay(segment, i == ids.size() - 1);
+    }
+
+    mActive = ids.isEmpty() ? openSegment(1) : mSegments.lastEntry().getValue();
+  }
+
+  private void replay(Segment pSegment, boolean pIsLast)
+      throws IOException {
+    long offset = 0;
+
+    while (offset < pSegment.mSize) {
+      Record record;
+      int length;
+
+      try {
+        ByteBuffer header = pSegment.read(offset, HEADER_SIZE);
+        length = HEADER_SIZE + header.getInt(4);
+        record = Record.decode(pSegment.read(offset, length), true);
+
+      } catch (EOFException | IllegalArgumentException ex) {
+        if (!pIsLast) {
+          throw new IOException("Corrupt record in " + pSegment.mFile + " at " + offset, ex);
+        }
+
+        LOGGER.warning("Truncating torn write at the end of " + pSegment.mFile + " at " + offset);
+        pSegment.truncate(offset);
+        return;
+      }
+
+      apply(record, new Location(pSegment.mId, offset, length, record.mVersion));
+      offset += length;
+    }
+  }
+
+  private void apply(Record pRecord, Location pLocation) {
+    switch (pRecord.mOp) {
+      case PUT_DOCUMENT:
+      case PUT_VERSIONED_DOCUMENT:
+        putLocation(mIndex.computeIfAbsent(pRecord.mCollectionId, id -> new ConcurrentSkipListMap<>()), pRecord.mDocId, pLocation);
+        break;
+
+      case DELETE_DOCUMENT:
+        var docs = mIndex.get(pRecord.mCollectionId);
+        if (docs != null) removeLocation(docs, pRecord.mDocId);
+        break;
+
+      case CREATE_COLLECTION:
+        mIndex.computeIfAbsent(pRecord.mCollectionId, id -> new ConcurrentSkipListMap<>());
+        removeLive(mCollections.put(pRecord.mCollectionId, addLive(pLocation)));
+        break;
+
+      case DELETE_COLLECTION:
+        var removed = mIndex.remove(pRecord.mCollectionId);
+        if (removed != null) removed.values().forEach(this::removeLive);
+        removeLive(mCollections.remove(pRecord.mCollectionId));
+        break;
+
+      default:
+        LOGGER.warning("Skipping record with unknown op " + pRecord.mOp);
+    }
+  }
+
+  // Compaction ---------------------------------------------------------------
+
+  private void compactIfNeeded() {
+    try {
+      List<Segment> sealed;
+      Lock lock = mReadWriteLock.readLock();
+      lock.lock();
+
+      try {
+        sealed = new ArrayList<>(mSegments.headMap(mActive.mId).values());
+
+      } finally {
+        lock.unlock();
+      }
+
+      long size = 0;
+      long live = 0;
+      for (Segment segment : sealed) {
+        size += segment.mSize;
+        live += segment.mLiveBytes;
+      }
+
+      if (size > 0 && (size - live) >= size * mCompactionThreshold) {
+        merge(sealed);
+      }
+
+    } catch (Exception ex) {
+      LOGGER.log(Level.SEVERE, "Unable to compact DB " + mName, ex);
+    }
+  }
+
+  /**
+   * Rewrites the live records of the given sealed segments into a single segment that takes the id
+   * of the newest of them. Sealed segments are immutable, so they are copied without any lock; the
+   * index is only locked to check liveness and to swap locations at the end.
+   */
+  private void merge(List<Segment> pSealed)
+      throws IOException {
+    long targetId = pSealed.get(pSealed.size() - 1).mId;
+    File compactFile = new File(mRootFolder, SEGMENT_PREFIX + targetId + COMPACT_SUFFIX);
+    Map<Location, Location> moved = new HashMap<>();
+
+    try (FileChannel out = FileChannel.open(compactFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      long outOffset = 0;
+
+      for (Segment segment : pSealed) {
+        long offset = 0;
+        while (offset < segment.mSize) {
+          int length = HEADER_SIZE + segment.read(offset, HEADER_SIZE).getInt(4);
+          ByteBuffer raw = segment.read(offset, length);
+          Record record = Record.decode(raw.duplicate(), false);
+          Location location = new Location(segment.mId, offset, length, record.mVersion);
+          offset += length;
+
+          if (!isLive(record, location)) continue;
+
+          while (raw.hasRemaining()) {
+            out.write(raw);
+          }
+          moved.put(location, new Location(targetId, outOffset, length, record.mVersion));
+          outOffset += length;
+        }
+      }
+
+      out.force(true);
+    }
+
+    Lock lock = mReadWriteLock.writeLock();
+    lock.lock();
+
+    try {
+      writeMergeManifest(pSealed);
+
+      for (Segment segment : pSealed) {
+        segment.close();
+        mSegments.remove(segment.mId);
+        // The merged segment takes the file and id of the newest sealed one.
+        mMappedFiles.release(segment.mFile.toPath());
+      }
+
+      finishMerge();
+      Segment merged = openSegment(targetId);
+
+      for (Map<String, Location> docs : mIndex.values()) {
+        docs.replaceAll((docId, location) -> relocate(location, moved, merged));
+      }
+      mCollections.replaceAll((collectionId, location) -> relocate(location, moved, merged));
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isLive(Record pRecord, Location pLocation) {
+    Lock lock = mReadWriteLock.readLock();
+    lock.lock();
+
+    try {
+      switch (pRecord.mOp) {
+        case PUT_DOCUMENT:
+        case PUT_VERSIONED_DOCUMENT:
+          return pLocation.equals(location(pRecord.mCollectionId, pRecord.mDocId));
+
+        case CREATE_COLLECTION:
+          return pLocation.equals(mCollections.get(pRecord.mCollectionId));
+
+        default:
+          // Tombstones only shadow records of older segments, all of which are part of the merge.
+          return false;
+      }
+
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static Location relocate(Location pLocation, Map<Location, Location> pMoved, Segment pMerged) {
+    var moved = pMoved.get(pLocation);
+    if (moved == null) return pLocation;
+
+    pMerged.mLiveBytes += moved.mLength;
+    return moved;
+  }
+
+  private void writeMergeManifest(List<Segment> pSealed)
+      throws IOException {
+    var manifest = new StringBuilder();
+    for (Segment segment : pSealed) {
+      manifest.append(segment.mId).append('\n');
+    }
+
+    // Segments are deleted once the manifest exists, so it has to reach the disk whole first.
+    File tmp = new File(mRootFolder, MERGE_MANIFEST + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer bytes = StandardCharsets.UTF_8.encode(manifest.toString());
+      while (bytes.hasRemaining()) {
+        out.write(bytes);
+      }
+      out.force(true);
+    }
+
+    Files.move(tmp.toPath(), new File(mRootFolder, MERGE_MANIFEST).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    forceDirectory(mRootFolder);
+  }
+
+  private static void forceDirectory(File pFolder) {
+    try (FileChannel channel = FileChannel.open(pFolder.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+
+    } catch (IOException ex) {
+      // Not every platform lets directories be opened for fsync.
+    }
+  }
+
+  /**
+   * Completes a merge whose output is complete, which is the case as soon as the manifest exists:
+   * replaces the newest merged segment with the compacted one and deletes the others. Idempotent,
+   * so an interrupted merge is finished on the next startup.
+   */
+  private void finishMerge()
+      throws IOException {
+    File manifestFile = new File(mRootFolder, MERGE_MANIFEST);
+    if (!manifestFile.exists()) return;
+
+    List<Long> ids = new ArrayList<>();
+    for (String line : Files.readAllLines(manifestFile.toPath())) {
+      if (!line.isBlank()) ids.add(Long.parseLong(line.trim()));
+    }
+
+    long targetId = ids.get(ids.size() - 1);
+    File compactFile = new File(mRootFolder, SEGMENT_PREFIX + targetId + COMPACT_SUFFIX);
+    File targetFile = segmentFile(targetId);
+    if (compactFile.exists()) {
+      Files.move(compactFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    for (long id : ids) {
+      if (id != targetId) Files.deleteIfExists(segmentFile(id).toPath());
+    }
+
+    Files.delete(manifestFile.toPath());
+    LOGGER.info("Merged " + ids.size() + " segments of DB " + mName + " into " + targetFile.getName());
+  }
+
+  private Segment openSegment(long pId)
+      throws IOException {
+    var segment = new Segment(pId, segmentFile(pId));
+    mSegments.put(pId, segment);
+    return segment;
+  }
+
+  private File segmentFile(long pId) {
+    return new File(mRootFolder, SEGMENT_PREFIX + pId + SEGMENT_SUFFIX);
+  }
+
+  // Internals ----------------------------------------------------------------
+
+  private static class Location {
+    final long mSegmentId;
+    final long mOffset;
+    final int mLength;
+    final long mVersion;
+
+    Location(long pSegmentId, long pOffset, int pLength, long pVersion) {
+      this.mSegmentId = pSegmentId;
+      this.mOffset = pOffset;
+      this.mLength = pLength;
+      this.mVersion = pVersion;
+    }
+
+    @Override
+    public boolean equals(Object pOther) {
+      if (!(pOther instanceof Location)) return false;
+      var other = (Location) pOther;
+      return mSegmentId == other.mSegmentId && mOffset == other.mOffset;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(mSegmentId) * 31 + Long.hashCode(mOffset);
+    }
+  }
+
+  private static class Segment {
+    final long mId;
+    final File mFile;
+    final FileChannel mChannel;
+    volatile long mSize;
+    volatile long mLiveBytes;
+
+    Segment(long pId, File pFile)
+        throws IOException {
+      this.mId = pId;
+      this.mFile = pFile;
+      this.mChannel = FileChannel.open(pFile.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.mSize = mChannel.size();
+    }
+
+    Location append(ByteBuffer pRecord, long pVersion)
+        throws IOException {
+      long offset = mSize;
+      int length = pRecord.remaining();
+
+      while (pRecord.hasRemaining()) {
+        mChannel.write(pRecord, offset + length - pRecord.remaining());
+      }
+
+      mSize = offset + length;
+      return new Location(mId, offset, length, pVersion);
+    }
+
+    ByteBuffer read(long pOffset, int pLength)
+        throws IOException {
+      if (pOffset + pLength > mSize) {
+        throw new EOFException("Record past the end of " + mFile);
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(pLength);
+      while (buffer.hasRemaining()) {
+        if (mChannel.read(buffer, pOffset + buffer.position()) < 0) {
+          throw new EOFException("Unexpected end of " + mFile);
+        }
+      }
+
+      buffer.flip();
+      return buffer;
+    }
+
+    void truncate(long pSize)
+        throws IOException {
+      mChannel.truncate(pSize);
+      mSize = pSize;
+    }
+
+    void close() {
+      try {
+        mChannel.close();
+
+      } catch (IOException ex) {
+        LOGGER.log(Level.WARNING, "Unable to close " + mFile, ex);
+      }
+    }
+  }
+
+  private static class Record {
+    final byte mOp;
+    final String mCollectionId;
+    final String mDocId;
+    final long mVersion;
+    final ByteBuffer mPayload;
+
+    private Record(byte pOp, String pCollectionId, String pDocId, long pVersion, ByteBuffer pPayload) {
+      this.mOp = pOp;
+      this.mCollectionId = pCollectionId;
+      this.mDocId = pDocId;
+      this.mVersion = pVersion;
+      this.mPayload = pPayload;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the record is malformed or, when verified, fails its checksum.
+     */
+    static Record decode(ByteBuffer pRecord, boolean pVerify) {
+      try {
+        int crc = pRecord.getInt();
+        int bodyLength = pRecord.getInt();
+
+        if (pVerify) {
+          CRC32 actual = new CRC32();
+          actual.update(pRecord.array(), pRecord.arrayOffset() + pRecord.position(), bodyLength);
+          if ((int) actual.getValue() != crc) {
+            throw new IllegalArgumentException("Checksum mismatch");
+          }
+        }
+
+        byte op = pRecord.get();
+        String collectionId = readString(pRecord);
+        String docId = readString(pRecord);
+        long version = op == PUT_VERSIONED_DOCUMENT ? pRecord.getLong() : 0;
+        return new Record(op, collectionId, docId, version, pRecord.slice());
+
+      } catch (RuntimeException ex) {
+        throw new IllegalArgumentException("Malformed record", ex);
+      }
+    }
+
+    private static String readString(ByteBuffer pBuffer) {
+      byte[] bytes = new byte[pBuffer.getShort() & 0xffff];
+      pBuffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    JsonObject payload()
+        throws IOException {
+      return StorageCodec.decodeJson(mPayload);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Constants;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded pool of read-only memory mappings, so that large files are parsed straight from the page
+ * cache instead of being copied into the heap first. Only files that are never written in place
+ * are mapped: a mapping is reused for as long as its file keeps the length and version it was
+ * mapped at, and the least recently used mappings beyond the pool size are dropped, to be unmapped
+ * by the garbage collector once no reader holds them anymore.
+ *
+ * Files below the threshold cost more to map than to read, and are left to the caller to read.
+ * Mapping is disabled on Windows, which refuses to replace or delete a file while a mapping of it
+ * is still alive, and dropping a mapping does not unmap it until it is garbage collected.
+ */
+class MappedFiles {
+
+  private final boolean mEnabled;
+  private final long mThreshold;
+  private final Map<Path, Mapping> mMappings;
+
+  MappedFiles(JsonObject pConfig) {
+    mEnabled = pConfig.getBoolean(Constants.STORAGE_MMAP_KEY, Constants.DEFAULT_STORAGE_MMAP_VALUE)
+        && !System.getProperty("os.name", "").startsWith("Windows");
+    mThreshold = pConfig.getLong(Constants.STORAGE_MMAP_THRESHOLD_KEY, Constants.DEFAULT_STORAGE_MMAP_THRESHOLD_VALUE);
+    int poolSize = pConfig.getInteger(Constants.STORAGE_MMAP_POOL_SIZE_KEY, Constants.DEFAULT_STORAGE_MMAP_POOL_SIZE_VALUE);
+
+    mMappings = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, Mapping> pEldest) {
+        return size() > poolSize;
+      }
+    };
+  }
+
+  /**
+   * @return true if a file of the given length should be mapped rather than read.
+   */
+  boolean shouldMap(long pLength) {
+    return mEnabled && pLength >= mThreshold && pLength <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * @return the first bytes of the file, up to the given length, as a buffer of its own.
+   */
+  ByteBuffer map(Path pPath, long pLength, long pVersion)
+      throws IOException {
+    synchronized (mMappings) {
+      Mapping mapping = mMappings.get(pPath);
+      if (mapping != null && mapping.mLength == pLength && mapping.mVersion == pVersion) {
+        return mapping.mBuffer.duplicate();
+      }
+    }
+
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(pPath, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, pLength);
+    }
+
+    synchronized (mMappings) {
+      mMappings.put(pPath, new Mapping(buffer, pLength, pVersion));
+    }
+
+    return buffer.duplicate();
+  }
+
+  /**
+   * Drops the mapping of a file about to be replaced or deleted.
+   */
+  void release(Path pPath) {
+    synchronized (mMappings) {
+      mMappings.remove(pPath);
+    }
+  }
+
+  private static class Mapping {
+    final ByteBuffer mBuffer;
+    final long mLength;
+    final long mVersion;
+
+    Mapping(ByteBuffer pBuffer, long pLength, long pVersion) {
+      this.mBuffer = pBuffer;
+      this.mLength = pLength;
+      this.mVersion = pVersion;
+    }
+  }
+}
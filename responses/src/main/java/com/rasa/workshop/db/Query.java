@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Selects the documents of a collection whose value at a JSON path equals a value or falls within
+ * a range.
+ *
+ * Paths are dot separated field names, e.g. "meta.owner". Only scalar values (strings, numbers and
+ * booleans) are matched; numbers compare numerically whatever their type, and values of different
+ * kinds never match each other.
+ */
+public class Query {
+
+  /**
+   * Orders scalar values: booleans, then numbers, then strings.
+   */
+  static final Comparator<Object> VALUE_ORDER = Query::compareValues;
+
+  private final String mCollectionId;
+  private final String mPath;
+  private final String[] mFields;
+  private final Object mLower;
+  private final boolean mLowerInclusive;
+  private final Object mUpper;
+  private final boolean mUpperInclusive;
+  private final int mLimit;
+
+  private Query(Builder pBuilder) {
+    mCollectionId = pBuilder.mCollectionId;
+    mPath = pBuilder.mPath;
+    mFields = pBuilder.mPath.split("\\.");
+    mLower = pBuilder.mLower;
+    mLowerInclusive = pBuilder.mLowerInclusive;
+    mUpper = pBuilder.mUpper;
+    mUpperInclusive = pBuilder.mUpperInclusive;
+    mLimit = pBuilder.mLimit;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public String collectionId() {
+    return mCollectionId;
+  }
+
+  public String path() {
+    return mPath;
+  }
+
+  /**
+   * @return the lower bound, or null if the range is open below.
+   */
+  public Object lower() {
+    return mLower;
+  }
+
+  public boolean lowerInclusive() {
+    return mLowerInclusive;
+  }
+
+  /**
+   * @return the upper bound, or null if the range is open above.
+   */
+  public Object upper() {
+    return mUpper;
+  }
+
+  public boolean upperInclusive() {
+    return mUpperInclusive;
+  }
+
+  public int limit() {
+    return mLimit;
+  }
+
+  public boolean matches(JsonObject pPayload) {
+    return matchesValue(valueAt(pPayload));
+  }
+
+  boolean matchesValue(Object pValue) {
+    if (!isScalar(pValue)) return false;
+
+    if (mLower != null) {
+      if (kind(mLower) != kind(pValue)) return false;
+
+      int order = compareValues(pValue, mLower);
+      if (order < 0 || order == 0 && !mLowerInclusive) return false;
+    }
+
+    if (mUpper != null) {
+      if (kind(mUpper) != kind(pValue)) return false;
+
+      int order = compareValues(pValue, mUpper);
+      if (order > 0 || order == 0 && !mUpperInclusive) return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * @return the value at this query's path, or null if the payload has none.
+   */
+  Object valueAt(JsonObject pPayload) {
+    Object value = pPayload != null ? pPayload.getMap() : null;
+
+    for (String field : mFields) {
+      if (value instanceof JsonObject) {
+        value = ((JsonObject) value).getMap().get(field);
+
+      } else if (value instanceof Map) {
+        value = ((Map<?, ?>) value).get(field);
+
+      } else {
+        return null;
+      }
+    }
+
+    return value;
+  }
+
+  static boolean isScalar(Object pValue) {
+    return pValue instanceof String || pValue instanceof Number || pValue instanceof Boolean;
+  }
+
+  private static int kind(Object pValue) {
+    if (pValue instanceof Boolean) return 0;
+    if (pValue instanceof Number) return 1;
+    return 2;
+  }
+
+  private static int compareValues(Object pLeft, Object pRight) {
+    int kinds = Integer.compare(kind(pLeft), kind(pRight));
+    if (kinds != 0) return kinds;
+
+    if (pLeft instanceof Boolean) {
+      return Boolean.compare((Boolean) pLeft, (Boolean) pRight);
+    }
+
+    if (pLeft instanceof Number) {
+      Number left = (Number) pLeft;
+      Number right = (Number) pRight;
+      if (isIntegral(left) && isIntegral(right)) {
+        return Long.compare(left.longValue(), right.longValue());
+      }
+      return Double.compare(left.doubleValue(), right.doubleValue());
+    }
+
+    return ((String) pLeft).compareTo((String) pRight);
+  }
+
+  private static boolean isIntegral(Number pNumber) {
+    return pNumber instanceof Integer || pNumber instanceof Long || pNumber instanceof Short || pNumber instanceof Byte;
+  }
+
+  public static class Builder {
+    String mCollectionId;
+    String mPath;
+    Object mLower;
+    boolean mLowerInclusive;
+    Object mUpper;
+    boolean mUpperInclusive;
+    int mLimit = Integer.MAX_VALUE;
+
+    private Builder() {}
+
+    public Builder underCollection(String pCollectionId) {
+      mCollectionId = pCollectionId;
+      return this;
+    }
+
+    public Builder withPath(String pPath) {
+      mPath = pPath;
+      return this;
+    }
+
+    public Builder equalTo(Object pValue) {
+      return atLeast(pValue).atMost(pValue);
+    }
+
+    public Builder greaterThan(Object pValue) {
+      mLower = requireScalar(pValue);
+      mLowerInclusive = false;
+      return this;
+    }
+
+    public Builder atLeast(Object pValue) {
+      mLower = requireScalar(pValue);
+      mLowerInclusive = true;
+      return this;
+    }
+
+    public Builder lessThan(Object pValue) {
+      mUpper = requireScalar(pValue);
+      mUpperInclusive = false;
+      return this;
+    }
+
+    public Builder atMost(Object pValue) {
+      mUpper = requireScalar(pValue);
+      mUpperInclusive = true;
+      return this;
+    }
+
+    public Builder withLimit(int pLimit) {
+      mLimit = pLimit;
+      return this;
+    }
+
+    public Query build() {
+      if (mCollectionId == null || mPath == null || mPath.isEmpty()) {
+        throw new IllegalArgumentException("Query needs a collection and a path");
+      }
+
+      return new Query(this);
+    }
+
+    private static Object requireScalar(Object pValue) {
+      if (!isScalar(pValue)) {
+        throw new IllegalArgumentException("Query values should be strings, numbers or booleans: " + pValue);
+      }
+
+      return pValue;
+    }
+  }
+}
@@ -0,0 +1,769 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import com.rasa.workshop.common.DocumentExistsException;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+/**
+ * {@link DB} spreading its documents over several {@link JsonDB} shards, one per folder of
+ * {@link Constants#STATE_FOLDERS_KEY}, typically each on its own disk. Every shard keeps its own
+ * locks, batch pools and committer, so shards never wait on each other.
+ *
+ * Documents are placed by consistent hashing of their collection and id on a ring of virtual
+ * nodes, and collections are answered for by the shard their id hashes to, while every shard holds
+ * a folder for each collection. Operations spanning several shards run on all of them in parallel.
+ *
+ * The folders are recorded next to each shard. When the DB opens with folders added since, the
+ * documents now owned by the new shards are moved to them before it serves anything. Folders
+ * cannot be removed, as their documents would be lost.
+ */
+public class ShardedDB
+    implements DB {
+
+  private static final Logger LOGGER = Logger.getLogger(ShardedDB.class.getName());
+
+  private static final int VIRTUAL_NODES = 128;
+  private static final int REBALANCE_BATCH_SIZE = 256;
+  private static final String MEMBERS_SUFFIX = "-shards";
+
+  private final String mName;
+  private final List<Shard> mShards;
+  // Ring positions in ascending order, and the shard owning each of them.
+  private final long[] mTokens;
+  private final Shard[] mOwners;
+  private final Map<String, Set<String>> mIndexedPaths;
+  private final ExecutorService mFanOutExecutor;
+
+  public ShardedDB(JsonObject pConfig) {
+    mName = pConfig.getString(Constants.DB_NAME_KEY, Constants.DEFAULT_DB_NAME_VALUE);
+    JsonArray folders = pConfig.getJsonArray(Constants.STATE_FOLDERS_KEY, new JsonArray());
+    if (folders.isEmpty()) {
+      throw new IllegalArgumentException("The " + Constants.SHARDED_DB_ENGINE + " DB engine needs "
+          + Constants.STATE_FOLDERS_KEY);
+    }
+
+    Set<String> ids = new LinkedHashSet<>();
+    for (Object folder : folders) {
+      if (!ids.add(Path.of((String) folder).normalize().toString())) {
+        throw new IllegalArgumentException("Duplicate shard folder: " + folder);
+      }
+    }
+
+    mShards = new ArrayList<>(ids.size());
+    TreeMap<Long, Shard> ring = new TreeMap<>();
+    for (String id : ids) {
+      Shard shard = new Shard(id, new JsonDB(pConfig.copy().put(Constants.STATE_FOLDER_KEY, id)));
+      mShards.add(shard);
+
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        ring.putIfAbsent(hash(id, String.valueOf(v)), shard);
+      }
+    }
+
+    mTokens = new long[ring.size()];
+    mOwners = new Shard[ring.size()];
+    int t = 0;
+    for (Map.Entry<Long, Shard> token : ring.entrySet()) {
+      mTokens[t] = token.getKey();
+      mOwners[t++] = token.getValue();
+    }
+
+    mIndexedPaths = new ConcurrentHashMap<>();
+    JsonObject indexes = pConfig.getJsonObject(Constants.DB_INDEXES_KEY, new JsonObject());
+    for (String collectionId : indexes.fieldNames()) {
+      for (Object path : indexes.getJsonArray(collectionId)) {
+        indexedPaths(collectionId).add((String) path);
+      }
+    }
+
+    mFanOutExecutor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "sharded-db-" + mName);
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    rebalance(ids);
+  }
+
+  @Override
+  public String name() {
+    return mName;
+  }
+
+  @Override
+  public Document createDocument(Document pDoc)
+      throws DocumentExistsException, DocumentException {
+    return documentShard(pDoc.collectionId(), pDoc.id()).createDocument(pDoc);
+  }
+
+  @Override
+  public Document getDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    return documentShard(pCollectionId, pDocId).getDocument(pCollectionId, pDocId);
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc)
+      throws DocumentNotFoundException, DocumentException {
+    return documentShard(pDoc.collectionId(), pDoc.id()).updateDocument(pDoc);
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc, long pExpectedVersion)
+      throws DocumentNotFoundException, DocumentVersionConflictException, DocumentException {
+    return documentShard(pDoc.collectionId(), pDoc.id()).updateDocument(pDoc, pExpectedVersion);
+  }
+
+  @Override
+  public Document deleteDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    return documentShard(pCollectionId, pDocId).deleteDocument(pCollectionId, pDocId);
+  }
+
+  @Override
+  public boolean hasDocument(String pCollectionId, String pDocId) {
+    return documentShard(pCollectionId, pDocId).hasDocument(pCollectionId, pDocId);
+  }
+
+  /**
+   * Creates the collection folder on every shard, on the shard answering for the collection last,
+   * so that an interrupted creation leaves the collection missing and can be repeated.
+   */
+  @Override
+  public Collection createCollection(Collection pCol)
+      throws DocumentExistsException, DocumentException {
+    Shard home = collectionShard(pCol.id());
+    if (home.mDB.hasCollection(pCol.id())) {
+      throw new DocumentExistsException("There's an existing collection: " + pCol.id());
+    }
+
+    for (Shard shard : mShards) {
+      if (shard == home) continue;
+
+      try {
+        shard.mDB.createCollection(pCol);
+
+      } catch (DocumentExistsException ex) {
+        // Left behind by an interrupted creation or deletion.
+      }
+    }
+
+    return home.mDB.createCollection(pCol);
+  }
+
+  @Override
+  public Collection getCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    Shard home = collectionShard(pId);
+    List<Callable<Collection>> tasks = new ArrayList<>(mShards.size());
+    for (Shard shard : mShards) {
+      tasks.add(() -> {
+        try {
+          return shard.mDB.getCollection(pId);
+
+        } catch (DocumentNotFoundException ex) {
+          if (shard == home) throw ex;
+          return null;
+        }
+      });
+    }
+
+    var builder = Collection
+        .newBuilder()
+        .withId(pId);
+
+    List<Document> documents = new ArrayList<>();
+    int count = 0;
+    long size = 0;
+    long modified = 0;
+    for (Collection part : invokeAll(tasks)) {
+      if (part == null) continue;
+
+      documents.addAll(part.documents());
+      count += part.payload().getInteger("count", 0);
+      size += part.payload().getLong("size", 0L);
+      modified = Math.max(modified, part.payload().getLong("modified", 0L));
+    }
+
+    documents.sort(Comparator.comparing(Document::id));
+    for (Document doc : documents) {
+      builder.addDocument(doc);
+    }
+
+    return builder
+        .withPayload(new JsonObject().put("count", count).put("size", size).put("modified", modified))
+        .build();
+  }
+
+  @Override
+  public Collection updateCollection(Collection pCol)
+      throws DocumentNotFoundException, DocumentException {
+    Shard home = collectionShard(pCol.id());
+    Collection updated = home.mDB.updateCollection(pCol);
+
+    for (Shard shard : mShards) {
+      if (shard == home) continue;
+
+      try {
+        shard.mDB.updateCollection(pCol);
+
+      } catch (DocumentNotFoundException ex) {
+        // Never created there, nothing to update.
+      }
+    }
+
+    return updated;
+  }
+
+  /**
+   * Deletes the collection from the shard answering for it last, so that an interrupted deletion
+   * leaves the collection in place and can be repeated.
+   */
+  @Override
+  public Collection deleteCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    Shard home = collectionShard(pId);
+    if (!home.mDB.hasCollection(pId)) {
+      throw new DocumentNotFoundException("Collection not found: " + pId);
+    }
+
+    List<Callable<Void>> tasks = new ArrayList<>(mShards.size() - 1);
+    for (Shard shard : mShards) {
+      if (shard == home) continue;
+
+      tasks.add(() -> {
+        try {
+          shard.mDB.deleteCollection(pId);
+
+        } catch (DocumentNotFoundException ex) {
+          // Already deleted by an interrupted deletion.
+        }
+        return null;
+      });
+    }
+    invokeAll(tasks);
+
+    return home.mDB.deleteCollection(pId);
+  }
+
+  @Override
+  public boolean hasCollection(String pId) {
+    return collectionShard(pId).mDB.hasCollection(pId);
+  }
+
+  @Override
+  public List<BatchResult> getDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    return runByShard(pDocIds.size(), d -> documentShard(pCollectionId, pDocIds.get(d)),
+        (db, indexes) -> db.getDocuments(pCollectionId, pick(pDocIds, indexes)));
+  }
+
+  /**
+   * Repeated documents land on the same shard, which applies the last occurrence.
+   */
+  @Override
+  public List<BatchResult> putDocuments(List<Document> pDocs)
+      throws DocumentException {
+    return runByShard(pDocs.size(), d -> documentShard(pDocs.get(d).collectionId(), pDocs.get(d).id()),
+        (db, indexes) -> db.putDocuments(pick(pDocs, indexes)));
+  }
+
+  @Override
+  public List<BatchResult> deleteDocuments(String pCollectionId, List<String> pDocIds)
+      throws DocumentException {
+    return runByShard(pDocIds.size(), d -> documentShard(pCollectionId, pDocIds.get(d)),
+        (db, indexes) -> db.deleteDocuments(pCollectionId, pick(pDocIds, indexes)));
+  }
+
+  @Override
+  public void createIndex(String pCollectionId, String pPath)
+      throws DocumentNotFoundException, DocumentException {
+    List<Callable<Void>> tasks = new ArrayList<>(mShards.size());
+    for (Shard shard : mShards) {
+      tasks.add(() -> {
+        shard.mDB.createIndex(pCollectionId, pPath);
+        return null;
+      });
+    }
+    invokeAll(tasks);
+
+    indexedPaths(pCollectionId).add(pPath);
+  }
+
+  /**
+   * Queries every shard for up to the limit of documents and keeps the first ones of their merged
+   * results, in the order a single shard would return them.
+   */
+  @Override
+  public List<Document> query(Query pQuery)
+      throws DocumentNotFoundException, DocumentException {
+    List<Callable<List<Document>>> tasks = new ArrayList<>(mShards.size());
+    for (Shard shard : mShards) {
+      tasks.add(() -> shard.mDB.query(pQuery));
+    }
+
+    List<Document> matches = new ArrayList<>();
+    for (List<Document> part : invokeAll(tasks)) {
+      matches.addAll(part);
+    }
+
+    Comparator<Document> idOrder = Comparator.comparing(Document::id);
+    matches.sort(indexedPaths(pQuery.collectionId()).contains(pQuery.path())
+        ? Comparator.comparing((Document doc) -> pQuery.valueAt(doc.payload()), Query.VALUE_ORDER).thenComparing(idOrder)
+        : idOrder);
+
+    return matches.size() > pQuery.limit()
+        ? new ArrayList<>(matches.subList(0, pQuery.limit()))
+        : matches;
+  }
+
+  /**
+   * Blocks writes on every shard at once while their files are linked in parallel, so that the
+   * snapshot is a single point in time across shards, and copies the files that could not be
+   * linked once writes resume. Each shard holds its own documents, so their files join without
+   * clashing names, as if taken from a single folder.
+   */
+  @Override
+  public Snapshot snapshot()
+      throws DocumentException {
+    List<Callable<Snapshot>> tasks = new ArrayList<>(mShards.size());
+    List<List<Snapshot.Copy>> copies = new ArrayList<>(mShards.size());
+    for (Shard shard : mShards) {
+      List<Snapshot.Copy> shardCopies = new ArrayList<>();
+      copies.add(shardCopies);
+      tasks.add(() -> shard.mDB.linkSnapshot(shardCopies));
+    }
+
+    List<Snapshot> parts = new ArrayList<>(mShards.size());
+    Exception error = null;
+    // Always locked in shard order, so concurrent snapshots cannot deadlock.
+    List<Lock> locks = new ArrayList<>();
+    for (Shard shard : mShards) {
+      locks.addAll(shard.mDB.lockAll());
+    }
+
+    try {
+      for (Future<Snapshot> part : mFanOutExecutor.invokeAll(tasks)) {
+        try {
+          parts.add(part.get());
+
+        } catch (ExecutionException ex) {
+          error = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+      }
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      error = ex;
+
+    } finally {
+      JsonDB.unlock(locks);
+    }
+
+    if (error != null) {
+      for (List<Snapshot.Copy> shardCopies : copies) {
+        Snapshot.close(shardCopies);
+      }
+      new Snapshot(parts).close();
+      throw new DocumentException("Unable to snapshot DB " + mName, error);
+    }
+
+    Snapshot snapshot = new Snapshot(parts);
+    for (int s = 0; s < mShards.size(); s++) {
+      try {
+        mShards.get(s).mDB.copySnapshot(snapshot, copies.get(s));
+
+      } catch (DocumentException ex) {
+        for (List<Snapshot.Copy> shardCopies : copies.subList(s + 1, copies.size())) {
+          Snapshot.close(shardCopies);
+        }
+        throw ex;
+      }
+    }
+
+    return snapshot;
+  }
+
+  @Override
+  public void watchExternalChanges(Consumer<Change> pListener) {
+    for (Shard shard : mShards) {
+      shard.mDB.watchExternalChanges(pListener);
+    }
+  }
+
+  @Override
+  public JsonObject stats() {
+    JsonArray shards = new JsonArray();
+    for (Shard shard : mShards) {
+      shards.add(shard.mDB.stats()
+          .put("folder", shard.mFolder)
+          .put("operations", shard.mOperations.sum()));
+    }
+
+    return new JsonObject().put("shards", shards);
+  }
+
+  @Override
+  public void close() {
+    for (Shard shard : mShards) {
+      shard.mDB.close();
+    }
+    mFanOutExecutor.shutdown();
+  }
+
+  /**
+   * Moves the documents that belong to another shard than the one holding them, unless the shards
+   * recorded by every folder are exactly the configured ones, then records the configured ones.
+   */
+  private void rebalance(Set<String> pFolders) {
+    Set<String> recorded = new LinkedHashSet<>();
+    boolean complete = true;
+
+    try {
+      for (Shard shard : mShards) {
+        List<String> members = shard.readMembers();
+        if (members == null) {
+          complete = false;
+
+        } else {
+          recorded.addAll(members);
+        }
+      }
+
+      for (String folder : recorded) {
+        if (!pFolders.contains(folder)) {
+          throw new RuntimeException("Unable to initialize DB. Shard folder missing from "
+              + Constants.STATE_FOLDERS_KEY + ": " + folder);
+        }
+      }
+
+      if (complete && recorded.equals(pFolders)) return;
+
+      Set<String> collectionIds = new TreeSet<>();
+      for (Shard shard : mShards) {
+        collectionIds.addAll(shard.collectionIds());
+      }
+
+      for (String collectionId : collectionIds) {
+        for (Shard shard : mShards) {
+          if (!shard.mDB.hasCollection(collectionId)) {
+            shard.mDB.createCollection(Collection.newBuilder().withId(collectionId).build());
+          }
+        }
+      }
+
+      List<Callable<Integer>> tasks = new ArrayList<>(mShards.size());
+      for (Shard shard : mShards) {
+        tasks.add(() -> moveMisplaced(shard, collectionIds));
+      }
+
+      int moved = 0;
+      for (int count : invokeAll(tasks)) {
+        moved += count;
+      }
+
+      for (Shard shard : mShards) {
+        shard.writeMembers(pFolders);
+      }
+
+      LOGGER.info("Moved " + moved + " documents to rebalance DB " + mName + " over " + mShards.size() + " shards");
+
+    } catch (IOException | DocumentExistsException | DocumentNotFoundException | DocumentException ex) {
+      throw new RuntimeException("Unable to initialize DB. Failed to rebalance shards.", ex);
+    }
+  }
+
+  private int moveMisplaced(Shard pSource, Set<String> pCollectionIds)
+      throws DocumentNotFoundException, DocumentException {
+    int moved = 0;
+
+    for (String collectionId : pCollectionIds) {
+      Map<Shard, List<Document>> batches = new HashMap<>();
+
+      for (Document doc : pSource.mDB.getCollection(collectionId).documents()) {
+        Shard owner = ownerOf(hash(collectionId, doc.id()));
+        if (owner == pSource) continue;
+
+        List<Document> batch = batches.computeIfAbsent(owner, s -> new ArrayList<>());
+        batch.add(Document
+            .newBuilder()
+            .withId(doc.id())
+            .underCollection(collectionId)
+            .withPayload(doc.payload())
+            .build());
+
+        if (batch.size() == REBALANCE_BATCH_SIZE) {
+          moved += move(pSource, owner, collectionId, batch);
+          batch.clear();
+        }
+      }
+
+      for (Map.Entry<Shard, List<Document>> batch : batches.entrySet()) {
+        if (!batch.getValue().isEmpty()) {
+          moved += move(pSource, batch.getKey(), collectionId, batch.getValue());
+        }
+      }
+    }
+
+    return moved;
+  }
+
+  /**
+   * Writes the documents to their new shard before deleting them from the old one, so an
+   * interrupted move leaves copies behind rather than losing documents, and is completed on the
+   * next start since the shards are only recorded once all moves are done.
+   */
+  private static int move(Shard pSource, Shard pTarget, String pCollectionId, List<Document> pDocs)
+      throws DocumentException {
+    List<String> docIds = new ArrayList<>(pDocs.size());
+    for (BatchResult result : pTarget.mDB.putDocuments(pDocs)) {
+      if (!result.succeeded()) {
+        throw new DocumentException("Unable to move document " + pCollectionId + "/" + result.id()
+            + " to shard " + pTarget.mFolder, result.error());
+      }
+      docIds.add(result.id());
+    }
+
+    for (BatchResult result : pSource.mDB.deleteDocuments(pCollectionId, docIds)) {
+      if (!result.succeeded()) {
+        throw new DocumentException("Unable to move document " + pCollectionId + "/" + result.id()
+            + " from shard " + pSource.mFolder, result.error());
+      }
+    }
+
+    return docIds.size();
+  }
+
+  @FunctionalInterface
+  private interface ShardBatch {
+
+    List<BatchResult> run(DB pDB, List<Integer> pIndexes)
+        throws DocumentException;
+  }
+
+  /**
+   * Splits the items of a batch by shard, runs each part on its shard in parallel and puts the
+   * results back in request order.
+   */
+  private List<BatchResult> runByShard(int pCount, IntFunction<DB> pShardOf, ShardBatch pBatch)
+      throws DocumentException {
+    Map<DB, List<Integer>> parts = new LinkedHashMap<>();
+    for (int i = 0; i < pCount; i++) {
+      parts.computeIfAbsent(pShardOf.apply(i), s -> new ArrayList<>()).add(i);
+    }
+
+    List<List<Integer>> indexes = new ArrayList<>(parts.values());
+    List<Callable<List<BatchResult>>> tasks = new ArrayList<>(parts.size());
+    for (Map.Entry<DB, List<Integer>> part : parts.entrySet()) {
+      tasks.add(() -> pBatch.run(part.getKey(), part.getValue()));
+    }
+
+    List<List<BatchResult>> partResults;
+    try {
+      partResults = invokeAll(tasks);
+
+    } catch (DocumentNotFoundException ex) {
+      // Batches report missing documents per item.
+      throw new DocumentException("Unable to run batch", ex);
+    }
+
+    var results = new BatchResult[pCount];
+    for (int p = 0; p < indexes.size(); p++) {
+      for (int i = 0; i < indexes.get(p).size(); i++) {
+        results[indexes.get(p).get(i)] = partResults.get(p).get(i);
+      }
+    }
+
+    return List.of(results);
+  }
+
+  /**
+   * Runs the tasks in parallel, or a single task inline.
+   *
+   * @return the results of the tasks, in task order.
+   */
+  private <T> List<T> invokeAll(List<Callable<T>> pTasks)
+      throws DocumentNotFoundException, DocumentException {
+    try {
+      if (pTasks.size() == 1) {
+        return Collections.singletonList(pTasks.get(0).call());
+      }
+
+      List<T> results = new ArrayList<>(pTasks.size());
+      for (Future<T> result : mFanOutExecutor.invokeAll(pTasks)) {
+        results.add(result.get());
+      }
+      return results;
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new DocumentException("Interrupted while running on shards", ex);
+
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof DocumentNotFoundException) throw (DocumentNotFoundException) ex.getCause();
+      if (ex.getCause() instanceof DocumentException) throw (DocumentException) ex.getCause();
+      throw new DocumentException("Unable to run on shards", ex.getCause());
+
+    } catch (DocumentNotFoundException | DocumentException ex) {
+      throw ex;
+
+    } catch (Exception ex) {
+      throw new DocumentException("Unable to run on shards", ex);
+    }
+  }
+
+  private static <T> List<T> pick(List<T> pItems, List<Integer> pIndexes) {
+    List<T> picked = new ArrayList<>(pIndexes.size());
+    for (int index : pIndexes) {
+      picked.add(pItems.get(index));
+    }
+    return picked;
+  }
+
+  private Set<String> indexedPaths(String pCollectionId) {
+    return mIndexedPaths.computeIfAbsent(pCollectionId, id -> ConcurrentHashMap.newKeySet());
+  }
+
+  private DB documentShard(String pCollectionId, String pDocId) {
+    Shard shard = ownerOf(hash(pCollectionId, pDocId));
+    shard.mOperations.increment();
+    return shard.mDB;
+  }
+
+  private Shard collectionShard(String pCollectionId) {
+    return ownerOf(hash(pCollectionId, null));
+  }
+
+  /**
+   * @return the shard of the first ring position at or after the hash, wrapping around.
+   */
+  private Shard ownerOf(long pHash) {
+    int t = Arrays.binarySearch(mTokens, pHash);
+    if (t < 0) t = -t - 1;
+    return mOwners[t == mTokens.length ? 0 : t];
+  }
+
+  /**
+   * 64-bit FNV-1a of the key and optional sub-key, finished with the MurmurHash3 mix so that
+   * similar keys spread over the whole ring. Stable across runs, as placement depends on it.
+   */
+  static long hash(String pKey, String pSubKey) {
+    long h = 0xcbf29ce484222325L;
+    for (int c = 0; c < pKey.length(); c++) {
+      h = (h ^ pKey.charAt(c)) * 0x100000001b3L;
+    }
+
+    if (pSubKey != null) {
+      h = (h ^ '/') * 0x100000001b3L;
+      for (int c = 0; c < pSubKey.length(); c++) {
+        h = (h ^ pSubKey.charAt(c)) * 0x100000001b3L;
+      }
+    }
+
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private class Shard {
+    final String mFolder;
+    final JsonDB mDB;
+    final LongAdder mOperations;
+
+    Shard(String pFolder, JsonDB pDB) {
+      this.mFolder = pFolder;
+      this.mDB = pDB;
+      this.mOperations = new LongAdder();
+    }
+
+    List<String> collectionIds() {
+      File[] collections = new File(mFolder, mName).listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+      List<String> ids = new ArrayList<>();
+      if (collections == null) return ids;
+
+      for (File collection : collections) {
+        ids.add(collection.getName());
+      }
+      return ids;
+    }
+
+    /**
+     * @return the shard folders recorded by this shard, or null if it records none yet.
+     */
+    List<String> readMembers()
+        throws IOException {
+      Path file = membersFile();
+      if (!Files.exists(file)) return null;
+
+      List<String> members = new ArrayList<>();
+      for (Object member : new JsonArray(Files.readString(file))) {
+        members.add((String) member);
+      }
+      return members;
+    }
+
+    void writeMembers(Set<String> pFolders)
+        throws IOException {
+      Path file = membersFile();
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      Files.writeString(tmp, new JsonArray(new ArrayList<>(pFolders)).encode());
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path membersFile() {
+      return Path.of(mFolder, "." + mName + MEMBERS_SUFFIX);
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Point-in-time copy of the files of a DB, unaffected by later writes. Files are hard linked into
+ * a hidden folder next to the DB folder, so taking a snapshot costs no data copy where the file
+ * system supports links, and copied after the DB is unlocked where it does not. Closing the snapshot deletes that folder.
+ */
+public class Snapshot
+    implements AutoCloseable {
+
+  private static final Logger LOGGER = Logger.getLogger(Snapshot.class.getName());
+
+  private static final String FOLDER_INFIX = "-snapshot-";
+
+  private final File mFolder;
+  private final List<Entry> mEntries;
+  private final List<Snapshot> mParts;
+  private final AtomicBoolean mClosed;
+
+  Snapshot(File pFolder, List<Entry> pEntries) {
+    mFolder = pFolder;
+    mEntries = List.copyOf(pEntries);
+    mParts = List.of();
+    mClosed = new AtomicBoolean();
+  }
+
+  /**
+   * Joins the snapshots of DBs holding disjoint sets of files into one, which closes them all.
+   */
+  Snapshot(List<Snapshot> pParts) {
+    List<Entry> entries = new ArrayList<>();
+    for (Snapshot part : pParts) {
+      entries.addAll(part.mEntries);
+    }
+
+    mFolder = null;
+    mEntries = List.copyOf(entries);
+    mParts = List.copyOf(pParts);
+    mClosed = new AtomicBoolean();
+  }
+
+  /**
+   * @return the files of the snapshot, named by their path relative to the DB folder.
+   */
+  public List<Entry> entries() {
+    return mEntries;
+  }
+
+  @Override
+  public void close() {
+    if (!mClosed.compareAndSet(false, true)) return;
+
+    for (Snapshot part : mParts) {
+      part.close();
+    }
+    if (mFolder == null) return;
+
+    try {
+      Utils.deleteFolder(mFolder);
+
+    } catch (IOException ex) {
+      LOGGER.log(Level.WARNING, "Unable to delete snapshot " + mFolder, ex);
+    }
+  }
+
+  /**
+   * Creates an empty snapshot folder next to the given DB folder.
+   */
+  static File newFolder(File pRootFolder)
+      throws IOException {
+    String prefix = "." + pRootFolder.getName() + FOLDER_INFIX;
+    return Files.createTempDirectory(pRootFolder.getAbsoluteFile().getParentFile().toPath(), prefix).toFile();
+  }
+
+  /**
+   * Deletes the snapshot folders of the given DB folder left behind by a crash.
+   */
+  static void deleteStale(File pRootFolder) {
+    String prefix = "." + pRootFolder.getName() + FOLDER_INFIX;
+    File[] folders = pRootFolder.getAbsoluteFile().getParentFile().listFiles(file -> file.getName().startsWith(prefix));
+    if (folders == null) return;
+
+    for (File folder : folders) {
+      try {
+        Utils.deleteFolder(folder);
+
+      } catch (IOException ex) {
+        LOGGER.log(Level.WARNING, "Unable to delete stale snapshot " + folder, ex);
+      }
+    }
+  }
+
+  /**
+   * Hard links the file into the snapshot. Where links are not supported, only opens the file and
+   * adds it to the copies to make with {@link #copy} once the DB locks are released. DB files are
+   * only ever replaced by renames, appended to or deleted, so the open file keeps the snapshot
+   * content; on Windows, which does not let open files be replaced, writes to those files fail
+   * until the copy is done.
+   */
+  static void link(Path pFile, Path pLink, long pLength, List<Copy> pCopies)
+      throws IOException {
+    try {
+      Files.createLink(pLink, pFile);
+
+    } catch (UnsupportedOperationException | FileSystemException ex) {
+      if (Files.exists(pLink)) throw ex;
+      pCopies.add(new Copy(FileChannel.open(pFile, StandardOpenOption.READ), pLink, pLength));
+    }
+  }
+
+  /**
+   * Copies the files that could not be linked into the snapshot, then closes them.
+   */
+  static void copy(List<Copy> pCopies)
+      throws IOException {
+    try {
+      for (Copy copy : pCopies) {
+        copy.copy();
+      }
+
+    } finally {
+      close(pCopies);
+    }
+  }
+
+  static void close(List<Copy> pCopies) {
+    for (Copy copy : pCopies) {
+      try {
+        copy.mSource.close();
+
+      } catch (IOException ex) {
+        LOGGER.log(Level.WARNING, "Unable to close snapshot source of " + copy.mTarget, ex);
+      }
+    }
+  }
+
+  /**
+   * A file opened while the DB was locked, to copy into the snapshot afterwards.
+   */
+  static class Copy {
+    final FileChannel mSource;
+    final Path mTarget;
+    final long mLength;
+
+    Copy(FileChannel pSource, Path pTarget, long pLength) {
+      this.mSource = pSource;
+      this.mTarget = pTarget;
+      this.mLength = pLength;
+    }
+
+    void copy()
+        throws IOException {
+      try (FileChannel target = FileChannel.open(mTarget, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        long position = 0;
+        while (position < mLength) {
+          long transferred = mSource.transferTo(position, mLength - position, target);
+          if (transferred <= 0) {
+            throw new EOFException("File truncated while copied into snapshot: " + mTarget);
+          }
+          position += transferred;
+        }
+      }
+    }
+  }
+
+  public static class Entry {
+    final String mName;
+    final Path mPath;
+    final long mLength;
+    final long mModified;
+
+    Entry(String pName, Path pPath, long pLength, long pModified) {
+      this.mName = pName;
+      this.mPath = pPath;
+      this.mLength = pLength;
+      this.mModified = pModified;
+    }
+
+    public String name() {
+      return mName;
+    }
+
+    public Path path() {
+      return mPath;
+    }
+
+    /**
+     * @return the number of bytes of the file that belong to the snapshot, which may be fewer than
+     * the file holds for append-only files.
+     */
+    public long length() {
+      return mLength;
+    }
+
+    public long modified() {
+      return mModified;
+    }
+  }
+}
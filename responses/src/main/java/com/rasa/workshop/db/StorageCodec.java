@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.github.luben.zstd.Zstd;
+import com.rasa.workshop.common.Constants;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes documents into their on-disk representation: compact JSON, Smile or CBOR, optionally
+ * compressed with LZ4 or zstd.
+ *
+ * Decoding detects the representation from the leading bytes rather than from the configuration,
+ * so files written under another setting, pretty printed JSON included, keep loading and are
+ * converted the next time they are written.
+ */
+class StorageCodec {
+
+  enum Format {
+    JSON,
+    SMILE,
+    CBOR
+  }
+
+  enum Compression {
+    NONE,
+    LZ4,
+    ZSTD
+  }
+
+  private static final byte[] LZ4_MAGIC = {'L', 'Z', '4', 'B'};
+  private static final byte[] ZSTD_MAGIC = {(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD};
+  private static final byte[] SMILE_MAGIC = {':', ')', '\n'};
+  private static final byte[] CBOR_MAGIC = {(byte) 0xD9, (byte) 0xD9, (byte) 0xF7};
+
+  private static final ObjectMapper JSON_MAPPER = newMapper(new JsonFactory());
+  private static final ObjectMapper SMILE_MAPPER = newMapper(new SmileFactory());
+  private static final ObjectMapper CBOR_MAPPER = newMapper(
+      new CBORFactory().enable(CBORGenerator.Feature.WRITE_TYPE_HEADER));
+
+  private final Format mFormat;
+  private final Compression mCompression;
+  private final ObjectMapper mMapper;
+  private final LZ4Compressor mLz4Compressor;
+  private final LZ4FastDecompressor mLz4Decompressor;
+
+  StorageCodec(JsonObject pConfig) {
+    mFormat = Format.valueOf(pConfig
+        .getString(Constants.STORAGE_FORMAT_KEY, Constants.DEFAULT_STORAGE_FORMAT_VALUE)
+        .toUpperCase());
+    mCompression = Compression.valueOf(pConfig
+        .getString(Constants.STORAGE_COMPRESSION_KEY, Constants.DEFAULT_STORAGE_COMPRESSION_VALUE)
+        .toUpperCase());
+    mMapper = mapper(mFormat);
+
+    LZ4Factory lz4 = LZ4Factory.fastestInstance();
+    mLz4Compressor = lz4.fastCompressor();
+    mLz4Decompressor = lz4.fastDecompressor();
+  }
+
+  byte[] encode(JsonObject pJson)
+      throws IOException {
+    byte[] bytes = mMapper.writeValueAsBytes(pJson.getMap());
+
+    switch (mCompression) {
+      case LZ4:
+        byte[] compressed = new byte[LZ4_MAGIC.length + 4 + mLz4Compressor.maxCompressedLength(bytes.length)];
+        System.arraycopy(LZ4_MAGIC, 0, compressed, 0, LZ4_MAGIC.length);
+        writeInt(compressed, LZ4_MAGIC.length, bytes.length);
+        int length = mLz4Compressor.compress(bytes, 0, bytes.length, compressed, LZ4_MAGIC.length + 4);
+        return Arrays.copyOf(compressed, LZ4_MAGIC.length + 4 + length);
+
+      case ZSTD:
+        return Zstd.compress(bytes);
+
+      default:
+        return bytes;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  JsonObject decode(byte[] pBytes)
+      throws IOException {
+    byte[] bytes = decompress(pBytes);
+    return new JsonObject(mapper(detectFormat(bytes)).readValue(bytes, Map.class));
+  }
+
+  /**
+   * Decodes a document from the remaining bytes of a buffer, such as a mapped file, parsing them in
+   * place rather than copying them into the heap first. Compressed documents are inflated into a
+   * buffer of their own.
+   */
+  @SuppressWarnings("unchecked")
+  JsonObject decode(ByteBuffer pBytes)
+      throws IOException {
+    ByteBuffer bytes = pBytes;
+
+    if (startsWith(pBytes, LZ4_MAGIC)) {
+      int offset = pBytes.position() + LZ4_MAGIC.length;
+      bytes = ByteBuffer.allocate(pBytes.getInt(offset));
+      mLz4Decompressor.decompress(pBytes, offset + 4, bytes, 0, bytes.capacity());
+
+    } else if (startsWith(pBytes, ZSTD_MAGIC)) {
+      if (!pBytes.isDirect()) {
+        byte[] copy = new byte[pBytes.remaining()];
+        pBytes.duplicate().get(copy);
+        return decode(copy);
+      }
+
+      long length = Zstd.decompressedSize(pBytes);
+      if (length <= 0 || length > Integer.MAX_VALUE) {
+        throw new IOException("Unknown zstd content size");
+      }
+      bytes = Zstd.decompress(pBytes, (int) length);
+    }
+
+    return new JsonObject(mapper(detectFormat(bytes)).readValue(new ByteBufferBackedInputStream(bytes.duplicate()), Map.class));
+  }
+
+  /**
+   * Decodes plain JSON from the remaining bytes of a buffer, without copying them.
+   */
+  @SuppressWarnings("unchecked")
+  static JsonObject decodeJson(ByteBuffer pBytes)
+      throws IOException {
+    return new JsonObject(JSON_MAPPER.readValue(new ByteBufferBackedInputStream(pBytes.duplicate()), Map.class));
+  }
+
+  private byte[] decompress(byte[] pBytes)
+      throws IOException {
+    if (startsWith(pBytes, LZ4_MAGIC)) {
+      int length = readInt(pBytes, LZ4_MAGIC.length);
+      byte[] bytes = new byte[length];
+      mLz4Decompressor.decompress(pBytes, LZ4_MAGIC.length + 4, bytes, 0, length);
+      return bytes;
+    }
+
+    if (startsWith(pBytes, ZSTD_MAGIC)) {
+      long length = Zstd.decompressedSize(pBytes);
+      if (length <= 0 || length > Integer.MAX_VALUE) {
+        throw new IOException("Unknown zstd content size");
+      }
+      return Zstd.decompress(pBytes, (int) length);
+    }
+
+    return pBytes;
+  }
+
+  private static Format detectFormat(byte[] pBytes) {
+    if (startsWith(pBytes, SMILE_MAGIC)) return Format.SMILE;
+    if (startsWith(pBytes, CBOR_MAGIC)) return Format.CBOR;
+    return Format.JSON;
+  }
+
+  private static Format detectFormat(ByteBuffer pBytes) {
+    if (startsWith(pBytes, SMILE_MAGIC)) return Format.SMILE;
+    if (startsWith(pBytes, CBOR_MAGIC)) return Format.CBOR;
+    return Format.JSON;
+  }
+
+  private static ObjectMapper mapper(Format pFormat) {
+    switch (pFormat) {
+      case SMILE:
+        return SMILE_MAPPER;
+
+      case CBOR:
+        return CBOR_MAPPER;
+
+      default:
+        return JSON_MAPPER;
+    }
+  }
+
+  /**
+   * The documents handed to the DB hold nested {@link JsonObject} and {@link JsonArray} values,
+   * which are written as the maps and lists they wrap.
+   */
+  private static ObjectMapper newMapper(JsonFactory pFactory) {
+    var module = new SimpleModule();
+    module.addSerializer(JsonObject.class, new JsonSerializer<>() {
+      @Override
+      public void serialize(JsonObject pValue, JsonGenerator pGenerator, SerializerProvider pProvider)
+          throws IOException {
+        pGenerator.writeObject(pValue.getMap());
+      }
+    });
+    module.addSerializer(JsonArray.class, new JsonSerializer<>() {
+      @Override
+      public void serialize(JsonArray pValue, JsonGenerator pGenerator, SerializerProvider pProvider)
+          throws IOException {
+        pGenerator.writeObject(pValue.getList());
+      }
+    });
+
+    return new ObjectMapper(pFactory).registerModule(module);
+  }
+
+  private static boolean startsWith(byte[] pBytes, byte[] pMagic) {
+    if (pBytes.length < pMagic.length) return false;
+
+    for (int b = 0; b < pMagic.length; b++) {
+      if (pBytes[b] != pMagic[b]) return false;
+    }
+
+    return true;
+  }
+
+  private static boolean startsWith(ByteBuffer pBytes, byte[] pMagic) {
+    if (pBytes.remaining() < pMagic.length) return false;
+
+    for (int b = 0; b < pMagic.length; b++) {
+      if (pBytes.get(pBytes.position() + b) != pMagic[b]) return false;
+    }
+
+    return true;
+  }
+
+  private static void writeInt(byte[] pBytes, int pOffset, int pValue) {
+    pBytes[pOffset] = (byte) (pValue >>> 24);
+    pBytes[pOffset + 1] = (byte) (pValue >>> 16);
+    pBytes[pOffset + 2] = (byte) (pValue >>> 8);
+    pBytes[pOffset + 3] = (byte) pValue;
+  }
+
+  private static int readInt(byte[] pBytes, int pOffset) {
+    return (pBytes[pOffset] & 0xFF) << 24
+        | (pBytes[pOffset + 1] & 0xFF) << 16
+        | (pBytes[pOffset + 2] & 0xFF) << 8
+        | (pBytes[pOffset + 3] & 0xFF);
+  }
+}
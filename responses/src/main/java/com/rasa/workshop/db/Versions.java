@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+/**
+ * Document versions are millisecond timestamps, bumped past the previous version when several
+ * updates land within the same millisecond, so they keep increasing across restarts.
+ */
+final class Versions {
+
+  private Versions() {}
+
+  static long next(long pPrevious) {
+    return Math.max(pPrevious + 1, System.currentTimeMillis());
+  }
+}
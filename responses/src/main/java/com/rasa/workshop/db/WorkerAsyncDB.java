@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.common.Document;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+
+/**
+ * {@link AsyncDB} that runs a blocking {@link DB} on a dedicated, bounded worker pool so that slow
+ * disks or held locks never stall an event loop.
+ */
+class WorkerAsyncDB
+    implements AsyncDB {
+
+  private final DB mDB;
+  private final WorkerExecutor mExecutor;
+
+  WorkerAsyncDB(Vertx pVertx, DB pDB, JsonObject pConfig) {
+    mDB = Objects.requireNonNull(pDB, "DB should be provided");
+
+    int poolSize = pConfig.getInteger(Constants.DB_WORKER_POOL_SIZE_KEY, Constants.DEFAULT_DB_WORKER_POOL_SIZE_VALUE);
+    mExecutor = pVertx.createSharedWorkerExecutor("db-worker-" + mDB.name(), poolSize);
+  }
+
+  @Override
+  public String name() {
+    return mDB.name();
+  }
+
+  @Override
+  public Future<Document> createDocument(Document pDoc) {
+    return execute(() -> mDB.createDocument(pDoc));
+  }
+
+  @Override
+  public Future<Document> getDocument(String pCollectionId, String pDocId) {
+    return execute(() -> mDB.getDocument(pCollectionId, pDocId));
+  }
+
+  @Override
+  public Future<Document> updateDocument(Document pDoc) {
+    return execute(() -> mDB.updateDocument(pDoc));
+  }
+
+  @Override
+  public Future<Document> updateDocument(Document pDoc, long pExpectedVersion) {
+    return execute(() -> mDB.updateDocument(pDoc, pExpectedVersion));
+  }
+
+  @Override
+  public Future<Document> deleteDocument(String pCollectionId, String pDocId) {
+    return execute(() -> mDB.deleteDocument(pCollectionId, pDocId));
+  }
+
+  @Override
+  public Future<Boolean> hasDocument(String pCollectionId, String pDocId) {
+    return execute(() -> mDB.hasDocument(pCollectionId, pDocId));
+  }
+
+  @Override
+  public Future<Collection> createCollection(Collection pCol) {
+    return execute(() -> mDB.createCollection(pCol));
+  }
+
+  @Override
+  public Future<Collection> getCollection(String pId) {
+    return execute(() -> mDB.getCollection(pId));
+  }
+
+  @Override
+  public Future<Collection> updateCollection(Collection pCol) {
+    return execute(() -> mDB.updateCollection(pCol));
+  }
+
+  @Override
+  public Future<Collection> deleteCollection(String pId) {
+    return execute(() -> mDB.deleteCollection(pId));
+  }
+
+  @Override
+  public Future<Boolean> hasCollection(String pId) {
+    return execute(() -> mDB.hasCollection(pId));
+  }
+
+  @Override
+  public Future<List<BatchResult>> getDocuments(String pCollectionId, List<String> pDocIds) {
+    return execute(() -> mDB.getDocuments(pCollectionId, pDocIds));
+  }
+
+  @Override
+  public Future<List<BatchResult>> putDocuments(List<Document> pDocs) {
+    return execute(() -> mDB.putDocuments(pDocs));
+  }
+
+  @Override
+  public Future<List<BatchResult>> deleteDocuments(String pCollectionId, List<String> pDocIds) {
+    return execute(() -> mDB.deleteDocuments(pCollectionId, pDocIds));
+  }
+
+  @Override
+  public Future<Snapshot> snapshot() {
+    return execute(mDB::snapshot);
+  }
+
+  @Override
+  public Future<Void> createIndex(String pCollectionId, String pPath) {
+    return execute(() -> {
+      mDB.createIndex(pCollectionId, pPath);
+      return null;
+    });
+  }
+
+  @Override
+  public Future<List<Document>> query(Query pQuery) {
+    return execute(() -> mDB.query(pQuery));
+  }
+
+  @Override
+  public DB sync() {
+    return mDB;
+  }
+
+  @Override
+  public void close() {
+    mExecutor.close();
+  }
+
+  private <T> Future<T> execute(Callable<T> pCall) {
+    Promise<T> promise = Promise.promise();
+
+    mExecutor.<T>executeBlocking(blockingPromise -> {
+      try {
+        blockingPromise.complete(pCall.call());
+
+      } catch (Exception ex) {
+        blockingPromise.fail(ex);
+      }
+    }, false, promise);
+
+    return promise.future();
+  }
+}
@@ -0,0 +1,596 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import com.rasa.workshop.common.DocumentExistsException;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind {@link DB} decorator. Document mutations are acknowledged as soon as they are queued
+ * in memory, where readers see them right away, and a background thread writes them to the wrapped
+ * DB in batches. Repeated writes to a document while it is queued collapse into the latest one.
+ *
+ * The queue holds at most the configured number of documents; writers to other documents block
+ * until the flusher makes room. Queued documents get a version of their own, and version checked
+ * updates, collection listings, queries and collection mutations first write the affected queued
+ * documents through. The wrapped DB stores a queued document under a version of its own, so its
+ * landing is reported to the {@link #watchExternalChanges} listeners for caches to drop the queued
+ * version.
+ */
+public class WriteBehindDB
+    implements DB {
+
+  private static final Logger LOGGER = Logger.getLogger(WriteBehindDB.class.getName());
+  private static final long MAX_BACK_OFF = 1_000;
+
+  private final DB mDelegate;
+  private final int mQueueSize;
+  private final int mBatchSize;
+  private final long mDelay;
+  private final long mCloseTimeout;
+  private final Object mMonitor;
+  // Serialises writes to the delegate, so an older queued write never lands after a newer one.
+  private final ReentrantLock mFlushLock;
+  private final Thread mFlusher;
+  private final List<Consumer<Change>> mListeners;
+
+  private final Map<DocumentKey, Pending> mDirty;
+  // Documents under a version checked update, which writers to them wait for.
+  private final Set<DocumentKey> mChecking;
+  // The latest version queued or written through, so queued versions keep increasing.
+  private long mLastVersion;
+  private long mFirstDirtyAt;
+  private boolean mClosed;
+  private int mDropped;
+
+  public WriteBehindDB(DB pDelegate, JsonObject pConfig) {
+    mDelegate = pDelegate;
+    mQueueSize = pConfig.getInteger(Constants.WRITE_BEHIND_QUEUE_SIZE_KEY, Constants.DEFAULT_WRITE_BEHIND_QUEUE_SIZE_VALUE);
+    mBatchSize = pConfig.getInteger(Constants.WRITE_BEHIND_BATCH_SIZE_KEY, Constants.DEFAULT_WRITE_BEHIND_BATCH_SIZE_VALUE);
+    mDelay = pConfig.getLong(Constants.WRITE_BEHIND_DELAY_KEY, Constants.DEFAULT_WRITE_BEHIND_DELAY_VALUE);
+    mCloseTimeout = pConfig.getLong(Constants.WRITE_BEHIND_CLOSE_TIMEOUT_KEY, Constants.DEFAULT_WRITE_BEHIND_CLOSE_TIMEOUT_VALUE);
+    mMonitor = new Object();
+    mFlushLock = new ReentrantLock();
+    mListeners = new CopyOnWriteArrayList<>();
+    mDirty = new LinkedHashMap<>();
+    mChecking = new HashSet<>();
+
+    mFlusher = new Thread(this::flushLoop, "write-behind-" + pDelegate.name());
+    mFlusher.setDaemon(true);
+    mFlusher.start();
+  }
+
+  @Override
+  public String name() {
+    return mDelegate.name();
+  }
+
+  @Override
+  public Document createDocument(Document pDoc)
+      throws DocumentExistsException, DocumentException {
+    var key = new DocumentKey(pDoc.collectionId(), pDoc.id());
+
+    synchronized (mMonitor) {
+      awaitRoom(key);
+
+      if (!mDelegate.hasCollection(pDoc.collectionId())) {
+        throw new DocumentException("Unable to create document: " + pDoc.id());
+      }
+
+      Pending pending = mDirty.get(key);
+      if (pending != null ? pending.mDoc != null : mDelegate.hasDocument(key.mCollectionId, key.mDocId)) {
+        throw new DocumentExistsException("There's an existing document: " + pDoc.id());
+      }
+
+      return enqueue(key, pDoc);
+    }
+  }
+
+  @Override
+  public Document getDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    Pending pending;
+    synchronized (mMonitor) {
+      pending = mDirty.get(new DocumentKey(pCollectionId, pDocId));
+    }
+
+    if (pending == null) {
+      return mDelegate.getDocument(pCollectionId, pDocId);
+    }
+
+    if (pending.mDoc == null) {
+      throw DocumentNotFoundException.stackless("Document not found: " + pDocId);
+    }
+
+    return pending.mDoc;
+  }
+
+  @Override
+  public Document updateDocument(Document pDoc)
+      throws DocumentNotFoundException, DocumentException {
+    var key = new DocumentKey(pDoc.collectionId(), pDoc.id());
+
+    synchronized (mMonitor) {
+      awaitRoom(key);
+
+      Pending pending = mDirty.get(key);
+      if (pending != null ? pending.mDoc == null : !mDelegate.hasDocument(key.mCollectionId, key.mDocId)) {
+        throw new DocumentNotFoundException("Document not found: " + pDoc.id());
+      }
+
+      return enqueue(key, pDoc);
+    }
+  }
+
+  /**
+   * Writes the queued write of the document through, then updates it in the wrapped DB while
+   * writers to it wait, so that no write queued meanwhile can land over the checked one. A version
+   * read from the queue is matched against the version the wrapped DB stored that write under.
+   */
+  @Override
+  public Document updateDocument(Document pDoc, long pExpectedVersion)
+      throws DocumentNotFoundException, DocumentVersionConflictException, DocumentException {
+    var key = new DocumentKey(pDoc.collectionId(), pDoc.id());
+    Pending pending;
+    synchronized (mMonitor) {
+      pending = mDirty.get(key);
+    }
+
+    mFlushLock.lock();
+
+    try {
+      while (true) {
+        if (!flush(key::equals, Integer.MAX_VALUE)) {
+          throw new DocumentException("Unable to update document: " + pDoc.id() + ", its queued write failed");
+        }
+
+        synchronized (mMonitor) {
+          // A write may have been queued since the flush.
+          if (!mDirty.containsKey(key)) {
+            mChecking.add(key);
+            break;
+          }
+        }
+      }
+
+      long expectedVersion = pExpectedVersion;
+      if (pending != null && pending.mDoc != null && pending.mDoc.version() == pExpectedVersion) {
+        expectedVersion = pending.mWrittenVersion;
+      }
+
+      Document doc = mDelegate.updateDocument(pDoc, expectedVersion);
+      synchronized (mMonitor) {
+        mLastVersion = Math.max(mLastVersion, doc.version());
+      }
+      return doc;
+
+    } finally {
+      synchronized (mMonitor) {
+        mChecking.remove(key);
+        mMonitor.notifyAll();
+      }
+      mFlushLock.unlock();
+    }
+  }
+
+  @Override
+  public Document deleteDocument(String pCollectionId, String pDocId)
+      throws DocumentNotFoundException, DocumentException {
+    var key = new DocumentKey(pCollectionId, pDocId);
+
+    synchronized (mMonitor) {
+      awaitRoom(key);
+
+      Pending pending = mDirty.get(key);
+      Document doc = pending != null ? pending.mDoc : mDelegate.getDocument(pCollectionId, pDocId);
+      if (doc == null) {
+        throw new DocumentNotFoundException("Document not found: " + pDocId);
+      }
+
+      enqueue(key, null);
+      return doc;
+    }
+  }
+
+  @Override
+  public boolean hasDocument(String pCollectionId, String pDocId) {
+    Pending pending;
+    synchronized (mMonitor) {
+      pending = mDirty.get(new DocumentKey(pCollectionId, pDocId));
+    }
+
+    return pending != null ? pending.mDoc != null : mDelegate.hasDocument(pCollectionId, pDocId);
+  }
+
+  @Override
+  public Collection createCollection(Collection pCol)
+      throws DocumentExistsException, DocumentException {
+    return mDelegate.createCollection(pCol);
+  }
+
+  @Override
+  public Collection getCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    flushCollection(pId);
+    return mDelegate.getCollection(pId);
+  }
+
+  @Override
+  public Collection updateCollection(Collection pCol)
+      throws DocumentNotFoundException, DocumentException {
+    flushCollection(pCol.id());
+    return mDelegate.updateCollection(pCol);
+  }
+
+  @Override
+  public Collection deleteCollection(String pId)
+      throws DocumentNotFoundException, DocumentException {
+    mFlushLock.lock();
+
+    try {
+      synchronized (mMonitor) {
+        mDirty.keySet().removeIf(key -> key.mCollectionId.equals(pId));
+        mMonitor.notifyAll();
+        return mDelegate.deleteCollection(pId);
+      }
+
+    } finally {
+      mFlushLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean hasCollection(String pId) {
+    return mDelegate.hasCollection(pId);
+  }
+
+  @Override
+  public void createIndex(String pCollectionId, String pPath)
+      throws DocumentNotFoundException, DocumentException {
+    flushCollection(pCollectionId);
+    mDelegate.createIndex(pCollectionId, pPath);
+  }
+
+  @Override
+  public List<Document> query(Query pQuery)
+      throws DocumentNotFoundException, DocumentException {
+    flushCollection(pQuery.collectionId());
+    return mDelegate.query(pQuery);
+  }
+
+  /**
+   * Writes everything queued through first, so the snapshot holds every acknowledged write.
+   */
+  @Override
+  public Snapshot snapshot()
+      throws DocumentException {
+    mFlushLock.lock();
+
+    try {
+      if (!flush(key -> true, Integer.MAX_VALUE)) {
+        throw new DocumentException("Unable to snapshot DB " + name() + ", queued writes failed");
+      }
+      return mDelegate.snapshot();
+
+    } finally {
+      mFlushLock.unlock();
+    }
+  }
+
+  /**
+   * Also reports queued writes landing in the wrapped DB, with the version it stored them under.
+   */
+  @Override
+  public void watchExternalChanges(Consumer<Change> pListener) {
+    mListeners.add(pListener);
+    mDelegate.watchExternalChanges(pListener);
+  }
+
+  @Override
+  public JsonObject stats() {
+    return mDelegate.stats();
+  }
+
+  /**
+   * Writes everything still queued to the wrapped DB, retrying failed writes for up to the
+   * configured close timeout, then closes it.
+   *
+   * @throws IllegalStateException if queued writes were still failing at the timeout and had to be
+   *     dropped.
+   */
+  @Override
+  public void close() {
+    synchronized (mMonitor) {
+      mClosed = true;
+      mMonitor.notifyAll();
+    }
+
+    try {
+      mFlusher.join();
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    mDelegate.close();
+
+    synchronized (mMonitor) {
+      if (mDropped > 0) {
+        throw new IllegalStateException("Dropped " + mDropped + " queued writes of DB " + name() + " on close");
+      }
+    }
+  }
+
+  /**
+   * Blocks while the queue is full, unless the document is already queued and only needs its
+   * entry replaced, and while the document is under a version checked update. Callers hold the
+   * monitor.
+   */
+  private void awaitRoom(DocumentKey pKey)
+      throws DocumentException {
+    try {
+      while (!mClosed && (mChecking.contains(pKey) || mDirty.size() >= mQueueSize && !mDirty.containsKey(pKey))) {
+        mMonitor.wait();
+      }
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new DocumentException("Interrupted while waiting to queue document: " + pKey.mDocId, ex);
+    }
+
+    if (mClosed) {
+      throw new DocumentException("DB is closed: " + name());
+    }
+  }
+
+  /**
+   * Queues a copy of the document at a new version, since the writer may still modify it, or its
+   * deletion when null. Callers hold the monitor.
+   */
+  private Document enqueue(DocumentKey pKey, Document pDoc) {
+    Document doc = null;
+    if (pDoc != null) {
+      mLastVersion = Versions.next(mLastVersion);
+      doc = Document
+          .newBuilder()
+          .underCollection(pKey.mCollectionId)
+          .withId(pKey.mDocId)
+          .withVersion(mLastVersion)
+          .withPayload(pDoc.payload() != null ? pDoc.payload().copy() : null)
+          .build();
+    }
+
+    if (mDirty.isEmpty()) {
+      mFirstDirtyAt = System.currentTimeMillis();
+    }
+
+    mDirty.put(pKey, new Pending(pKey, doc));
+    mMonitor.notifyAll();
+    return doc;
+  }
+
+  private void flushCollection(String pCollectionId) {
+    mFlushLock.lock();
+
+    try {
+      flush(key -> key.mCollectionId.equals(pCollectionId), Integer.MAX_VALUE);
+
+    } finally {
+      mFlushLock.unlock();
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      boolean closed;
+
+      synchronized (mMonitor) {
+        try {
+          while (!mClosed && mDirty.isEmpty()) {
+            mMonitor.wait();
+          }
+
+          long remaining;
+          while (!mClosed && mDirty.size() < mBatchSize
+              && (remaining = mFirstDirtyAt + mDelay - System.currentTimeMillis()) > 0) {
+            mMonitor.wait(remaining);
+          }
+
+        } catch (InterruptedException ex) {
+          mClosed = true;
+        }
+
+        closed = mClosed;
+      }
+
+      if (closed) {
+        flushOnClose();
+        return;
+      }
+
+      mFlushLock.lock();
+      boolean flushed;
+
+      try {
+        flushed = flush(key -> true, mBatchSize);
+
+      } finally {
+        mFlushLock.unlock();
+      }
+
+      synchronized (mMonitor) {
+        if (!flushed) {
+          // Back off instead of spinning on a failing DB, the writes stay queued.
+          mFirstDirtyAt = System.currentTimeMillis();
+          try {
+            mMonitor.wait(mDelay);
+
+          } catch (InterruptedException ex) {
+            mClosed = true;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes everything still queued, backing off between failed attempts until the close timeout,
+   * and records what is left as dropped.
+   */
+  private void flushOnClose() {
+    long deadline = System.currentTimeMillis() + mCloseTimeout;
+    long backOff = Math.max(1, mDelay);
+
+    while (true) {
+      mFlushLock.lock();
+      boolean flushed;
+
+      try {
+        flushed = flush(key -> true, Integer.MAX_VALUE);
+
+      } finally {
+        mFlushLock.unlock();
+      }
+
+      long remaining = deadline - System.currentTimeMillis();
+      if (flushed || remaining <= 0) break;
+
+      try {
+        Thread.sleep(Math.min(backOff, remaining));
+
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      backOff = Math.min(backOff * 2, MAX_BACK_OFF);
+    }
+
+    synchronized (mMonitor) {
+      mDropped = mDirty.size();
+      if (mDropped > 0) {
+        LOGGER.severe("Dropping " + mDropped + " queued writes of DB " + name() + " on close");
+      }
+    }
+  }
+
+  /**
+   * Writes the oldest queued documents matching the filter to the wrapped DB. Entries leave the
+   * queue only once written, and only if they were not replaced meanwhile, so readers never miss
+   * a write. Callers hold the flush lock.
+   *
+   * @return false if any write failed; failed writes stay queued.
+   */
+  private boolean flush(Predicate<DocumentKey> pFilter, int pLimit) {
+    List<Pending> batch = new ArrayList<>();
+    synchronized (mMonitor) {
+      for (Pending pending : mDirty.values()) {
+        if (batch.size() >= pLimit) break;
+        if (pFilter.test(pending.mKey)) batch.add(pending);
+      }
+    }
+
+    if (batch.isEmpty()) return true;
+
+    boolean flushed = true;
+    List<Pending> written = new ArrayList<>(batch.size());
+    List<Change> changes = new ArrayList<>(batch.size());
+    for (Pending pending : batch) {
+      try {
+        Change change = write(pending);
+        if (change != null) changes.add(change);
+        written.add(pending);
+
+      } catch (DocumentNotFoundException ex) {
+        LOGGER.warning("Dropping queued write of " + pending.mKey + ": " + ex.getMessage());
+        written.add(pending);
+
+      } catch (DocumentExistsException | DocumentException ex) {
+        LOGGER.log(Level.SEVERE, "Unable to write back " + pending.mKey, ex);
+        flushed = false;
+      }
+    }
+
+    synchronized (mMonitor) {
+      for (Pending pending : written) {
+        mDirty.remove(pending.mKey, pending);
+        mLastVersion = Math.max(mLastVersion, pending.mWrittenVersion);
+      }
+      mMonitor.notifyAll();
+    }
+
+    for (Change change : changes) {
+      for (Consumer<Change> listener : mListeners) {
+        listener.accept(change);
+      }
+    }
+
+    return flushed;
+  }
+
+  /**
+   * @return the change to report for a written document, or null for a deletion.
+   */
+  private Change write(Pending pPending)
+      throws DocumentNotFoundException, DocumentExistsException, DocumentException {
+    DocumentKey key = pPending.mKey;
+
+    if (pPending.mDoc == null) {
+      if (mDelegate.hasDocument(key.mCollectionId, key.mDocId)) {
+        mDelegate.deleteDocument(key.mCollectionId, key.mDocId);
+      }
+      return null;
+    }
+
+    Document doc = mDelegate.hasDocument(key.mCollectionId, key.mDocId)
+        ? mDelegate.updateDocument(pPending.mDoc)
+        : mDelegate.createDocument(pPending.mDoc);
+
+    // Reported as an update even for a creation, which was reported when it was queued.
+    pPending.mWrittenVersion = doc.version();
+    return new Change(key.mCollectionId, key.mDocId, doc.version(), Change.Op.UPDATE, false);
+  }
+
+  private static class Pending {
+    final DocumentKey mKey;
+    // Null for a deletion.
+    final Document mDoc;
+    // The version the wrapped DB stored the document under, once written.
+    volatile long mWrittenVersion;
+
+    Pending(DocumentKey pKey, Document pDoc) {
+      this.mKey = pKey;
+      this.mDoc = pDoc;
+    }
+  }
+}
@@ -17,7 +17,6 @@ package com.rasa.workshop.rasa;
 import com.rasa.workshop.common.DocumentException;
 import com.rasa.workshop.common.DocumentExistsException;
 import com.rasa.workshop.common.DocumentNotFoundException;
-import com.rasa.workshop.db.DB;
 import com.rasa.workshop.rasa.event.Event;
 import com.rasa.workshop.rasa.event.FormEvent;
 import com.rasa.workshop.rasa.event.SlotSetEvent;
@@ -40,11 +39,10 @@ public abstract class BaseFormAction
 
   protected final ResponsesService mService;
 
-  public BaseFormAction(String pName, Logger pLogger, DB pDB)
-    throws Exception {
+  public BaseFormAction(String pName, Logger pLogger, ResponsesService pService) {
     this.mName = pName;
     this.mLogger = pLogger;
-    this.mService = new ResponsesService(pDB);
+    this.mService = pService;
   }
 
   @Override
@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.rasa;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.rasa.workshop.common.Utils;
+import io.netty.buffer.ByteBufInputStream;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.jackson.DatabindCodec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a Rasa NLG request needed to render a response.
+ *
+ * Rasa posts the whole tracker, events included, on every NLG call. The body is read with the
+ * Jackson streaming API and only the fields below are materialised; everything else, the
+ * ever-growing events history in particular, is skipped token by token.
+ *
+ * A batch request carries an "items" array of {template, arguments} objects instead of a single
+ * template; its items share the tracker and channel of the enclosing request.
+ */
+public class NlgRequest {
+
+  private static final JsonFactory FACTORY = DatabindCodec.mapper().getFactory();
+
+  private String mTemplate;
+  private JsonObject mArguments = Utils.EMPTY_JSON;
+  private JsonObject mSlots = Utils.EMPTY_JSON;
+  private JsonObject mLatestMessage = Utils.EMPTY_JSON;
+  private String mChannel;
+  private List<NlgRequest> mItems;
+
+  private IncomingMessage mIncomingMessage;
+
+  private NlgRequest() {}
+
+  public String template() {
+    return mTemplate;
+  }
+
+  public JsonObject arguments() {
+    return mArguments;
+  }
+
+  public JsonObject slots() {
+    return mSlots;
+  }
+
+  public IncomingMessage latestMessage() {
+    if (mIncomingMessage == null) {
+      mIncomingMessage = new IncomingMessage(mLatestMessage);
+    }
+
+    return mIncomingMessage;
+  }
+
+  /**
+   * @return the name of the output channel, or null if Rasa did not send one.
+   */
+  public String channel() {
+    return mChannel;
+  }
+
+  /**
+   * @return the values available to the template: the tracker slots, overridden by the request arguments as Rasa does.
+   */
+  public JsonObject templateVariables() {
+    if (mArguments.isEmpty()) return mSlots;
+    return mSlots.copy().mergeIn(mArguments);
+  }
+
+  public static NlgRequest parse(Buffer pBody) {
+    return read(pBody, false);
+  }
+
+  /**
+   * Parses a batch request.
+   *
+   * @return one request per item, in the order they were sent.
+   */
+  public static List<NlgRequest> parseBatch(Buffer pBody) {
+    NlgRequest batch = read(pBody, true);
+    if (batch.mItems == null) {
+      throw new DecodeException("NLG batch request should hold an items array");
+    }
+
+    for (NlgRequest item : batch.mItems) {
+      item.mSlots = batch.mSlots;
+      item.mLatestMessage = batch.mLatestMessage;
+      item.mChannel = batch.mChannel;
+    }
+
+    return batch.mItems;
+  }
+
+  private static NlgRequest read(Buffer pBody, boolean pBatch) {
+    var request = new NlgRequest();
+
+    try (JsonParser parser = FACTORY.createParser((InputStream) new ByteBufInputStream(pBody.getByteBuf()))) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new DecodeException("NLG request should be a JSON object");
+      }
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+
+        switch (field) {
+          case "template":
+            request.mTemplate = readString(parser, "template");
+            break;
+
+          case "arguments":
+            request.mArguments = readObject(parser);
+            break;
+
+          case "tracker":
+            request.readTracker(parser);
+            break;
+
+          case "channel":
+            request.readChannel(parser);
+            break;
+
+          case "items":
+            if (pBatch) {
+              request.readItems(parser);
+
+            } else {
+              parser.skipChildren();
+            }
+            break;
+
+          default:
+            parser.skipChildren();
+        }
+      }
+
+      return request;
+
+    } catch (IOException ex) {
+      throw new DecodeException("Failed to decode NLG request: " + ex.getMessage(), ex);
+    }
+  }
+
+  private void readItems(JsonParser pParser)
+    throws IOException {
+    if (pParser.currentToken() != JsonToken.START_ARRAY) {
+      throw new DecodeException("NLG batch items should be an array");
+    }
+
+    mItems = new ArrayList<>();
+
+    while (pParser.nextToken() == JsonToken.START_OBJECT) {
+      var item = new NlgRequest();
+
+      while (pParser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = pParser.getCurrentName();
+        pParser.nextToken();
+
+        if ("template".equals(field)) {
+          item.mTemplate = readString(pParser, "template");
+
+        } else if ("arguments".equals(field)) {
+          item.mArguments = readObject(pParser);
+
+        } else {
+          pParser.skipChildren();
+        }
+      }
+
+      mItems.add(item);
+    }
+
+    if (pParser.currentToken() != JsonToken.END_ARRAY) {
+      throw new DecodeException("NLG batch items should be JSON objects");
+    }
+  }
+
+  private void readTracker(JsonParser pParser)
+    throws IOException {
+    if (pParser.currentToken() != JsonToken.START_OBJECT) {
+      pParser.skipChildren();
+      return;
+    }
+
+    while (pParser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = pParser.getCurrentName();
+      pParser.nextToken();
+
+      if ("slots".equals(field)) {
+        mSlots = readObject(pParser);
+
+      } else if ("latest_message".equals(field)) {
+        mLatestMessage = readObject(pParser);
+
+      } else {
+        pParser.skipChildren();
+      }
+    }
+  }
+
+  private void readChannel(JsonParser pParser)
+    throws IOException {
+    if (pParser.currentToken() != JsonToken.START_OBJECT) {
+      pParser.skipChildren();
+      return;
+    }
+
+    while (pParser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = pParser.getCurrentName();
+      pParser.nextToken();
+
+      if ("name".equals(field)) {
+        mChannel = readString(pParser, "channel name");
+
+      } else {
+        pParser.skipChildren();
+      }
+    }
+  }
+
+  /**
+   * Rejects objects and arrays, which would otherwise be left unconsumed and read as the fields
+   * that follow.
+   */
+  private static String readString(JsonParser pParser, String pName)
+    throws IOException {
+    if (pParser.currentToken().isStructStart()) {
+      throw new DecodeException("NLG request " + pName + " should be a string");
+    }
+
+    return pParser.getValueAsString();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static JsonObject readObject(JsonParser pParser)
+    throws IOException {
+    if (pParser.currentToken() != JsonToken.START_OBJECT) {
+      pParser.skipChildren();
+      return Utils.EMPTY_JSON;
+    }
+
+    return new JsonObject(pParser.readValueAs(Map.class));
+  }
+}
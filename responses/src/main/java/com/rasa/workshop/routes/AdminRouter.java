@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.routes;
+
+import com.rasa.workshop.common.Constants;
+import com.rasa.workshop.common.ZipWriter;
+import com.rasa.workshop.db.AsyncDB;
+import com.rasa.workshop.db.ChangeFeedDB;
+import com.rasa.workshop.db.Snapshot;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import io.vertx.ext.auth.jwt.JWTAuth;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+public class AdminRouter
+  extends ApiRouter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdminRouter.class);
+
+  private static final String CONTENT_ZIP = "application/zip";
+  private static final String CONTENT_DISPOSITION = "Content-Disposition";
+  private static final String CONTENT_EVENT_STREAM = "text/event-stream";
+  private static final String CACHE_CONTROL = "Cache-Control";
+  private static final String COLLECTION_PARAM = "collection";
+  private static final long HEARTBEAT_INTERVAL = 15_000;
+
+  private final AsyncDB mDB;
+  private final WorkerExecutor mExportExecutor;
+  private final int mExportWindow;
+
+  public AdminRouter(Vertx pVertx, JWTAuth pJwtAuth, AsyncDB pDB, JsonObject pConfig)
+    throws Exception {
+    super(pVertx, LOGGER, pJwtAuth, null);
+
+    int parallelism = pConfig.getInteger(Constants.EXPORT_PARALLELISM_KEY, Runtime.getRuntime().availableProcessors());
+    mDB = pDB;
+    mExportExecutor = pVertx.createSharedWorkerExecutor("export-worker", parallelism);
+    mExportWindow = 2 * parallelism;
+  }
+
+  @Override
+  protected String basePath() {
+    return "/admin";
+  }
+
+  @Override
+  protected void configureRoutes(String pCollectionPath, Vertx pVertx) {
+    configureExportRoute();
+    configureChangesRoute();
+    configureStatsRoute();
+  }
+
+  private void configureStatsRoute() {
+    mRouter.route(HttpMethod.GET, basePath() + "/stats").handler(routingContext ->
+      sendJson(mDB.sync().stats().toBuffer(), routingContext.response(), 200));
+  }
+
+  /**
+   * Streams a zip of a point-in-time snapshot of the DB. No archive is staged on disk.
+   */
+  private void configureExportRoute() {
+    mRouter.route(HttpMethod.GET, basePath() + "/export").handler(routingContext -> {
+      LOGGER.info("GET " + routingContext.request().path());
+
+      mDB.snapshot().onComplete(ar -> {
+        if (ar.succeeded()) {
+          new Export(ar.result(), routingContext.response()).start();
+
+        } else {
+          sendError(ar.cause(), routingContext.response());
+        }
+      });
+    });
+  }
+
+  /**
+   * Streams the changes of the DB as server-sent events, one JSON {@code data} line per change,
+   * optionally only those of the collection given by the {@code collection} parameter. A client
+   * too slow to keep up is disconnected rather than silently missing changes, and should re-read
+   * whatever it caches when it reconnects.
+   */
+  private void configureChangesRoute() {
+    mRouter.route(HttpMethod.GET, basePath() + "/changes").handler(routingContext -> {
+      LOGGER.info("GET " + routingContext.request().path());
+
+      String collectionId = routingContext.request().getParam(COLLECTION_PARAM);
+      HttpServerResponse resp = routingContext.response();
+      resp.setChunked(true);
+      resp.setStatusCode(200);
+      resp.putHeader(CONTENT_TYPE, CONTENT_EVENT_STREAM);
+      resp.putHeader(CACHE_CONTROL, "no-cache");
+      resp.write(":\n\n");
+
+      MessageConsumer<JsonObject> consumer = mVertx.eventBus().localConsumer(ChangeFeedDB.address(mDB.name()), message -> {
+        if (collectionId != null && !collectionId.equals(message.body().getString(COLLECTION_PARAM))) return;
+
+        if (resp.writeQueueFull()) {
+          mLogger.warn("Disconnecting slow change stream client " + routingContext.request().remoteAddress());
+          resp.close();
+          return;
+        }
+
+        resp.write("data: " + message.body().encode() + "\n\n");
+      });
+      long heartbeat = mVertx.setPeriodic(HEARTBEAT_INTERVAL, id -> resp.write(":\n\n"));
+
+      resp.closeHandler(v -> {
+        consumer.unregister();
+        mVertx.cancelTimer(heartbeat);
+      });
+    });
+  }
+
+  /**
+   * Compresses the blocks of the snapshot entries on the export pool, at most a window of them
+   * ahead of the response, and writes them in order as they complete, pausing while the response
+   * write queue is full.
+   */
+  private class Export {
+
+    private final Snapshot mSnapshot;
+    private final HttpServerResponse mResp;
+    private final ZipWriter mZip;
+    private final Deque<Future<ZipWriter.Compressed>> mPending;
+    private final List<ZipWriter.Block> mBlocks;
+    private int mNext;
+
+    Export(Snapshot pSnapshot, HttpServerResponse pResp) {
+      mSnapshot = pSnapshot;
+      mResp = pResp;
+      mZip = new ZipWriter();
+      mPending = new ArrayDeque<>();
+      mBlocks = new ArrayList<>();
+    }
+
+    void start() {
+      try {
+        for (Snapshot.Entry entry : mSnapshot.entries()) {
+          mBlocks.addAll(ZipWriter.split(entry.name(), entry.path(), entry.length(), entry.modified()));
+        }
+
+      } catch (IOException ex) {
+        mSnapshot.close();
+        sendError(ex, mResp);
+        return;
+      }
+
+      mResp.setChunked(true);
+      mResp.setStatusCode(200);
+      mResp.putHeader(CONTENT_TYPE, CONTENT_ZIP);
+      mResp.putHeader(CONTENT_DISPOSITION, "attachment; filename=\"" + mDB.name() + "-" + System.currentTimeMillis() + ".zip\"");
+      mResp.closeHandler(v -> mSnapshot.close());
+
+      compressAhead();
+      writeNext();
+    }
+
+    private void compressAhead() {
+      while (mPending.size() < mExportWindow && mNext < mBlocks.size()) {
+        ZipWriter.Block block = mBlocks.get(mNext++);
+        Promise<ZipWriter.Compressed> compressed = Promise.promise();
+        mExportExecutor.executeBlocking(promise -> {
+          try {
+            promise.complete(ZipWriter.compress(block));
+
+          } catch (Exception ex) {
+            promise.fail(ex);
+          }
+        }, false, compressed);
+        mPending.add(compressed.future());
+      }
+    }
+
+    private void writeNext() {
+      try {
+        while (true) {
+          if (mResp.closed()) {
+            mSnapshot.close();
+            return;
+          }
+
+          if (mPending.isEmpty()) {
+            mResp.end(mZip.finish());
+            mSnapshot.close();
+            return;
+          }
+
+          if (mResp.writeQueueFull()) {
+            mResp.drainHandler(v -> {
+              mResp.drainHandler(null);
+              writeNext();
+            });
+            return;
+          }
+
+          Future<ZipWriter.Compressed> head = mPending.peek();
+          if (!head.isComplete()) {
+            head.onComplete(ar -> writeNext());
+            return;
+          }
+
+          mPending.poll();
+          if (head.failed()) {
+            throw new RuntimeException("Unable to compress export entry", head.cause());
+          }
+
+          mResp.write(mZip.add(head.result()));
+          compressAhead();
+        }
+
+      } catch (RuntimeException ex) {
+        // The status is already sent, all that can be done is to cut the response short.
+        mLogger.error("Unable to stream export", ex);
+        mSnapshot.close();
+        mResp.close();
+      }
+    }
+  }
+}
@@ -16,10 +16,18 @@ package com.rasa.workshop.routes;
 
 import com.rasa.workshop.common.Collection;
 import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentEncoder;
 import com.rasa.workshop.common.DocumentExistsException;
 import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import com.rasa.workshop.db.BatchResult;
+import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
@@ -28,11 +36,11 @@ import io.vertx.ext.web.Router;
 import io.vertx.ext.web.handler.AuthHandler;
 import io.vertx.ext.web.handler.JWTAuthHandler;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-
-import static com.rasa.workshop.common.Utils.documentToJson;
+import java.util.function.Function;
 
 /**
  * Base class that provides common methods to write back REST API responses to the client.
@@ -44,6 +52,20 @@ public abstract class ApiRouter {
 
   static final String CONTENT_TYPE = "Content-Type";
   static final String CONTENT_JSON = "application/json";
+  static final String CONTENT_LENGTH = "Content-Length";
+
+  static final String LIMIT_PARAM = "limit";
+  static final String AFTER_PARAM = "after";
+  static final int DEFAULT_PAGE_LIMIT = 100;
+  static final int MAX_PAGE_LIMIT = 1000;
+
+  static final String IDS_FIELD = "ids";
+  static final String ITEMS_FIELD = "items";
+  static final int MAX_BATCH_SIZE = 1000;
+
+  private static final Buffer ARRAY_START = Buffer.buffer("[");
+  private static final Buffer ARRAY_SEPARATOR = Buffer.buffer(",");
+  private static final Buffer ARRAY_END = Buffer.buffer("]");
 
   protected final Vertx mVertx;
   protected final Router mRouter;
@@ -85,46 +107,292 @@ public abstract class ApiRouter {
     return mRouter;
   }
 
-  void sendCollection(Collection pCollection, HttpServerResponse pResp, int pStatus) {
-    var result = new JsonObject();
-    result.put("item", documentToJson(pCollection));
+  /**
+   * Reads the page requested through the limit and after query parameters.
+   *
+   * @throws DecodeException if the limit is not a positive number.
+   */
+  static Page page(HttpServerRequest pReq) {
+    String limit = pReq.getParam(LIMIT_PARAM);
+    if (limit == null) return new Page(pReq.getParam(AFTER_PARAM), DEFAULT_PAGE_LIMIT);
 
-    var itemsJson = new JsonArray();
-    pCollection.documents().forEach(doc -> itemsJson.add(documentToJson(doc)));
-    result.put("items", itemsJson);
+    try {
+      int value = Integer.parseInt(limit);
+      if (value > 0) return new Page(pReq.getParam(AFTER_PARAM), Math.min(value, MAX_PAGE_LIMIT));
 
-    pResp.setChunked(true);
+    } catch (NumberFormatException ex) {
+      // Reported below.
+    }
+
+    throw new DecodeException("Invalid " + LIMIT_PARAM + ": " + limit);
+  }
+
+  /**
+   * Streams one page of the collection as {"item": ..., "items": [...], "next": ...}, where next is
+   * the cursor to pass as the after parameter for the following page, or null on the last one.
+   *
+   * The documents of the page are read through the given loader, off the event loop, before
+   * anything is sent, since collection documents may only read their payload from disk on first
+   * access. Documents deleted since the collection was listed are left out. They are then encoded
+   * and written one at a time, pausing while the response write queue is full.
+   */
+  void sendCollection(Collection pCollection, Page pPage, Function<List<String>, Future<List<BatchResult>>> pLoader,
+                      HttpServerResponse pResp, int pStatus) {
+    List<Document> documents = pCollection.documents();
+    int from = pPage.mAfter != null ? firstAfter(documents, pPage.mAfter) : 0;
+    int to = (int) Math.min(documents.size(), (long) from + pPage.mLimit);
+    String next = to < documents.size() && to > from ? documents.get(to - 1).id() : null;
+
+    List<String> ids = new ArrayList<>(to - from);
+    for (int d = from; d < to; d++) {
+      ids.add(documents.get(d).id());
+    }
+
+    pLoader.apply(ids).onComplete(ar -> {
+      if (ar.failed()) {
+        sendError(ar.cause(), pResp);
+        return;
+      }
+
+      List<Document> page = new ArrayList<>(ids.size());
+      for (BatchResult result : ar.result()) {
+        if (result.succeeded()) {
+          page.add(result.document());
+
+        } else if (!(result.error() instanceof DocumentNotFoundException)) {
+          sendError(result.error(), pResp);
+          return;
+        }
+      }
+
+      pResp.setChunked(true);
+      pResp.setStatusCode(pStatus);
+      pResp.putHeader(CONTENT_TYPE, CONTENT_JSON);
+      pResp.write(DocumentEncoder
+          .encode(pCollection, Buffer.buffer("{\"item\":"))
+          .appendString(",\"items\":["));
+
+      var tail = Buffer
+          .buffer("],\"next\":")
+          .appendString(Json.encode(next))
+          .appendString("}");
+
+      writeDocuments(page, 0, tail, pResp);
+    });
+  }
+
+  private void writeDocuments(List<Document> pDocuments, int pNext, Buffer pTail, HttpServerResponse pResp) {
+    try {
+      for (int d = pNext; d < pDocuments.size(); d++) {
+        if (pResp.closed()) return;
+
+        if (pResp.writeQueueFull()) {
+          int resume = d;
+          pResp.drainHandler(v -> {
+            pResp.drainHandler(null);
+            writeDocuments(pDocuments, resume, pTail, pResp);
+          });
+          return;
+        }
+
+        if (d > 0) pResp.write(ARRAY_SEPARATOR);
+        pResp.write(DocumentEncoder.encode(pDocuments.get(d)));
+      }
+
+      pResp.end(pTail);
+
+    } catch (RuntimeException ex) {
+      // The status is already sent, all that can be done is to cut the response short.
+      mLogger.error("Unable to stream collection", ex);
+      pResp.close();
+    }
+  }
+
+  /**
+   * @return the index of the first document whose id sorts after the given one.
+   */
+  private static int firstAfter(List<Document> pDocuments, String pAfter) {
+    int low = 0;
+    int high = pDocuments.size();
+
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (pDocuments.get(mid).id().compareTo(pAfter) <= 0) {
+        low = mid + 1;
+
+      } else {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+  /**
+   * Reads the ids of a bulk request, {"ids": ["...", ...]}.
+   *
+   * @throws DecodeException if the body is malformed, empty or holds more than {@link #MAX_BATCH_SIZE} ids.
+   */
+  static List<String> batchIds(Buffer pBody) {
+    JsonArray ids = batchArray(pBody, IDS_FIELD);
+    List<String> result = new ArrayList<>(ids.size());
+
+    for (Object id : ids) {
+      if (!(id instanceof String)) {
+        throw new DecodeException("Bulk request ids should be strings: " + id);
+      }
+      result.add((String) id);
+    }
+
+    return result;
+  }
+
+  /**
+   * Reads the documents of a bulk request, {"items": [{"id": "...", ...}, ...]}.
+   *
+   * @throws DecodeException if the body is malformed, empty, holds more than {@link #MAX_BATCH_SIZE}
+   * items or an item without an id.
+   */
+  static List<Document> batchDocuments(Buffer pBody, String pCollectionId) {
+    JsonArray items = batchArray(pBody, ITEMS_FIELD);
+    List<Document> result = new ArrayList<>(items.size());
+
+    for (Object item : items) {
+      if (!(item instanceof JsonObject) || !(((JsonObject) item).getValue("id") instanceof String)) {
+        throw new DecodeException("Bulk request items should be objects with a string id");
+      }
+
+      JsonObject payload = ((JsonObject) item).copy();
+      result.add(Document
+          .newBuilder()
+          .underCollection(pCollectionId)
+          .withId((String) payload.remove("id"))
+          .withPayload(payload)
+          .build());
+    }
+
+    return result;
+  }
+
+  private static JsonArray batchArray(Buffer pBody, String pField) {
+    if (pBody == null || pBody.length() == 0) {
+      throw new DecodeException("Bulk request should be a JSON object");
+    }
+
+    Object values = pBody.toJsonObject().getValue(pField);
+    if (!(values instanceof JsonArray) || ((JsonArray) values).isEmpty()) {
+      throw new DecodeException("Bulk request should hold a non-empty " + pField + " array");
+    }
+
+    JsonArray array = (JsonArray) values;
+    if (array.size() > MAX_BATCH_SIZE) {
+      throw new DecodeException("Bulk request holds more than " + MAX_BATCH_SIZE + " " + pField);
+    }
+
+    return array;
+  }
+
+  /**
+   * Writes the outcome of a bulk request as {"items": [...]}, holding for every item its id, the
+   * status the single document request would have answered with, and the document or the error.
+   */
+  void sendBatch(List<BatchResult> pResults, HttpServerResponse pResp) {
+    Buffer json = Buffer.buffer("{\"items\":[");
+
+    for (int r = 0; r < pResults.size(); r++) {
+      BatchResult result = pResults.get(r);
+      if (r > 0) json.appendBuffer(ARRAY_SEPARATOR);
+
+      json.appendString("{\"id\":").appendString(Json.encode(result.id()));
+      if (result.succeeded()) {
+        json.appendString(",\"status\":200,\"item\":");
+        DocumentEncoder.encode(result.document(), json);
+
+      } else {
+        int status = statusOf(result.error());
+        if (status == 500) {
+          mLogger.error(result.error().getMessage(), result.error());
+        }
+
+        json.appendString(",\"status\":").appendString(String.valueOf(status))
+            .appendString(",\"error\":").appendString(Json.encode(errorMessage(result.error(), status)));
+      }
+      json.appendString("}");
+    }
+
+    sendJson(json.appendString("]}"), pResp, 200);
+  }
+
+  void sendDocument(Document pDocument, HttpServerResponse pResp, int pStatus) {
+    Buffer json = DocumentEncoder
+        .encode(pDocument, Buffer.buffer("{\"item\":"))
+        .appendString("}");
+    sendJson(json, pResp, pStatus);
+  }
+
+  /**
+   * Writes an already encoded JSON body in one go, with a fixed Content-Length instead of chunked framing.
+   */
+  void sendJson(Buffer pJson, HttpServerResponse pResp, int pStatus) {
     pResp.setStatusCode(pStatus);
     pResp.putHeader(CONTENT_TYPE, CONTENT_JSON);
-    pResp.write(result.toBuffer()).end();
+    pResp.end(pJson);
   }
 
-  void sendDocument(Document pDocument, HttpServerResponse pResp, int pStatus) {
-    var result = new JsonObject();
-    result.put("item", documentToJson(pDocument));
-    pResp.setChunked(true);
+  /**
+   * Writes already encoded JSON values as one JSON array, element by element and without copying them.
+   */
+  void sendJsonArray(List<Buffer> pJsonValues, HttpServerResponse pResp, int pStatus) {
+    int length = 2 + Math.max(0, pJsonValues.size() - 1);
+    for (Buffer value : pJsonValues) {
+      length += value.length();
+    }
+
     pResp.setStatusCode(pStatus);
     pResp.putHeader(CONTENT_TYPE, CONTENT_JSON);
-    pResp.write(result.toBuffer()).end();
+    pResp.putHeader(CONTENT_LENGTH, String.valueOf(length));
+    pResp.write(ARRAY_START);
+
+    for (int v = 0; v < pJsonValues.size(); v++) {
+      if (v > 0) pResp.write(ARRAY_SEPARATOR);
+      pResp.write(pJsonValues.get(v));
+    }
+
+    pResp.end(ARRAY_END);
   }
 
   void sendError(Throwable pEx, HttpServerResponse pResp) {
-    var result = new JsonObject();
-
-    if (pEx instanceof DocumentNotFoundException) {
-      result.put("error", pEx.getMessage());
-      pResp.setStatusCode(404);
-    } else if (pEx instanceof DocumentExistsException) {
-      result.put("error", pEx.getMessage());
-      pResp.setStatusCode(409);
-    } else {
+    int status = statusOf(pEx);
+    if (status == 500) {
       mLogger.error(pEx.getMessage(), pEx);
-      result.put("error", "Unable to process request");
-      pResp.setStatusCode(500);
     }
 
+    var result = new JsonObject().put("error", errorMessage(pEx, status));
+    pResp.setStatusCode(status);
     pResp.putHeader(CONTENT_TYPE, CONTENT_JSON);
     pResp.setChunked(true);
     pResp.write(result.toBuffer()).end();
   }
+
+  static int statusOf(Throwable pEx) {
+    if (pEx instanceof DocumentNotFoundException) return 404;
+    if (pEx instanceof DocumentExistsException || pEx instanceof DocumentVersionConflictException) return 409;
+    if (pEx instanceof DecodeException) return 400;
+    return 500;
+  }
+
+  private static String errorMessage(Throwable pEx, int pStatus) {
+    return pStatus == 500 ? "Unable to process request" : pEx.getMessage();
+  }
+
+  static class Page {
+
+    final String mAfter;
+    final int mLimit;
+
+    Page(String pAfter, int pLimit) {
+      mAfter = pAfter;
+      mLimit = pLimit;
+    }
+  }
 }
@@ -14,15 +14,21 @@
 
 package com.rasa.workshop.routes;
 
-import com.rasa.workshop.db.DB;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.db.BatchResult;
+import com.rasa.workshop.rasa.NlgRequest;
 import com.rasa.workshop.service.ResponsesService;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpMethod;
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
 import io.vertx.ext.auth.jwt.JWTAuth;
 
+import java.util.List;
+
 public class ResponsesRouter
   extends ApiRouter {
 
@@ -30,11 +36,11 @@ public class ResponsesRouter
 
   private final ResponsesService mService;
 
-  public ResponsesRouter(Vertx pVertx, JWTAuth pJwtAuth, DB pDB)
+  public ResponsesRouter(Vertx pVertx, JWTAuth pJwtAuth, ResponsesService pService)
     throws Exception {
     super(pVertx, LOGGER, pJwtAuth, null);
 
-    mService = new ResponsesService(pDB);
+    mService = pService;
   }
 
   @Override
@@ -44,26 +50,148 @@ public class ResponsesRouter
 
   @Override
   protected void configureRoutes(String pCollectionPath, Vertx pVertx) {
+    configureCatalogStatsRoute();
+    configureBotsRoute();
+    configureBulkRoutes();
     configureBotResponseRoute();
+    configureBotBatchResponseRoute();
+  }
+
+  private void configureCatalogStatsRoute() {
+    mRouter.route(HttpMethod.GET, basePath() + "/_stats").handler(routingContext ->
+      sendJson(mService.catalogStats().toBuffer(), routingContext.response(), 200));
+  }
+
+  private void configureBotsRoute() {
+    mRouter.route(HttpMethod.GET, basePath()).handler(routingContext -> {
+      LOGGER.info("GET " + routingContext.request().path());
+      Page page;
+
+      try {
+        page = page(routingContext.request());
+
+      } catch (DecodeException ex) {
+        sendError(ex, routingContext.response());
+        return;
+      }
+
+      mService.getResponses().onComplete(ar -> {
+        if (ar.succeeded()) {
+          sendCollection(ar.result(), page, mService::getResponses, routingContext.response(), 200);
+
+        } else {
+          sendError(ar.cause(), routingContext.response());
+        }
+      });
+    });
+  }
+
+  /**
+   * Bulk reads, writes and deletes of bot responses, answering with one result per bot.
+   */
+  private void configureBulkRoutes() {
+    mRouter.route(HttpMethod.POST, basePath() + "/_bulk/get").handler(routingContext -> {
+      LOGGER.info("POST " + routingContext.request().path());
+      List<String> botIds;
+
+      try {
+        botIds = batchIds(routingContext.getBody());
+
+      } catch (DecodeException ex) {
+        sendError(ex, routingContext.response());
+        return;
+      }
+
+      mService.getResponses(botIds).onComplete(ar -> sendBatchResult(ar, routingContext.response()));
+    });
+
+    mRouter.route(HttpMethod.POST, basePath() + "/_bulk/put").handler(routingContext -> {
+      LOGGER.info("POST " + routingContext.request().path());
+      List<Document> responses;
+
+      try {
+        responses = batchDocuments(routingContext.getBody(), ResponsesService.RESPONSES_COLLECTION_ID);
+
+      } catch (DecodeException ex) {
+        sendError(ex, routingContext.response());
+        return;
+      }
+
+      mService.putResponses(responses).onComplete(ar -> sendBatchResult(ar, routingContext.response()));
+    });
+
+    mRouter.route(HttpMethod.POST, basePath() + "/_bulk/delete").handler(routingContext -> {
+      LOGGER.info("POST " + routingContext.request().path());
+      List<String> botIds;
+
+      try {
+        botIds = batchIds(routingContext.getBody());
+
+      } catch (DecodeException ex) {
+        sendError(ex, routingContext.response());
+        return;
+      }
+
+      mService.deleteResponses(botIds).onComplete(ar -> sendBatchResult(ar, routingContext.response()));
+    });
+  }
+
+  private void sendBatchResult(AsyncResult<List<BatchResult>> pResult, HttpServerResponse pResp) {
+    if (pResult.succeeded()) {
+      sendBatch(pResult.result(), pResp);
+
+    } else {
+      sendError(pResult.cause(), pResp);
+    }
   }
 
   private void configureBotResponseRoute() {
     mRouter.route(HttpMethod.POST, basePath() + ID_PATH).handler(routingContext -> {
       LOGGER.info("POST " + routingContext.request().path());
-      JsonObject payload = routingContext.getBodyAsJson();
       String botId = routingContext.pathParam(ID_PARAM);
+      NlgRequest request;
 
       try {
-        JsonObject botResponse = mService.generateResponse(botId, payload);
+        request = NlgRequest.parse(routingContext.getBody());
+
+      } catch (DecodeException ex) {
+        sendError(ex, routingContext.response());
+        return;
+      }
+
+      mService.generateResponse(botId, request).onComplete(ar -> {
+        if (ar.succeeded()) {
+          sendJson(ar.result(), routingContext.response(), 200);
+
+        } else {
+          sendError(ar.cause(), routingContext.response());
+        }
+      });
+    });
+  }
 
-        routingContext.response().setStatusCode(200);
-        routingContext.response().putHeader(CONTENT_TYPE, CONTENT_JSON);
-        routingContext.response().setChunked(true);
-        routingContext.response().write(botResponse.toBuffer()).end();
+  private void configureBotBatchResponseRoute() {
+    mRouter.route(HttpMethod.POST, basePath() + ID_PATH + "/batch").handler(routingContext -> {
+      LOGGER.info("POST " + routingContext.request().path());
+      String botId = routingContext.pathParam(ID_PARAM);
+      List<NlgRequest> requests;
 
-      } catch (Exception ex) {
+      try {
+        requests = NlgRequest.parseBatch(routingContext.getBody());
+
+      } catch (DecodeException ex) {
         sendError(ex, routingContext.response());
+        return;
       }
+
+      mService.generateResponses(botId, requests).onComplete(ar -> {
+        if (ar.succeeded()) {
+          sendJsonArray(ar.result(), routingContext.response(), 200);
+
+        } else {
+          sendError(ar.cause(), routingContext.response());
+        }
+      });
     });
   }
 }
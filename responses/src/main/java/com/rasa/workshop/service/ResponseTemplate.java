@@ -0,0 +1,381 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.service;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response variant compiled into a flat sequence of pre-encoded JSON literals and slot placeholders.
+ *
+ * Every string value of the variant (text, button titles and payloads, custom fields) may reference
+ * slots as {slot_name}. Rendering walks the segments once and appends them to a single pre-sized
+ * {@link Buffer}, so no JSON tree is built or encoded per request. Variants without placeholders
+ * are encoded once at compile time and served from that buffer as is.
+ */
+public class ResponseTemplate {
+
+  private static final JsonStringEncoder ENCODER = JsonStringEncoder.getInstance();
+
+  private final String mChannel;
+  private final Segment[] mSegments;
+  private final int mSizeHint;
+  private final Buffer mStatic;
+
+  private ResponseTemplate(String pChannel, Segment[] pSegments) {
+    this.mChannel = pChannel;
+    this.mSegments = pSegments;
+
+    int sizeHint = 0;
+    boolean isStatic = true;
+    for (Segment segment : pSegments) {
+      sizeHint += segment.sizeHint();
+      isStatic &= segment instanceof Literal;
+    }
+
+    this.mSizeHint = sizeHint;
+    this.mStatic = isStatic ? renderSegments(Map.of()) : null;
+  }
+
+  public static ResponseTemplate compile(JsonObject pVariant) {
+    var compiler = new Compiler();
+    compiler.writeObject(pVariant);
+    return new ResponseTemplate(pVariant.getString("channel"), compiler.finish());
+  }
+
+  /**
+   * @return the output channel this variant is restricted to, or null if it applies to any channel.
+   */
+  public String channel() {
+    return mChannel;
+  }
+
+  /**
+   * @return the approximate number of bytes this variant renders to.
+   */
+  public int estimatedSize() {
+    return mSizeHint;
+  }
+
+  public boolean isStatic() {
+    return mStatic != null;
+  }
+
+  /**
+   * Renders this variant as encoded JSON. Static variants return the same cached buffer on every
+   * call, which callers may write any number of times but must not modify.
+   *
+   * @param pSlots the slot values used for substitution, may be null.
+   */
+  public Buffer render(JsonObject pSlots) {
+    if (mStatic != null) return mStatic;
+    return renderSegments(pSlots != null ? pSlots.getMap() : Map.of());
+  }
+
+  private Buffer renderSegments(Map<String, Object> pSlots) {
+    Buffer buffer = Buffer.buffer(mSizeHint);
+
+    for (Segment segment : mSegments) {
+      segment.appendTo(buffer, pSlots);
+    }
+
+    return buffer;
+  }
+
+  private interface Segment {
+
+    void appendTo(Buffer pBuffer, Map<String, Object> pSlots);
+
+    int sizeHint();
+  }
+
+  private static class Literal
+      implements Segment {
+
+    private final byte[] mBytes;
+
+    Literal(String pJson) {
+      this.mBytes = pJson.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void appendTo(Buffer pBuffer, Map<String, Object> pSlots) {
+      pBuffer.appendBytes(mBytes);
+    }
+
+    @Override
+    public int sizeHint() {
+      return mBytes.length;
+    }
+  }
+
+  /**
+   * The contents of a string value holding placeholders. As in Rasa, the text is left untouched
+   * unless every slot it references is present in the tracker.
+   */
+  private static class Text
+      implements Segment {
+
+    private static final int SLOT_SIZE_HINT = 16;
+
+    private final byte[][] mLiterals;
+    private final String[] mSlots;
+    private final byte[] mVerbatim;
+
+    Text(List<String> pLiterals, List<String> pSlots, String pVerbatim) {
+      this.mLiterals = new byte[pLiterals.size()][];
+      for (int l = 0; l < mLiterals.length; l++) {
+        mLiterals[l] = ENCODER.quoteAsUTF8(pLiterals.get(l));
+      }
+
+      this.mSlots = pSlots.toArray(new String[0]);
+      this.mVerbatim = ENCODER.quoteAsUTF8(pVerbatim);
+    }
+
+    @Override
+    public void appendTo(Buffer pBuffer, Map<String, Object> pSlots) {
+      for (String slot : mSlots) {
+        if (!pSlots.containsKey(slot)) {
+          pBuffer.appendBytes(mVerbatim);
+          return;
+        }
+      }
+
+      for (int s = 0; s < mSlots.length; s++) {
+        pBuffer.appendBytes(mLiterals[s]);
+        pBuffer.appendBytes(ENCODER.quoteAsUTF8(slotText(pSlots.get(mSlots[s]))));
+      }
+      pBuffer.appendBytes(mLiterals[mSlots.length]);
+    }
+
+    @Override
+    public int sizeHint() {
+      return mVerbatim.length + mSlots.length * SLOT_SIZE_HINT;
+    }
+
+    /**
+     * Mirrors the way Rasa formats slot values into text, which is Python's str(): strings as is,
+     * lists and dicts with their items in repr() form.
+     */
+    private static String slotText(Object pValue) {
+      if (pValue instanceof String) return (String) pValue;
+      StringBuilder text = new StringBuilder();
+      appendRepr(text, pValue);
+      return text.toString();
+    }
+
+    private static void appendRepr(StringBuilder pText, Object pValue) {
+      if (pValue instanceof JsonObject) pValue = ((JsonObject) pValue).getMap();
+      if (pValue instanceof JsonArray) pValue = ((JsonArray) pValue).getList();
+
+      if (pValue == null) {
+        pText.append("None");
+
+      } else if (pValue instanceof Boolean) {
+        pText.append((Boolean) pValue ? "True" : "False");
+
+      } else if (pValue instanceof String) {
+        appendQuoted(pText, (String) pValue);
+
+      } else if (pValue instanceof List) {
+        pText.append('[');
+        String separator = "";
+        for (Object item : (List<?>) pValue) {
+          pText.append(separator);
+          appendRepr(pText, item);
+          separator = ", ";
+        }
+        pText.append(']');
+
+      } else if (pValue instanceof Map) {
+        pText.append('{');
+        String separator = "";
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) pValue).entrySet()) {
+          pText.append(separator);
+          appendRepr(pText, entry.getKey());
+          pText.append(": ");
+          appendRepr(pText, entry.getValue());
+          separator = ", ";
+        }
+        pText.append('}');
+
+      } else {
+        pText.append(pValue);
+      }
+    }
+
+    /**
+     * Quotes like Python's repr() of a string: single quotes, unless the string holds some and no
+     * double quotes.
+     */
+    private static void appendQuoted(StringBuilder pText, String pValue) {
+      char quote = pValue.indexOf('\'') >= 0 && pValue.indexOf('"') < 0 ? '"' : '\'';
+      pText.append(quote);
+      for (int c = 0; c < pValue.length(); c++) {
+        char ch = pValue.charAt(c);
+        if (ch == '\n') {
+          pText.append("\\n");
+
+        } else if (ch == '\r') {
+          pText.append("\\r");
+
+        } else if (ch == '\t') {
+          pText.append("\\t");
+
+        } else {
+          if (ch == '\\' || ch == quote) pText.append('\\');
+          pText.append(ch);
+        }
+      }
+      pText.append(quote);
+    }
+
+    /**
+     * @return the compiled text, or null if it does not reference any slot.
+     */
+    static Text parse(String pText) {
+      List<String> literals = null;
+      List<String> slots = null;
+      int literalStart = 0;
+      int open = pText.indexOf('{');
+
+      while (open >= 0) {
+        int close = pText.indexOf('}', open + 1);
+        if (close < 0) break;
+
+        int nextOpen = pText.indexOf('{', open + 1);
+        if (nextOpen >= 0 && nextOpen < close) {
+          open = nextOpen;
+          continue;
+        }
+
+        if (isSlotName(pText, open + 1, close)) {
+          if (slots == null) {
+            literals = new ArrayList<>();
+            slots = new ArrayList<>();
+          }
+
+          literals.add(pText.substring(literalStart, open));
+          slots.add(pText.substring(open + 1, close));
+          literalStart = close + 1;
+        }
+
+        open = pText.indexOf('{', close + 1);
+      }
+
+      if (slots == null) return null;
+
+      literals.add(pText.substring(literalStart));
+      return new Text(literals, slots, pText);
+    }
+
+    /**
+     * Only identifier-like names count as placeholders, so JSON embedded in intent payloads such as
+     * /inform{"priority":"low"} stays a plain literal.
+     */
+    private static boolean isSlotName(String pText, int pStart, int pEnd) {
+      if (pStart == pEnd) return false;
+
+      for (int c = pStart; c < pEnd; c++) {
+        char ch = pText.charAt(c);
+        if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '-' && ch != '.') return false;
+      }
+
+      return true;
+    }
+  }
+
+  private static class Compiler {
+
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final StringBuilder mLiteral = new StringBuilder();
+
+    void writeObject(JsonObject pJson) {
+      mLiteral.append('{');
+
+      boolean first = true;
+      for (Map.Entry<String, Object> entry : pJson) {
+        if (!first) mLiteral.append(',');
+        first = false;
+
+        mLiteral.append('"').append(ENCODER.quoteAsString(entry.getKey())).append("\":");
+        writeValue(entry.getValue());
+      }
+
+      mLiteral.append('}');
+    }
+
+    private void writeArray(JsonArray pJson) {
+      mLiteral.append('[');
+
+      for (int i = 0; i < pJson.size(); i++) {
+        if (i > 0) mLiteral.append(',');
+        writeValue(pJson.getValue(i));
+      }
+
+      mLiteral.append(']');
+    }
+
+    private void writeValue(Object pValue) {
+      if (pValue instanceof JsonObject) {
+        writeObject((JsonObject) pValue);
+
+      } else if (pValue instanceof JsonArray) {
+        writeArray((JsonArray) pValue);
+
+      } else if (pValue instanceof String) {
+        writeString((String) pValue);
+
+      } else {
+        mLiteral.append(Json.encode(pValue));
+      }
+    }
+
+    private void writeString(String pValue) {
+      Text text = Text.parse(pValue);
+      mLiteral.append('"');
+
+      if (text == null) {
+        mLiteral.append(ENCODER.quoteAsString(pValue));
+
+      } else {
+        flushLiteral();
+        mSegments.add(text);
+      }
+
+      mLiteral.append('"');
+    }
+
+    private void flushLiteral() {
+      if (mLiteral.length() > 0) {
+        mSegments.add(new Literal(mLiteral.toString()));
+        mLiteral.setLength(0);
+      }
+    }
+
+    Segment[] finish() {
+      flushLiteral();
+      return mSegments.toArray(new Segment[0]);
+    }
+  }
+}
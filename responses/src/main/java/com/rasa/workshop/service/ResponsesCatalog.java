@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.rasa.workshop.service;
+
+import com.rasa.workshop.common.Document;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, pre-compiled view of a bot's responses document, keyed by template name.
+ *
+ * A catalog is built once from a {@link Document} and never changes afterwards. Writes to the
+ * document only invalidate the cached catalog, and the next read builds a new one.
+ */
+public class ResponsesCatalog {
+
+  private final String mBotId;
+  private final long mVersion;
+  private final boolean mExists;
+  private final Map<String, List<ResponseTemplate>> mTemplates;
+  private final int mWeight;
+
+  private ResponsesCatalog(String pBotId, long pVersion, boolean pExists, Map<String, List<ResponseTemplate>> pTemplates) {
+    this.mBotId = pBotId;
+    this.mVersion = pVersion;
+    this.mExists = pExists;
+    this.mTemplates = pTemplates;
+
+    long weight = pBotId.length();
+    for (Map.Entry<String, List<ResponseTemplate>> entry : pTemplates.entrySet()) {
+      weight += entry.getKey().length();
+      for (ResponseTemplate variant : entry.getValue()) {
+        weight += variant.estimatedSize();
+      }
+    }
+    this.mWeight = (int) Math.min(Integer.MAX_VALUE, weight);
+  }
+
+  public static ResponsesCatalog fromDocument(Document pDocument) {
+    Map<String, List<ResponseTemplate>> templates = new HashMap<>();
+
+    for (Map.Entry<String, Object> entry : pDocument.payload()) {
+      if (!(entry.getValue() instanceof JsonArray)) continue;
+
+      JsonArray rawVariants = (JsonArray) entry.getValue();
+      List<ResponseTemplate> variants = new ArrayList<>(rawVariants.size());
+      for (Object rawVariant : rawVariants) {
+        // A malformed variant is left out rather than failing the whole catalog.
+        if (rawVariant instanceof JsonObject) {
+          variants.add(ResponseTemplate.compile((JsonObject) rawVariant));
+        }
+      }
+
+      templates.put(entry.getKey(), List.copyOf(variants));
+    }
+
+    return new ResponsesCatalog(pDocument.id(), pDocument.version(), true, Map.copyOf(templates));
+  }
+
+  /**
+   * @return an empty catalog standing for a bot that does not exist, so lookups of unknown bots
+   * are cached too.
+   */
+  public static ResponsesCatalog missing(String pBotId) {
+    return new ResponsesCatalog(pBotId, 0, false, Map.of());
+  }
+
+  public String botId() {
+    return mBotId;
+  }
+
+  /**
+   * @return false for the stand-in of a bot that does not exist.
+   */
+  public boolean exists() {
+    return mExists;
+  }
+
+  /**
+   * @return the version of the document the catalog was built from, or 0 if unknown.
+   */
+  public long version() {
+    return mVersion;
+  }
+
+  public boolean hasTemplate(String pTemplate) {
+    return pTemplate != null && mTemplates.containsKey(pTemplate);
+  }
+
+  /**
+   * @return the variants of the given template, or null if the bot has no such template.
+   */
+  public List<ResponseTemplate> variants(String pTemplate) {
+    return pTemplate != null ? mTemplates.get(pTemplate) : null;
+  }
+
+  /**
+   * Picks the variant to render the way Rasa does: variants of the output channel first, then
+   * the ones without a channel. Variants of other channels are never picked.
+   *
+   * @return the selected variant, or null if the bot has no such template or no variant for the
+   * channel.
+   */
+  public ResponseTemplate select(String pTemplate, String pChannel) {
+    List<ResponseTemplate> variants = variants(pTemplate);
+    if (variants == null) return null;
+
+    ResponseTemplate fallback = null;
+    for (ResponseTemplate variant : variants) {
+      if (variant.channel() == null) {
+        if (fallback == null) fallback = variant;
+
+      } else if (variant.channel().equals(pChannel)) {
+        return variant;
+      }
+    }
+
+    return fallback;
+  }
+
+  public int size() {
+    return mTemplates.size();
+  }
+
+  /**
+   * @return the estimated payload bytes held by this catalog, used to bound the catalog cache.
+   */
+  public int weight() {
+    return mWeight;
+  }
+}
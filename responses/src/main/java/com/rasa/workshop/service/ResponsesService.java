@@ -14,18 +14,35 @@
 
 package com.rasa.workshop.service;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Constants;
 import com.rasa.workshop.common.Document;
 import com.rasa.workshop.common.DocumentException;
 import com.rasa.workshop.common.DocumentExistsException;
 import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.db.AsyncDB;
+import com.rasa.workshop.db.BatchResult;
+import com.rasa.workshop.db.Change;
 import com.rasa.workshop.db.DB;
-import io.vertx.core.json.JsonArray;
+import com.rasa.workshop.rasa.NlgRequest;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 public class ResponsesService {
@@ -34,10 +51,19 @@ public class ResponsesService {
   public static final String DEFAULT_BOT_ID = "workshop";
 
   private final DB mDB;
+  private final AsyncDB mAsyncDB;
+  private final AsyncCache<String, ResponsesCatalog> mCatalogs;
 
-  public ResponsesService(DB pDB)
+  public ResponsesService(AsyncDB pDB, JsonObject pConfig)
     throws DocumentExistsException, DocumentException {
-    this.mDB = Objects.requireNonNull(pDB, "DB should be provided");
+    this.mAsyncDB = Objects.requireNonNull(pDB, "DB should be provided");
+    this.mDB = pDB.sync();
+    this.mCatalogs = Caffeine
+      .newBuilder()
+      .maximumWeight(pConfig.getLong(Constants.CATALOG_CACHE_MAX_WEIGHT_KEY, Constants.DEFAULT_CATALOG_CACHE_MAX_WEIGHT_VALUE))
+      .weigher((String botId, ResponsesCatalog catalog) -> catalog.weight())
+      .recordStats()
+      .buildAsync();
 
     if (!mDB.hasCollection(RESPONSES_COLLECTION_ID)) {
       mDB.createCollection(Collection
@@ -56,23 +82,239 @@ public class ResponsesService {
     }
   }
 
-  public Document getResponse(String pBotId)
-    throws DocumentNotFoundException, DocumentException {
-    return mDB.getDocument(RESPONSES_COLLECTION_ID, pBotId);
+  /**
+   * @return the responses collection, listing every bot without loading their responses. Reading a
+   *     listed document's payload may block on disk; use {@link #getResponses(List)} instead.
+   */
+  public Future<Collection> getResponses() {
+    return mAsyncDB.getCollection(RESPONSES_COLLECTION_ID);
+  }
+
+  public Future<Document> getResponse(String pBotId) {
+    return mAsyncDB.getDocument(RESPONSES_COLLECTION_ID, pBotId);
   }
 
+  /**
+   * Blocking lookup of the bot builder responses, meant for action code that runs off the event loop.
+   */
   public Document getBotBuilderResponse()
     throws DocumentNotFoundException, DocumentException {
     return mDB.getDocument(RESPONSES_COLLECTION_ID, DEFAULT_BOT_ID);
   }
 
-  public JsonObject generateResponse(String pBotId, JsonObject pPayload)
-    throws DocumentNotFoundException, DocumentException {
-    // TODO: Get tracker and use slots for variable replacement.
-    String template = pPayload.getString("template");
-    var doc = mDB.getDocument(RESPONSES_COLLECTION_ID, pBotId);
-    JsonArray response = doc.payload().getJsonArray(template);
-    return response.getJsonObject(0);
+  /**
+   * Renders the requested template of the given bot, substituting slots from the tracker.
+   *
+   * @return the encoded JSON response, or a {@link DocumentNotFoundException} if the bot or the
+   * template does not exist.
+   */
+  public Future<Buffer> generateResponse(String pBotId, NlgRequest pRequest) {
+    return getCatalog(pBotId).compose(catalog -> {
+      ResponseTemplate template = catalog.select(pRequest.template(), pRequest.channel());
+      if (template == null) {
+        return Future.failedFuture(templateNotFound(pRequest));
+      }
+
+      return Future.succeededFuture(template.render(pRequest.templateVariables()));
+    });
+  }
+
+  /**
+   * Renders several templates of the given bot against one catalog lookup.
+   *
+   * @return the encoded JSON responses, in request order.
+   */
+  public Future<List<Buffer>> generateResponses(String pBotId, List<NlgRequest> pRequests) {
+    return getCatalog(pBotId).compose(catalog -> {
+      List<Buffer> responses = new ArrayList<>(pRequests.size());
+      for (NlgRequest request : pRequests) {
+        ResponseTemplate template = catalog.select(request.template(), request.channel());
+        if (template == null) {
+          return Future.failedFuture(templateNotFound(request));
+        }
+
+        responses.add(template.render(request.templateVariables()));
+      }
+      return Future.succeededFuture(responses);
+    });
+  }
+
+  /**
+   * Writes only invalidate the cached catalog, which the next generation rebuilds, so that
+   * compiling templates never runs on the event loop completing the write.
+   */
+  public Future<Document> createResponse(String pBotId, JsonObject pResponses) {
+    return mAsyncDB.createDocument(responseDocument(pBotId, pResponses)).map(doc -> {
+      mCatalogs.synchronous().invalidate(pBotId);
+      return doc;
+    });
+  }
+
+  public Future<Document> updateResponse(String pBotId, JsonObject pResponses) {
+    return mAsyncDB.updateDocument(responseDocument(pBotId, pResponses)).map(doc -> {
+      mCatalogs.synchronous().invalidate(pBotId);
+      return doc;
+    });
+  }
+
+  public Future<Document> deleteResponse(String pBotId) {
+    return mAsyncDB.deleteDocument(RESPONSES_COLLECTION_ID, pBotId).map(doc -> {
+      mCatalogs.synchronous().invalidate(pBotId);
+      return doc;
+    });
+  }
+
+  public Future<List<BatchResult>> getResponses(List<String> pBotIds) {
+    return mAsyncDB.getDocuments(RESPONSES_COLLECTION_ID, pBotIds);
+  }
+
+  /**
+   * Creates or replaces the responses of several bots at once.
+   */
+  public Future<List<BatchResult>> putResponses(List<Document> pResponses) {
+    return mAsyncDB.putDocuments(pResponses).map(results -> {
+      for (BatchResult result : results) {
+        if (result.succeeded()) {
+          mCatalogs.synchronous().invalidate(result.id());
+        }
+      }
+      return results;
+    });
+  }
+
+  public Future<List<BatchResult>> deleteResponses(List<String> pBotIds) {
+    return mAsyncDB.deleteDocuments(RESPONSES_COLLECTION_ID, pBotIds).map(results -> {
+      for (BatchResult result : results) {
+        if (result.succeeded()) {
+          mCatalogs.synchronous().invalidate(result.id());
+        }
+      }
+      return results;
+    });
+  }
+
+  /**
+   * Drops the cached catalog of a bot whose responses changed, unless the change was made through
+   * this DB and the catalog was already built from that version or a later one. External changes
+   * always invalidate, since files copied in with their times preserved can carry older versions.
+   */
+  public void onChange(Change pChange) {
+    if (!RESPONSES_COLLECTION_ID.equals(pChange.collectionId())) return;
+
+    if (pChange.docId() == null) {
+      mCatalogs.synchronous().invalidateAll();
+      return;
+    }
+
+    CompletableFuture<ResponsesCatalog> cached = mCatalogs.getIfPresent(pChange.docId());
+    if (cached == null) return;
+
+    if (!pChange.external() && pChange.op() != Change.Op.DELETE && pChange.version() > 0 && cached.isDone() && !cached.isCompletedExceptionally()
+      && cached.join().version() >= pChange.version()) {
+      return;
+    }
+
+    mCatalogs.synchronous().invalidate(pChange.docId());
+  }
+
+  /**
+   * @return hit, miss and eviction counters of the bot catalog cache.
+   */
+  public JsonObject catalogStats() {
+    CacheStats stats = mCatalogs.synchronous().stats();
+
+    return new JsonObject()
+      .put("size", mCatalogs.synchronous().estimatedSize())
+      .put("hits", stats.hitCount())
+      .put("misses", stats.missCount())
+      .put("loads", stats.loadSuccessCount())
+      .put("loadFailures", stats.loadFailureCount())
+      .put("evictions", stats.evictionCount())
+      .put("evictionWeight", stats.evictionWeight());
+  }
+
+  /**
+   * Returns the catalog of the given bot. Catalogs are kept in a cache bounded by their estimated
+   * payload bytes with frequency-aware (W-TinyLFU) eviction, and loaded lazily from the DB on a
+   * miss; concurrent misses for the same bot share a single load. Unknown bots are cached as
+   * missing until their responses are created.
+   */
+  Future<ResponsesCatalog> getCatalog(String pBotId) {
+    CompletableFuture<ResponsesCatalog> catalog = mCatalogs.get(pBotId, this::loadCatalog);
+
+    if (catalog.isDone() && !catalog.isCompletedExceptionally()) {
+      return existing(catalog.join());
+    }
+
+    Promise<ResponsesCatalog> promise = Promise.promise();
+    Context context = Vertx.currentContext();
+
+    catalog.whenComplete((result, error) -> {
+      if (context != null) {
+        context.runOnContext(v -> complete(promise, result, error));
+
+      } else {
+        complete(promise, result, error);
+      }
+    });
+
+    return promise.future();
+  }
+
+  private CompletableFuture<ResponsesCatalog> loadCatalog(String pBotId, Executor pExecutor) {
+    CompletableFuture<ResponsesCatalog> catalog = new CompletableFuture<>();
+
+    mAsyncDB.getDocument(RESPONSES_COLLECTION_ID, pBotId).onComplete(ar -> {
+      if (ar.succeeded()) {
+        // Compiling the templates is CPU work, keep it off the event loop completing the read.
+        pExecutor.execute(() -> {
+          try {
+            catalog.complete(ResponsesCatalog.fromDocument(ar.result()));
+
+          } catch (RuntimeException ex) {
+            catalog.completeExceptionally(ex);
+          }
+        });
+
+      } else if (ar.cause() instanceof DocumentNotFoundException) {
+        catalog.complete(ResponsesCatalog.missing(pBotId));
+
+      } else {
+        catalog.completeExceptionally(ar.cause());
+      }
+    });
+
+    return catalog;
+  }
+
+  private static Future<ResponsesCatalog> existing(ResponsesCatalog pCatalog) {
+    if (!pCatalog.exists()) {
+      return Future.failedFuture(DocumentNotFoundException.stackless("Document not found: " + pCatalog.botId()));
+    }
+
+    return Future.succeededFuture(pCatalog);
+  }
+
+  private static DocumentNotFoundException templateNotFound(NlgRequest pRequest) {
+    return DocumentNotFoundException.stackless("Template not found: " + pRequest.template());
+  }
+
+  private static void complete(Promise<ResponsesCatalog> pPromise, ResponsesCatalog pResult, Throwable pError) {
+    if (pError == null) {
+      existing(pResult).onComplete(pPromise);
+
+    } else {
+      pPromise.fail(pError instanceof CompletionException && pError.getCause() != null ? pError.getCause() : pError);
+    }
+  }
+
+  private static Document responseDocument(String pBotId, JsonObject pResponses) {
+    return Document
+      .newBuilder()
+      .underCollection(RESPONSES_COLLECTION_ID)
+      .withId(pBotId)
+      .withPayload(pResponses)
+      .build();
   }
 
   private static JsonObject rawResponsesJson() {
@@ -0,0 +1,142 @@
+package com.rasa.workshop.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ZipWriterTest {
+
+  @TempDir
+  Path mFolder;
+
+  @Test
+  void entries_spanning_several_blocks_read_back_with_zip_file_and_stream() throws Exception {
+    Map<String, byte[]> files = new LinkedHashMap<>();
+    files.put("small.json", "{\"text\":\"hi\"}".getBytes(StandardCharsets.UTF_8));
+    files.put("text.json", "{\"text\":\"hello there\"}\n".repeat(30_000).getBytes(StandardCharsets.UTF_8));
+    files.put("random.bin", random(3 * ZipWriter.BLOCK_SIZE + 17));
+    files.put("exact.bin", random(2 * ZipWriter.BLOCK_SIZE));
+
+    Path zip = zip(files);
+
+    try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+      assertEquals(files.size(), zipFile.size());
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        ZipEntry entry = zipFile.getEntry(file.getKey());
+        assertEquals(file.getValue().length, entry.getSize());
+        assertEquals(crc(file.getValue()), entry.getCrc());
+        assertArrayEquals(file.getValue(), zipFile.getInputStream(entry).readAllBytes());
+      }
+    }
+
+    try (ZipInputStream input = new ZipInputStream(Files.newInputStream(zip))) {
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+        assertEquals(file.getKey(), input.getNextEntry().getName());
+        assertArrayEquals(file.getValue(), input.readAllBytes());
+      }
+    }
+  }
+
+  @Test
+  void stores_single_block_entries_that_do_not_compress() throws Exception {
+    byte[] data = random(1000);
+
+    try (ZipFile zipFile = new ZipFile(zip(Map.of("random.bin", data)).toFile())) {
+      ZipEntry entry = zipFile.getEntry("random.bin");
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertEquals(data.length, entry.getCompressedSize());
+      assertArrayEquals(data, zipFile.getInputStream(entry).readAllBytes());
+    }
+  }
+
+  @Test
+  void writes_empty_entries() throws Exception {
+    try (ZipFile zipFile = new ZipFile(zip(Map.of("empty", new byte[0])).toFile())) {
+      ZipEntry entry = zipFile.getEntry("empty");
+      assertEquals(0, entry.getSize());
+      assertEquals(0, zipFile.getInputStream(entry).readAllBytes().length);
+    }
+  }
+
+  @Test
+  void switches_to_zip64_records_at_the_classic_entry_count_limit() throws Exception {
+    for (int count : new int[] {0xfffe, 0xffff, 0x10000}) {
+      Path empty = Files.write(mFolder.resolve("empty"), new byte[0]);
+      Path zip = mFolder.resolve(count + ".zip");
+      var writer = new ZipWriter();
+
+      try (OutputStream output = Files.newOutputStream(zip)) {
+        for (int i = 0; i < count; i++) {
+          for (ZipWriter.Block block : ZipWriter.split("e" + i, empty, 0, 0)) {
+            output.write(writer.add(ZipWriter.compress(block)).getBytes());
+          }
+        }
+        output.write(writer.finish().getBytes());
+      }
+
+      try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+        assertEquals(count, zipFile.size());
+        assertTrue(zipFile.getEntry("e" + (count - 1)) != null);
+      }
+    }
+  }
+
+  @Test
+  void combines_crcs_of_consecutive_blocks() {
+    byte[] data = random(1000);
+    CRC32 first = new CRC32();
+    first.update(data, 0, 300);
+    CRC32 second = new CRC32();
+    second.update(data, 300, 700);
+
+    assertEquals(crc(data), ZipWriter.crc32Combine(first.getValue(), second.getValue(), 700));
+  }
+
+  private Path zip(Map<String, byte[]> pFiles)
+      throws IOException {
+    Path zip = mFolder.resolve("test.zip");
+    var writer = new ZipWriter();
+
+    try (OutputStream output = Files.newOutputStream(zip)) {
+      for (Map.Entry<String, byte[]> file : pFiles.entrySet()) {
+        Path path = Files.write(mFolder.resolve(file.getKey()), file.getValue());
+        List<ZipWriter.Block> blocks = ZipWriter.split(file.getKey(), path, file.getValue().length, 0);
+        for (ZipWriter.Block block : blocks) {
+          output.write(writer.add(ZipWriter.compress(block)).getBytes());
+        }
+      }
+      output.write(writer.finish().getBytes());
+    }
+
+    return zip;
+  }
+
+  private static byte[] random(int pLength) {
+    byte[] data = new byte[pLength];
+    new Random(pLength).nextBytes(data);
+    return data;
+  }
+
+  private static long crc(byte[] pData) {
+    CRC32 crc = new CRC32();
+    crc.update(pData);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,170 @@
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CachingDBTest {
+
+  private static final int READERS = 8;
+
+  @TempDir
+  Path mFolder;
+
+  @Test
+  void loads_a_document_once_for_concurrent_readers() throws Exception {
+    CountingDB delegate = new CountingDB(config());
+    delegate.createCollection(Collection.newBuilder().withId("c").build());
+    delegate.createDocument(doc("a", 1));
+    delegate.mHoldReads = new CountDownLatch(1);
+    var db = new CachingDB(delegate, config());
+
+    List<CompletableFuture<Document>> reads = new ArrayList<>();
+    for (int r = 0; r < READERS; r++) {
+      reads.add(CompletableFuture.supplyAsync(() -> get(db, "a")));
+    }
+    Thread.sleep(200);
+    delegate.mHoldReads.countDown();
+
+    for (CompletableFuture<Document> read : reads) {
+      assertEquals(1, read.get(5, TimeUnit.SECONDS).payload().getInteger("n"));
+    }
+    assertEquals(1, delegate.mReads.get());
+    db.close();
+  }
+
+  @Test
+  void keeps_the_latest_version_when_writes_return_out_of_order() throws Exception {
+    CountingDB delegate = new CountingDB(config());
+    delegate.createCollection(Collection.newBuilder().withId("c").build());
+    var db = new CachingDB(delegate, config());
+    db.createDocument(doc("a", 0));
+
+    // The first update lands first but returns last, after the second one cached its version.
+    delegate.mHoldUpdate = new CountDownLatch(1);
+    CompletableFuture<Document> slow = CompletableFuture.supplyAsync(() -> update(db, doc("a", 1)));
+    delegate.mUpdated.await(5, TimeUnit.SECONDS);
+    Document fast = db.updateDocument(doc("a", 2));
+    delegate.mHoldUpdate.countDown();
+
+    assertTrue(slow.get(5, TimeUnit.SECONDS).version() < fast.version());
+    Document cached = db.getDocument("c", "a");
+    assertEquals(fast.version(), cached.version());
+    assertEquals(2, cached.payload().getInteger("n"));
+    assertEquals(0, delegate.mReads.get());
+    db.close();
+  }
+
+  @Test
+  void remembers_missing_documents_until_they_are_written() throws Exception {
+    CountingDB delegate = new CountingDB(config());
+    delegate.createCollection(Collection.newBuilder().withId("c").build());
+    var db = new CachingDB(delegate, config());
+
+    assertThrows(DocumentNotFoundException.class, () -> db.getDocument("c", "a"));
+    assertThrows(DocumentNotFoundException.class, () -> db.getDocument("c", "a"));
+    assertFalse(db.hasDocument("c", "a"));
+    assertEquals(1, delegate.mReads.get());
+
+    db.createDocument(doc("a", 1));
+    assertEquals(1, db.getDocument("c", "a").payload().getInteger("n"));
+
+    db.deleteDocument("c", "a");
+    assertThrows(DocumentNotFoundException.class, () -> db.getDocument("c", "a"));
+    assertFalse(db.hasDocument("c", "a"));
+    assertEquals(1, delegate.mReads.get());
+    db.close();
+  }
+
+  private JsonObject config() {
+    return new JsonObject()
+        .put("state-folder", mFolder.toString())
+        .put("db-watch", false);
+  }
+
+  private static Document get(DB pDB, String pId) {
+    try {
+      return pDB.getDocument("c", pId);
+
+    } catch (DocumentNotFoundException | DocumentException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static Document update(DB pDB, Document pDoc) {
+    try {
+      return pDB.updateDocument(pDoc);
+
+    } catch (DocumentNotFoundException | DocumentException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static Document doc(String pId, int pValue) {
+    return Document
+        .newBuilder()
+        .underCollection("c")
+        .withId(pId)
+        .withPayload(new JsonObject().put("n", pValue))
+        .build();
+  }
+
+  private static class CountingDB
+      extends JsonDB {
+
+    final AtomicInteger mReads = new AtomicInteger();
+    final CountDownLatch mUpdated = new CountDownLatch(1);
+    volatile CountDownLatch mHoldReads;
+    volatile CountDownLatch mHoldUpdate;
+
+    CountingDB(JsonObject pConfig) {
+      super(pConfig);
+    }
+
+    @Override
+    public Document getDocument(String pCollectionId, String pDocId)
+        throws DocumentNotFoundException, DocumentException {
+      mReads.incrementAndGet();
+      await(mHoldReads);
+      return super.getDocument(pCollectionId, pDocId);
+    }
+
+    @Override
+    public Document updateDocument(Document pDoc)
+        throws DocumentNotFoundException, DocumentException {
+      Document updated = super.updateDocument(pDoc);
+      CountDownLatch hold = mHoldUpdate;
+      if (hold != null && mUpdated.getCount() > 0) {
+        mUpdated.countDown();
+        await(hold);
+      }
+      return updated;
+    }
+
+    private static void await(CountDownLatch pLatch) {
+      try {
+        if (pLatch != null) pLatch.await(5, TimeUnit.SECONDS);
+
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
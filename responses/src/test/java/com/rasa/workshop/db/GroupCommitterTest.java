@@ -0,0 +1,67 @@
+package com.rasa.workshop.db;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GroupCommitterTest {
+
+  @TempDir
+  Path mFolder;
+
+  @Test
+  void batch_commit_completes_after_shared_fsync() throws Exception {
+    List<Path> fsyncs = new CopyOnWriteArrayList<>();
+    var committer = new GroupCommitter("test", new JsonObject()
+        .put("fsync-policy", "batch")
+        .put("fsync-batch-delay", 200)) {
+
+      @Override
+      void fsync(Path pPath)
+          throws IOException {
+        fsyncs.add(pPath);
+        super.fsync(pPath);
+      }
+    };
+    Path a = Files.writeString(mFolder.resolve(".a.tmp"), "a");
+    Path b = Files.writeString(mFolder.resolve(".b.tmp"), "b");
+
+    CompletableFuture<Void> first = committer.rename(a, mFolder.resolve("a"));
+    CompletableFuture<Void> second = committer.rename(b, mFolder.resolve("b"));
+    CompletableFuture<Void> third = committer.commit(mFolder);
+    assertFalse(first.isDone());
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+    third.get(5, TimeUnit.SECONDS);
+
+    // Each written file once, before its rename, and their directory once for the whole batch.
+    assertEquals(List.of(a, b, mFolder), fsyncs);
+    assertEquals("a", Files.readString(mFolder.resolve("a")));
+    assertEquals("b", Files.readString(mFolder.resolve("b")));
+    assertFalse(Files.exists(a));
+
+    committer.close();
+  }
+
+  @Test
+  void commit_after_close_fails_right_away() throws Exception {
+    var committer = new GroupCommitter("test", new JsonObject().put("fsync-policy", "batch"));
+    committer.close();
+
+    CompletableFuture<Void> commit = committer.commit(mFolder);
+
+    assertTrue(commit.isCompletedExceptionally());
+  }
+}
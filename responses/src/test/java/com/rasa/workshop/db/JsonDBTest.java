@@ -0,0 +1,132 @@
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class JsonDBTest {
+
+  @TempDir
+  Path mFolder;
+
+  private JsonDB mDB;
+
+  @BeforeEach
+  void open() throws Exception {
+    mDB = new JsonDB(config());
+    mDB.createCollection(Collection.newBuilder().withId("c").build());
+  }
+
+  @AfterEach
+  void close() {
+    mDB.close();
+  }
+
+  @Test
+  void updates_only_at_the_expected_version() throws Exception {
+    Document created = mDB.createDocument(doc("a", 1));
+
+    Document updated = mDB.updateDocument(doc("a", 2), created.version());
+    assertTrue(updated.version() > created.version());
+
+    assertThrows(DocumentVersionConflictException.class, () -> mDB.updateDocument(doc("a", 3), created.version()));
+    assertEquals(2, mDB.getDocument("c", "a").payload().getInteger("n"));
+
+    assertThrows(DocumentNotFoundException.class, () -> mDB.updateDocument(doc("missing", 1), created.version()));
+  }
+
+  @Test
+  void serves_what_was_written_whatever_the_writer_does_with_its_payload() throws Exception {
+    JsonObject payload = new JsonObject().put("n", 1);
+    mDB.createDocument(Document.newBuilder().underCollection("c").withId("a").withPayload(payload).build());
+
+    payload.put("n", 2);
+
+    assertEquals(1, mDB.getDocument("c", "a").payload().getInteger("n"));
+    assertEquals(1, mDB.getCollection("c").documents().get(0).payload().getInteger("n"));
+  }
+
+  @Test
+  void versions_survive_a_restart() throws Exception {
+    Document created = mDB.createDocument(doc("a", 1));
+
+    mDB.close();
+    mDB = new JsonDB(config());
+
+    assertEquals(created.version(), mDB.getDocument("c", "a").version());
+    mDB.updateDocument(doc("a", 2), created.version());
+    assertEquals(2, mDB.getDocument("c", "a").payload().getInteger("n"));
+  }
+
+  @Test
+  void put_documents_reports_every_occurrence_and_keeps_the_last() throws Exception {
+    mDB.createDocument(doc("a", 1));
+
+    List<BatchResult> results = mDB.putDocuments(List.of(doc("a", 2), doc("b", 3), doc("a", 4),
+        Document.newBuilder().underCollection("missing").withId("x").withPayload(new JsonObject()).build()));
+
+    assertEquals(4, results.size());
+    assertEquals("a", results.get(0).id());
+    assertEquals("b", results.get(1).id());
+    assertEquals("a", results.get(2).id());
+    assertTrue(results.get(0).succeeded());
+    assertTrue(results.get(1).succeeded());
+    assertTrue(results.get(2).succeeded());
+    assertFalse(results.get(3).succeeded());
+    assertEquals(4, mDB.getDocument("c", "a").payload().getInteger("n"));
+    assertEquals(3, mDB.getDocument("c", "b").payload().getInteger("n"));
+  }
+
+  @Test
+  void get_documents_answers_in_request_order() throws Exception {
+    mDB.createDocument(doc("a", 1));
+    mDB.createDocument(doc("b", 2));
+
+    List<BatchResult> results = mDB.getDocuments("c", List.of("b", "missing", "a"));
+
+    assertEquals(2, results.get(0).document().payload().getInteger("n"));
+    assertTrue(results.get(1).error() instanceof DocumentNotFoundException);
+    assertEquals(1, results.get(2).document().payload().getInteger("n"));
+  }
+
+  @Test
+  void delete_documents_answers_repeated_ids_like_single_deletes() throws Exception {
+    mDB.createDocument(doc("a", 1));
+
+    List<BatchResult> results = mDB.deleteDocuments("c", List.of("a", "missing", "a"));
+
+    assertEquals(1, results.get(0).document().payload().getInteger("n"));
+    assertTrue(results.get(1).error() instanceof DocumentNotFoundException);
+    assertTrue(results.get(2).error() instanceof DocumentNotFoundException);
+    assertFalse(mDB.hasDocument("c", "a"));
+  }
+
+  private JsonObject config() {
+    return new JsonObject()
+        .put("state-folder", mFolder.toString())
+        .put("db-watch", false);
+  }
+
+  private static Document doc(String pId, int pValue) {
+    return Document
+        .newBuilder()
+        .underCollection("c")
+        .withId(pId)
+        .withPayload(new JsonObject().put("n", pValue))
+        .build();
+  }
+}
@@ -0,0 +1,205 @@
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LogDBTest {
+
+  @TempDir
+  Path mFolder;
+
+  private LogDB mDB;
+
+  @AfterEach
+  void close() {
+    if (mDB != null) mDB.close();
+  }
+
+  @Test
+  void replays_documents_and_deletes_on_open() throws Exception {
+    mDB = open(64 * 1024);
+    mDB.createCollection(collection("c"));
+    Document first = mDB.createDocument(doc("c", "a", 1));
+    mDB.createDocument(doc("c", "b", 2));
+    mDB.updateDocument(doc("c", "a", 3));
+    mDB.deleteDocument("c", "b");
+    long version = mDB.getDocument("c", "a").version();
+
+    reopen(64 * 1024);
+
+    Document a = mDB.getDocument("c", "a");
+    assertEquals(3, a.payload().getInteger("n"));
+    assertEquals(version, a.version());
+    assertTrue(version > first.version());
+    assertFalse(mDB.hasDocument("c", "b"));
+    assertEquals(1, mDB.getCollection("c").documents().size());
+  }
+
+  @Test
+  void truncates_torn_write_at_the_end_of_the_last_segment() throws Exception {
+    mDB = open(64 * 1024);
+    mDB.createCollection(collection("c"));
+    mDB.createDocument(doc("c", "a", 1));
+    mDB.close();
+
+    File segment = lastSegment();
+    long size = segment.length();
+    Files.write(segment.toPath(), new byte[] {0, 0, 0, 1, 0, 0}, StandardOpenOption.APPEND);
+
+    mDB = open(64 * 1024);
+
+    assertEquals(1, mDB.getDocument("c", "a").payload().getInteger("n"));
+    assertEquals(size, segment.length());
+    mDB.createDocument(doc("c", "b", 2));
+    reopen(64 * 1024);
+    assertEquals(2, mDB.getDocument("c", "b").payload().getInteger("n"));
+  }
+
+  @Test
+  void drops_last_record_failing_its_checksum() throws Exception {
+    mDB = open(64 * 1024);
+    mDB.createCollection(collection("c"));
+    mDB.createDocument(doc("c", "a", 1));
+    mDB.close();
+    long size = lastSegment().length();
+
+    mDB = open(64 * 1024);
+    mDB.createDocument(doc("c", "b", 2));
+    mDB.close();
+    flipLastByte(lastSegment());
+
+    mDB = open(64 * 1024);
+
+    assertTrue(mDB.hasDocument("c", "a"));
+    assertFalse(mDB.hasDocument("c", "b"));
+    assertEquals(size, lastSegment().length());
+  }
+
+  @Test
+  void refuses_to_open_with_a_corrupt_sealed_segment() throws Exception {
+    mDB = open(256);
+    mDB.createCollection(collection("c"));
+    for (int i = 0; i < 20; i++) {
+      mDB.createDocument(doc("c", "d" + i, i));
+    }
+    mDB.close();
+    mDB = null;
+
+    File[] segments = segments();
+    assertTrue(segments.length > 1);
+    flipLastByte(segments[0]);
+
+    assertThrows(RuntimeException.class, () -> open(256));
+  }
+
+  @Test
+  void compaction_keeps_live_documents_only() throws Exception {
+    mDB = open(512);
+    mDB.createCollection(collection("c"));
+    mDB.createDocument(doc("c", "kept", -1));
+    mDB.createDocument(doc("c", "deleted", -1));
+    mDB.createDocument(doc("c", "hot", 0));
+    for (int i = 1; i < 200; i++) {
+      mDB.updateDocument(doc("c", "hot", i));
+    }
+    mDB.deleteDocument("c", "deleted");
+    int before = segments().length;
+
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (segments().length > 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+
+    assertTrue(segments().length < before);
+    assertEquals(199, mDB.getDocument("c", "hot").payload().getInteger("n"));
+    assertEquals(-1, mDB.getDocument("c", "kept").payload().getInteger("n"));
+
+    reopen(512);
+
+    assertEquals(199, mDB.getDocument("c", "hot").payload().getInteger("n"));
+    assertEquals(-1, mDB.getDocument("c", "kept").payload().getInteger("n"));
+    assertFalse(mDB.hasDocument("c", "deleted"));
+    assertEquals(0, mFolder.resolve("rasa").toFile().list((dir, name) -> name.endsWith(".compact") || name.equals("MERGE")).length);
+  }
+
+  @Test
+  void rejects_ids_too_long_for_their_length_field() throws Exception {
+    mDB = open(64 * 1024);
+    mDB.createCollection(collection("c"));
+    String longest = "é".repeat(Short.MAX_VALUE / 2) + "a";
+    String tooLong = "é".repeat(Short.MAX_VALUE / 2 + 1);
+
+    mDB.createDocument(doc("c", longest, 1));
+    assertThrows(DocumentException.class, () -> mDB.createDocument(doc("c", tooLong, 2)));
+    assertFalse(mDB.putDocuments(List.of(doc("c", tooLong, 3))).get(0).succeeded());
+
+    reopen(64 * 1024);
+
+    assertEquals(1, mDB.getDocument("c", longest).payload().getInteger("n"));
+    assertFalse(mDB.hasDocument("c", tooLong));
+  }
+
+  private LogDB open(long pSegmentSize) {
+    return new LogDB(new JsonObject()
+        .put("state-folder", mFolder.toString())
+        .put("log-segment-size", pSegmentSize)
+        .put("log-compaction-interval", 20));
+  }
+
+  private void reopen(long pSegmentSize) {
+    mDB.close();
+    mDB = open(pSegmentSize);
+  }
+
+  private File[] segments() {
+    File[] segments = mFolder.resolve("rasa").toFile().listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+    Arrays.sort(segments, Comparator.comparingLong(file -> Long.parseLong(file.getName().replaceAll("\\D", ""))));
+    return segments;
+  }
+
+  private File lastSegment() {
+    File[] segments = segments();
+    return segments[segments.length - 1];
+  }
+
+  private static void flipLastByte(File pFile) throws Exception {
+    try (RandomAccessFile file = new RandomAccessFile(pFile, "rw")) {
+      file.seek(file.length() - 1);
+      int last = file.read();
+      file.seek(file.length() - 1);
+      file.write(last ^ 0xff);
+    }
+  }
+
+  private static Collection collection(String pId) {
+    return Collection.newBuilder().withId(pId).build();
+  }
+
+  private static Document doc(String pCollectionId, String pId, int pValue) {
+    return Document
+        .newBuilder()
+        .underCollection(pCollectionId)
+        .withId(pId)
+        .withPayload(new JsonObject().put("n", pValue))
+        .build();
+  }
+}
@@ -0,0 +1,171 @@
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Document;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ShardedDBTest {
+
+  private static final int DOCUMENTS = 200;
+
+  @TempDir
+  Path mFolder;
+
+  @Test
+  void spreads_documents_over_shards_and_merges_listings_and_queries() throws Exception {
+    ShardedDB db = new ShardedDB(config("a", "b", "c"));
+    fill(db);
+
+    List<String> ids = db.getCollection("c").documents().stream().map(Document::id).collect(Collectors.toList());
+    assertEquals(ids(), ids);
+    assertEquals(DOCUMENTS, db.getCollection("c").payload().getInteger("count"));
+
+    for (String shard : List.of("a", "b", "c")) {
+      assertTrue(files(shard).size() > 0, "shard " + shard + " holds no document");
+    }
+
+    List<Document> matches = db.query(Query.newBuilder().underCollection("c").withPath("n").atLeast(DOCUMENTS - 5).build());
+    assertEquals(5, matches.size());
+    assertEquals("d195", matches.get(0).id());
+
+    try (Snapshot snapshot = db.snapshot()) {
+      assertEquals(DOCUMENTS, snapshot.entries().size());
+    }
+
+    db.close();
+  }
+
+  @Test
+  void moves_documents_to_an_added_folder() throws Exception {
+    ShardedDB db = new ShardedDB(config("a"));
+    fill(db);
+    db.close();
+
+    db = new ShardedDB(config("a", "b"));
+
+    assertDocuments(db);
+    assertTrue(files("b").size() > 0);
+    assertEquals(DOCUMENTS, files("a").size() + files("b").size());
+    db.close();
+  }
+
+  @Test
+  void completes_a_move_interrupted_between_its_put_and_delete() throws Exception {
+    ShardedDB db = new ShardedDB(config("a"));
+    fill(db);
+    db.close();
+
+    db = new ShardedDB(config("a", "b"));
+    db.close();
+    List<String> moved = files("b");
+
+    // Put back on the old shard what was moved, and forget the rebalance, as if the process died
+    // right after the documents were written to their new shard.
+    JsonDB a = new JsonDB(shardConfig("a"));
+    for (String id : moved) {
+      a.createDocument(doc(id, Integer.parseInt(id.substring(1))));
+    }
+    a.close();
+    Files.writeString(mFolder.resolve("a").resolve(".rasa-shards"), new JsonArray().add(shard("a")).encode());
+    Files.delete(mFolder.resolve("b").resolve(".rasa-shards"));
+
+    db = new ShardedDB(config("a", "b"));
+
+    assertDocuments(db);
+    assertEquals(moved, files("b"));
+    assertEquals(DOCUMENTS, files("a").size() + files("b").size());
+    db.close();
+  }
+
+  @Test
+  void refuses_to_open_without_a_recorded_folder() throws Exception {
+    ShardedDB db = new ShardedDB(config("a", "b"));
+    fill(db);
+    db.close();
+
+    RuntimeException ex = assertThrows(RuntimeException.class, () -> new ShardedDB(config("a")));
+    assertTrue(ex.getMessage().contains(shard("b")));
+  }
+
+  private void fill(DB pDB) throws Exception {
+    pDB.createCollection(Collection.newBuilder().withId("c").build());
+    for (int d = 0; d < DOCUMENTS; d++) {
+      pDB.createDocument(doc("d" + d, d));
+    }
+  }
+
+  private static void assertDocuments(DB pDB) throws Exception {
+    for (int d = 0; d < DOCUMENTS; d++) {
+      assertEquals(d, pDB.getDocument("c", "d" + d).payload().getInteger("n"));
+    }
+    assertEquals(DOCUMENTS, pDB.getCollection("c").documents().size());
+  }
+
+  private static List<String> ids() {
+    List<String> ids = new ArrayList<>();
+    for (int d = 0; d < DOCUMENTS; d++) {
+      ids.add("d" + d);
+    }
+    ids.sort(null);
+    return ids;
+  }
+
+  /**
+   * @return the ids of the documents held by a shard folder, in order.
+   */
+  private List<String> files(String pShard)
+      throws IOException {
+    try (Stream<Path> files = Files.list(mFolder.resolve(pShard).resolve("rasa").resolve("c"))) {
+      return files
+          .map(file -> file.getFileName().toString())
+          .filter(name -> !name.startsWith("."))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private String shard(String pShard) {
+    return mFolder.resolve(pShard).toString();
+  }
+
+  private JsonObject config(String... pShards) {
+    JsonArray folders = new JsonArray();
+    for (String shard : pShards) {
+      folders.add(shard(shard));
+    }
+
+    return new JsonObject()
+        .put("state-folders", folders)
+        .put("db-watch", false);
+  }
+
+  private JsonObject shardConfig(String pShard) {
+    return new JsonObject()
+        .put("state-folder", shard(pShard))
+        .put("db-watch", false);
+  }
+
+  private static Document doc(String pId, int pValue) {
+    return Document
+        .newBuilder()
+        .underCollection("c")
+        .withId(pId)
+        .withPayload(new JsonObject().put("n", pValue))
+        .build();
+  }
+}
@@ -0,0 +1,176 @@
+package com.rasa.workshop.db;
+
+import com.rasa.workshop.common.Collection;
+import com.rasa.workshop.common.Document;
+import com.rasa.workshop.common.DocumentException;
+import com.rasa.workshop.common.DocumentExistsException;
+import com.rasa.workshop.common.DocumentNotFoundException;
+import com.rasa.workshop.common.DocumentVersionConflictException;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WriteBehindDBTest {
+
+  @TempDir
+  Path mFolder;
+
+  @Test
+  void coalesces_repeated_writes_of_a_queued_document() throws Exception {
+    CountingDB delegate = new CountingDB(config());
+    delegate.createCollection(Collection.newBuilder().withId("c").build());
+    var db = new WriteBehindDB(delegate, config());
+
+    db.createDocument(doc("a", 0));
+    for (int n = 1; n <= 10; n++) {
+      db.updateDocument(doc("a", n));
+    }
+
+    assertEquals(10, db.getDocument("c", "a").payload().getInteger("n"));
+    assertEquals(0, delegate.mWrites.get());
+
+    db.close();
+
+    assertEquals(1, delegate.mWrites.get());
+    JsonDB reopened = reopen();
+    assertEquals(10, reopened.getDocument("c", "a").payload().getInteger("n"));
+    reopened.close();
+  }
+
+  @Test
+  void blocks_writers_of_other_documents_while_the_queue_is_full() throws Exception {
+    JsonDB delegate = new JsonDB(config());
+    delegate.createCollection(Collection.newBuilder().withId("c").build());
+    var db = new WriteBehindDB(delegate, config().put("write-behind-queue-size", 2));
+
+    db.createDocument(doc("a", 1));
+    db.createDocument(doc("b", 1));
+    CompletableFuture<Document> blocked = CompletableFuture.supplyAsync(() -> {
+      try {
+        return db.createDocument(doc("c", 1));
+
+      } catch (DocumentExistsException | DocumentException ex) {
+        throw new IllegalStateException(ex);
+      }
+    });
+
+    Thread.sleep(200);
+    assertFalse(blocked.isDone());
+
+    // Replacing a queued write takes no room.
+    db.updateDocument(doc("a", 2));
+    // Listing the collection writes its queued documents through, which makes room.
+    db.getCollection("c");
+
+    blocked.get(5, TimeUnit.SECONDS);
+    db.close();
+
+    JsonDB reopened = reopen();
+    assertEquals(2, reopened.getDocument("c", "a").payload().getInteger("n"));
+    assertTrue(reopened.hasDocument("c", "c"));
+    reopened.close();
+  }
+
+  @Test
+  void writes_everything_queued_on_close() throws Exception {
+    JsonDB delegate = new JsonDB(config());
+    delegate.createCollection(Collection.newBuilder().withId("c").build());
+    delegate.createDocument(doc("gone", 0));
+    var db = new WriteBehindDB(delegate, config());
+
+    for (int d = 0; d < 50; d++) {
+      db.createDocument(doc("d" + d, d));
+    }
+    db.deleteDocument("c", "gone");
+    assertThrows(DocumentNotFoundException.class, () -> db.getDocument("c", "gone"));
+    assertThrows(DocumentExistsException.class, () -> db.createDocument(doc("d0", 0)));
+
+    db.close();
+
+    JsonDB reopened = reopen();
+    assertEquals(50, reopened.getCollection("c").documents().size());
+    assertEquals(49, reopened.getDocument("c", "d49").payload().getInteger("n"));
+    assertFalse(reopened.hasDocument("c", "gone"));
+    reopened.close();
+  }
+
+  @Test
+  void checks_versions_of_queued_writes_against_the_version_they_landed_under() throws Exception {
+    JsonDB delegate = new JsonDB(config());
+    delegate.createCollection(Collection.newBuilder().withId("c").build());
+    var db = new WriteBehindDB(delegate, config());
+    List<Change> changes = new CopyOnWriteArrayList<>();
+    db.watchExternalChanges(changes::add);
+
+    Document queued = db.createDocument(doc("a", 1));
+    assertTrue(queued.version() > 0);
+    assertEquals(queued.version(), db.getDocument("c", "a").version());
+
+    Document updated = db.updateDocument(doc("a", 2), queued.version());
+
+    assertEquals(1, changes.size());
+    assertTrue(changes.get(0).version() > 0);
+    assertEquals(updated.version(), delegate.getDocument("c", "a").version());
+    assertThrows(DocumentVersionConflictException.class, () -> db.updateDocument(doc("a", 3), queued.version()));
+
+    Document requeued = db.updateDocument(doc("a", 4));
+    assertTrue(requeued.version() > updated.version());
+    db.close();
+  }
+
+  private JsonObject config() {
+    return new JsonObject()
+        .put("state-folder", mFolder.toString())
+        .put("db-watch", false)
+        .put("write-behind-delay", 60_000);
+  }
+
+  private JsonDB reopen() {
+    return new JsonDB(config());
+  }
+
+  private static Document doc(String pId, int pValue) {
+    return Document
+        .newBuilder()
+        .underCollection("c")
+        .withId(pId)
+        .withPayload(new JsonObject().put("n", pValue))
+        .build();
+  }
+
+  private static class CountingDB
+      extends JsonDB {
+
+    final AtomicInteger mWrites = new AtomicInteger();
+
+    CountingDB(JsonObject pConfig) {
+      super(pConfig);
+    }
+
+    @Override
+    public Document createDocument(Document pDoc)
+        throws DocumentExistsException, DocumentException {
+      mWrites.incrementAndGet();
+      return super.createDocument(pDoc);
+    }
+
+    @Override
+    public Document updateDocument(Document pDoc)
+        throws DocumentNotFoundException, DocumentException {
+      mWrites.incrementAndGet();
+      return super.updateDocument(pDoc);
+    }
+  }
+}
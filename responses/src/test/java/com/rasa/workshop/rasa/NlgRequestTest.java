@@ -0,0 +1,105 @@
+package com.rasa.workshop.rasa;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NlgRequestTest {
+
+  @Test
+  void reads_the_needed_fields_and_skips_the_events() {
+    JsonObject body = new JsonObject()
+        .put("tracker", tracker())
+        .put("template", "utter_greet")
+        .put("arguments", new JsonObject().put("name", "Bob"))
+        .put("channel", new JsonObject().put("name", "slack").put("extra", new JsonArray().add(1)));
+
+    NlgRequest request = NlgRequest.parse(body.toBuffer());
+
+    assertEquals("utter_greet", request.template());
+    assertEquals("slack", request.channel());
+    assertEquals("hi", request.latestMessage().text());
+    assertEquals("Bob", request.templateVariables().getString("name"));
+    assertEquals("Lyon", request.templateVariables().getString("city"));
+    // Arguments override a copy of the slots.
+    assertEquals("Ana", request.slots().getString("name"));
+  }
+
+  @Test
+  void defaults_missing_or_malformed_parts() {
+    NlgRequest request = NlgRequest.parse(new JsonObject()
+        .put("template", "utter_greet")
+        .put("tracker", "not an object")
+        .put("arguments", new JsonArray())
+        .toBuffer());
+
+    assertTrue(request.slots().isEmpty());
+    assertTrue(request.arguments().isEmpty());
+    assertNull(request.channel());
+  }
+
+  @Test
+  void rejects_templates_that_are_not_strings() {
+    for (Object template : new Object[] {new JsonObject().put("template", "utter_greet"), new JsonArray().add("utter_greet")}) {
+      Buffer body = new JsonObject().put("template", template).put("tracker", tracker()).toBuffer();
+
+      assertThrows(DecodeException.class, () -> NlgRequest.parse(body));
+    }
+
+    assertThrows(DecodeException.class, () -> NlgRequest.parse(Buffer.buffer("[]")));
+    assertThrows(DecodeException.class, () -> NlgRequest.parse(Buffer.buffer("{\"template\":")));
+  }
+
+  @Test
+  void reads_batch_items_sharing_the_tracker_and_channel() {
+    JsonObject body = new JsonObject()
+        .put("items", new JsonArray()
+            .add(new JsonObject().put("template", "utter_greet").put("ignored", new JsonObject()))
+            .add(new JsonObject().put("template", "utter_bye").put("arguments", new JsonObject().put("city", "Paris"))))
+        .put("tracker", tracker())
+        .put("channel", new JsonObject().put("name", "web"));
+
+    List<NlgRequest> requests = NlgRequest.parseBatch(body.toBuffer());
+
+    assertEquals(2, requests.size());
+    assertEquals("utter_greet", requests.get(0).template());
+    assertEquals("Lyon", requests.get(0).templateVariables().getString("city"));
+    assertEquals("utter_bye", requests.get(1).template());
+    assertEquals("Paris", requests.get(1).templateVariables().getString("city"));
+    for (NlgRequest request : requests) {
+      assertEquals("web", request.channel());
+      assertEquals("Ana", request.slots().getString("name"));
+    }
+  }
+
+  @Test
+  void rejects_batches_without_an_items_array_of_objects() {
+    assertThrows(DecodeException.class, () -> NlgRequest.parseBatch(new JsonObject().put("template", "utter_greet").toBuffer()));
+    assertThrows(DecodeException.class, () -> NlgRequest.parseBatch(new JsonObject().put("items", "utter_greet").toBuffer()));
+    assertThrows(DecodeException.class, () -> NlgRequest.parseBatch(new JsonObject().put("items", new JsonArray().add("utter_greet")).toBuffer()));
+  }
+
+  private static JsonObject tracker() {
+    JsonArray events = new JsonArray();
+    for (int e = 0; e < 100; e++) {
+      events.add(new JsonObject()
+          .put("event", "slot")
+          .put("name", "name")
+          .put("value", new JsonObject().put("template", "utter_wrong").put("nested", new JsonArray().add(e))));
+    }
+
+    return new JsonObject()
+        .put("events", events)
+        .put("slots", new JsonObject().put("name", "Ana").put("city", "Lyon"))
+        .put("latest_message", new JsonObject().put("text", "hi"));
+  }
+}
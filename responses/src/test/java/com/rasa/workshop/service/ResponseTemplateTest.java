@@ -0,0 +1,83 @@
+package com.rasa.workshop.service;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ResponseTemplateTest {
+
+  @Test
+  void substitutes_slots_in_every_string_value() {
+    ResponseTemplate template = ResponseTemplate.compile(new JsonObject()
+        .put("text", "Hi {name}, you are in {city}!")
+        .put("buttons", new JsonArray().add(new JsonObject()
+            .put("title", "Stay in {city}")
+            .put("payload", "/stay")))
+        .put("count", 2));
+
+    JsonObject rendered = render(template, new JsonObject().put("name", "Ana").put("city", "Lyon \"centre\""));
+
+    assertFalse(template.isStatic());
+    assertEquals("Hi Ana, you are in Lyon \"centre\"!", rendered.getString("text"));
+    assertEquals("Stay in Lyon \"centre\"", rendered.getJsonArray("buttons").getJsonObject(0).getString("title"));
+    assertEquals(2, rendered.getInteger("count"));
+  }
+
+  @Test
+  void leaves_text_untouched_unless_every_slot_is_set() {
+    ResponseTemplate template = ResponseTemplate.compile(new JsonObject().put("text", "{greeting} {name}"));
+
+    assertEquals("{greeting} {name}", render(template, new JsonObject().put("name", "Ana")).getString("text"));
+    assertEquals("{greeting} {name}", render(template, null).getString("text"));
+    assertEquals("None Ana", render(template, new JsonObject().putNull("greeting").put("name", "Ana")).getString("text"));
+  }
+
+  @Test
+  void keeps_embedded_json_and_unbalanced_braces_as_literals() {
+    ResponseTemplate template = ResponseTemplate.compile(new JsonObject()
+        .put("text", "{ {name} }")
+        .put("payload", "/inform{\"priority\":\"low\"}"));
+
+    JsonObject rendered = render(template, new JsonObject().put("name", "Ana"));
+
+    assertEquals("{ Ana }", rendered.getString("text"));
+    assertEquals("/inform{\"priority\":\"low\"}", rendered.getString("payload"));
+  }
+
+  @Test
+  void formats_slot_values_like_python_str() {
+    ResponseTemplate template = ResponseTemplate.compile(new JsonObject().put("text", "{value}"));
+
+    assertEquals("True", text(template, true));
+    assertEquals("3.5", text(template, 3.5));
+    assertEquals("['a', \"it's\", None, False]", text(template, new JsonArray(Arrays.asList("a", "it's", null, false))));
+    assertEquals("{'k': [1, 'x\\ny']}", text(template, new JsonObject().put("k", new JsonArray().add(1).add("x\ny"))));
+  }
+
+  @Test
+  void serves_variants_without_placeholders_from_one_buffer() {
+    ResponseTemplate template = ResponseTemplate.compile(new JsonObject()
+        .put("text", "Hello {}")
+        .put("channel", "slack"));
+
+    assertTrue(template.isStatic());
+    assertSame(template.render(new JsonObject().put("name", "Ana")), template.render(null));
+    assertEquals("{\"text\":\"Hello {}\",\"channel\":\"slack\"}", template.render(null).toString());
+    assertEquals("slack", template.channel());
+  }
+
+  private static String text(ResponseTemplate pTemplate, Object pValue) {
+    return render(pTemplate, new JsonObject().put("value", pValue)).getString("text");
+  }
+
+  private static JsonObject render(ResponseTemplate pTemplate, JsonObject pSlots) {
+    return new JsonObject(pTemplate.render(pSlots));
+  }
+}
@@ -0,0 +1,61 @@
+package com.rasa.workshop.service;
+
+import com.rasa.workshop.common.Document;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ResponsesCatalogTest {
+
+  @Test
+  void leaves_out_variants_that_are_not_objects() {
+    ResponsesCatalog catalog = catalog(new JsonObject()
+        .put("utter_greet", new JsonArray().add("hi").add(new JsonObject().put("text", "hello")).add(1))
+        .put("utter_broken", new JsonArray().add(new JsonArray()))
+        .put("not_a_template", "text"));
+
+    assertEquals(1, catalog.variants("utter_greet").size());
+    assertEquals("{\"text\":\"hello\"}", catalog.select("utter_greet", null).render(new JsonObject()).toString());
+    assertEquals(0, catalog.variants("utter_broken").size());
+    assertFalse(catalog.hasTemplate("not_a_template"));
+  }
+
+  @Test
+  void selects_the_channel_variant_then_one_without_channel() {
+    ResponsesCatalog catalog = catalog(new JsonObject()
+        .put("utter_greet", new JsonArray()
+            .add(new JsonObject().put("text", "any"))
+            .add(new JsonObject().put("text", "slack").put("channel", "slack"))));
+
+    assertEquals("slack", text(catalog.select("utter_greet", "slack")));
+    assertEquals("any", text(catalog.select("utter_greet", "web")));
+    assertEquals("any", text(catalog.select("utter_greet", null)));
+  }
+
+  @Test
+  void selects_nothing_when_only_other_channels_have_variants() {
+    ResponsesCatalog catalog = catalog(new JsonObject()
+        .put("utter_greet", new JsonArray().add(new JsonObject().put("text", "slack").put("channel", "slack"))));
+
+    assertNull(catalog.select("utter_greet", "web"));
+    assertNull(catalog.select("utter_greet", null));
+    assertNull(catalog.select("utter_missing", "slack"));
+  }
+
+  private static String text(ResponseTemplate pTemplate) {
+    return new JsonObject(pTemplate.render(new JsonObject())).getString("text");
+  }
+
+  private static ResponsesCatalog catalog(JsonObject pResponses) {
+    return ResponsesCatalog.fromDocument(Document
+        .newBuilder()
+        .withId("bot")
+        .withVersion(1)
+        .withPayload(pResponses)
+        .build());
+  }
+}